@@ -0,0 +1,56 @@
+package com.example.demo.config;
+
+import com.example.demo.entity.IdAlloc;
+import com.example.demo.id.IdGenerator;
+import com.example.demo.id.SegmentIdGenerator;
+import com.example.demo.id.SnowflakeIdGenerator;
+import com.example.demo.id.WorkerIdLease;
+import com.example.demo.mapper.IdAllocMapper;
+import com.example.demo.mapper.IdWorkerMapper;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+@Configuration
+public class IdGeneratorConfig {
+
+    /**
+     * 机器号没有配置(小于0)时从id_worker表租用，显式配置时由部署保证各节点不同
+     */
+    @Bean
+    @ConditionalOnProperty(prefix = "test.id", name = "generator", havingValue = "snowflake", matchIfMissing = true)
+    public IdGenerator idGenerator(IdWorkerMapper idWorkerMapper,
+                                   @Value("${test.id.worker-id:-1}") int workerId,
+                                   @Value("${test.id.worker-lease-seconds:30}") long leaseSeconds,
+                                   @Value("${test.id.max-backward-millis:5}") long maxBackwardMillis) {
+        if(workerId >= 0) {
+            return new SnowflakeIdGenerator(workerId, maxBackwardMillis);
+        }
+        WorkerIdLease lease = new WorkerIdLease(idWorkerMapper, SnowflakeIdGenerator.MAX_WORKER_ID, leaseSeconds);
+        return new SnowflakeIdGenerator(lease, maxBackwardMillis);
+    }
+
+    /**
+     * 号段模式，test.id.generator=segment时使用，需要先在id_alloc表里插入biz-tag对应的行
+     */
+    @Bean(name = "idGenerator")
+    @ConditionalOnProperty(prefix = "test.id", name = "generator", havingValue = "segment")
+    public IdGenerator segmentIdGenerator(IdAllocMapper idAllocMapper,
+                                          PlatformTransactionManager transactionManager,
+                                          @Value("${test.id.segment.biz-tag:test}") String bizTag,
+                                          @Value("${test.id.segment.prefetch-ratio:0.1}") double prefetchRatio,
+                                          @Value("${test.id.segment.load-timeout-millis:3000}") long loadTimeoutMillis) {
+        //加max_id和读回来放在一个事务里，读到的一定是自己加过之后的值
+        TransactionTemplate transactionTemplate = new TransactionTemplate(transactionManager);
+        return new SegmentIdGenerator(() -> transactionTemplate.execute(status -> {
+            if(idAllocMapper.increaseMaxId(bizTag) == 0) {
+                throw new IllegalStateException("id_alloc表里没有biz_tag=" + bizTag + "的记录！");
+            }
+            IdAlloc alloc = idAllocMapper.getIdAlloc(bizTag);
+            return new long[]{alloc.getMaxId() - alloc.getStep(), alloc.getMaxId()};
+        }), prefetchRatio, loadTimeoutMillis);
+    }
+}
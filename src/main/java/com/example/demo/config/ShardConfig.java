@@ -0,0 +1,84 @@
+package com.example.demo.config;
+
+import com.example.demo.shard.ConsistentHashShardRouter;
+import com.example.demo.shard.ShardBulkhead;
+import com.example.demo.shard.ShardBulkheadInterceptor;
+import com.example.demo.shard.ShardMigrationInterceptor;
+import com.example.demo.shard.ShardRouter;
+import com.example.demo.shard.SwitchableShardRouter;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+@Configuration
+public class ShardConfig {
+
+    /**
+     * 外面包一层SwitchableShardRouter，扩缩容迁移完成后在运行中切换
+     */
+    @Bean
+    public SwitchableShardRouter shardRouter(@Value("${test.shard.count:3}") int shardCount,
+                                             @Value("${test.shard.virtual-nodes:160}") int virtualNodes) {
+        return new SwitchableShardRouter(new ConsistentHashShardRouter(shardCount, virtualNodes));
+    }
+
+    @Bean
+    public ShardBulkhead shardBulkhead(@Value("${test.bulkhead.max-concurrent:20}") int maxConcurrent,
+                                       @Value("${test.bulkhead.acquire-timeout-millis:50}") long acquireTimeoutMillis) {
+        return new ShardBulkhead(maxConcurrent, acquireTimeoutMillis);
+    }
+
+    /**
+     * 单数据源时也生效，一张慢分表不会占满共用的连接池
+     */
+    @Bean
+    public ShardBulkheadInterceptor shardBulkheadInterceptor(ShardRouter shardRouter, ShardBulkhead shardBulkhead) {
+        return new ShardBulkheadInterceptor(shardRouter, shardBulkhead);
+    }
+
+    /**
+     * 在线迁移切换路由时拦住写入，拒绝按旧路由算出的分表
+     */
+    @Bean
+    public ShardMigrationInterceptor shardMigrationInterceptor(SwitchableShardRouter shardRouter) {
+        return new ShardMigrationInterceptor(shardRouter);
+    }
+
+    /**
+     * 跨分表并行查询用的线程池，有界队列，满了直接拒绝，由调用方按失败的分表处理
+     */
+    @Bean(destroyMethod = "shutdown")
+    public ExecutorService shardQueryExecutor(@Value("${test.shard.query-threads:16}") int threads,
+                                              @Value("${test.shard.query-queue:256}") int queueSize) {
+        AtomicInteger threadNum = new AtomicInteger(1);
+        ThreadFactory threadFactory = r -> {
+            Thread thread = new Thread(r, "shard-query-" + threadNum.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        };
+        return new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(queueSize), threadFactory, new ThreadPoolExecutor.AbortPolicy());
+    }
+
+    /**
+     * 整表扫描(导出、导入等)用的线程池，和在线查询分开，避免长任务占满查询线程
+     */
+    @Bean(destroyMethod = "shutdown")
+    public ExecutorService shardScanExecutor(@Value("${test.shard.scan-threads:4}") int threads) {
+        AtomicInteger threadNum = new AtomicInteger(1);
+        ThreadFactory threadFactory = r -> {
+            Thread thread = new Thread(r, "shard-scan-" + threadNum.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        };
+        return Executors.newFixedThreadPool(threads, threadFactory);
+    }
+}
@@ -0,0 +1,64 @@
+package com.example.demo.config;
+
+import com.example.demo.shard.ShardDataSourceInterceptor;
+import com.example.demo.shard.ShardRouter;
+import com.example.demo.shard.ShardRoutingDataSource;
+import org.springframework.beans.MutablePropertyValues;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.boot.autoconfigure.jdbc.DataSourceBuilder;
+import org.springframework.boot.bind.RelaxedDataBinder;
+import org.springframework.boot.context.properties.EnableConfigurationProperties;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.context.annotation.Primary;
+
+import javax.sql.DataSource;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * 开启后每张分表可以放在不同的mysql实例上，替代spring.datasource的单数据源
+ */
+@Configuration
+@ConditionalOnProperty(prefix = "test.shard.routing", name = "enabled", havingValue = "true")
+@EnableConfigurationProperties(ShardDataSourceProperties.class)
+public class ShardDataSourceConfig {
+
+    @Bean
+    @Primary
+    public ShardRoutingDataSource dataSource(ShardDataSourceProperties properties, ShardRouter shardRouter) {
+        Map<String, DataSource> dataSources = new LinkedHashMap<>();
+        for(Map.Entry<String, Map<String, String>> entry : properties.getDatasources().entrySet()) {
+            dataSources.put(entry.getKey(), createDataSource(entry.getValue()));
+        }
+        //扩容用的新分表也要能路由到，按配置里出现的最大分表号确定长度
+        int shardCount = shardRouter.shardCount();
+        for(String shard : properties.getMapping().keySet()) {
+            shardCount = Math.max(shardCount, Integer.parseInt(shard) + 1);
+        }
+        String[] shardDataSources = new String[shardCount];
+        for(int shard = 0; shard < shardDataSources.length; shard++) {
+            String name = properties.getMapping().get(String.valueOf(shard));
+            shardDataSources[shard] = name == null ? properties.getDefaultDatasource() : name;
+        }
+        return new ShardRoutingDataSource(dataSources, shardDataSources, properties.getDefaultDatasource());
+    }
+
+    @Bean
+    public ShardDataSourceInterceptor shardDataSourceInterceptor(ShardRouter shardRouter) {
+        return new ShardDataSourceInterceptor(shardRouter);
+    }
+
+    private static DataSource createDataSource(Map<String, String> config) {
+        Map<String, String> pool = new LinkedHashMap<>(config);
+        DataSource dataSource = DataSourceBuilder.create()
+                .driverClassName(pool.remove("driver-class-name"))
+                .url(pool.remove("url"))
+                .username(pool.remove("username"))
+                .password(pool.remove("password"))
+                .build();
+        //剩下的按连接池自身的属性设置，比如tomcat-jdbc的max-active、max-wait
+        new RelaxedDataBinder(dataSource).bind(new MutablePropertyValues(pool));
+        return dataSource;
+    }
+}
@@ -0,0 +1,59 @@
+package com.example.demo.config;
+
+import org.springframework.boot.context.properties.ConfigurationProperties;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * 分表多数据源配置
+ * test.shard.routing.datasources.{名称}.url/username/password/driver-class-name，
+ * 其它属性(如max-active)原样设置到该数据源的连接池上；
+ * test.shard.routing.mapping.{分表下标}={数据源名称}
+ */
+@ConfigurationProperties(prefix = "test.shard.routing")
+public class ShardDataSourceProperties {
+
+    private boolean enabled;
+
+    /**
+     * 不涉及分表的语句使用的数据源
+     */
+    private String defaultDatasource;
+
+    private Map<String, Map<String, String>> datasources = new LinkedHashMap<>();
+
+    private Map<String, String> mapping = new LinkedHashMap<>();
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    public String getDefaultDatasource() {
+        return defaultDatasource;
+    }
+
+    public void setDefaultDatasource(String defaultDatasource) {
+        this.defaultDatasource = defaultDatasource;
+    }
+
+    public Map<String, Map<String, String>> getDatasources() {
+        return datasources;
+    }
+
+    public void setDatasources(Map<String, Map<String, String>> datasources) {
+        this.datasources = datasources;
+    }
+
+    public Map<String, String> getMapping() {
+        return mapping;
+    }
+
+    public void setMapping(Map<String, String> mapping) {
+        this.mapping = mapping;
+    }
+}
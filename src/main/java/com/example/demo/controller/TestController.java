@@ -1,47 +1,336 @@
 package com.example.demo.controller;
 
+import com.alibaba.fastjson.JSON;
+import com.example.demo.entity.TestRecord;
 import com.example.demo.service.TestService;
+import com.example.demo.shard.RequestDeadline;
+import com.example.demo.support.ChangeEventBroadcaster;
+import com.example.demo.support.HotKeyTracker;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.MediaType;
 import org.springframework.stereotype.Controller;
+import org.springframework.web.bind.annotation.RequestHeader;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RequestMethod;
+import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.ResponseBody;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.util.List;
 import java.util.Map;
 
 @Controller
 @RequestMapping("/test")
 public class TestController {
 
+    private static Log logger = LogFactory.getLog(TestController.class);
+
+    private static final String NDJSON = "application/x-ndjson;charset=UTF-8";
+
     @Autowired
     private TestService testService;
 
+    @Autowired
+    private HotKeyTracker hotKeyTracker;
+
+    @Autowired
+    private ChangeEventBroadcaster changeEventBroadcaster;
+
     @RequestMapping(value = "/testSplitTable", method = RequestMethod.GET)
     @ResponseBody
-    public int testSplitTable() {
-        return testService.testSplitTable();
+    public int testSplitTable(@RequestParam(defaultValue = "6") int count) {
+        return testService.testSplitTable(count);
     }
 
     @RequestMapping(value="/updateTest", method = RequestMethod.POST)
     @ResponseBody
-    public int updateTest(String key, String value, Integer id) {
-        return testService.updateTest(key, value, id);
+    public int updateTest(String key, String value, Long id, Integer version) {
+        hotKeyTracker.record(id);
+        return testService.updateTest(key, value, id, version);
     }
 
     @RequestMapping(value="/saveTest", method = RequestMethod.POST)
     @ResponseBody
-    public int saveTest(String key, String value) {
-        return testService.saveTest(key, value);
+    public long saveTest(String key, String value) {
+        long id = testService.saveTest(key, value);
+        hotKeyTracker.record(id);
+        return id;
     }
 
     @RequestMapping(value="/delTest", method = RequestMethod.POST)
     @ResponseBody
-    public int delTest(Integer id) {
+    public int delTest(Long id) {
+        hotKeyTracker.record(id);
         return testService.delTest(id);
     }
 
     @RequestMapping(value = "/getTest", method = RequestMethod.GET)
     @ResponseBody
-    public Map<String, Object> getTest(Integer id) {
+    public TestRecord getTest(Long id) {
+        hotKeyTracker.record(id);
         return testService.getTest(id);
     }
+
+    /**
+     * 批量查询，ids用逗号分隔，返回顺序与ids一致，不存在的为null
+     */
+    @RequestMapping(value = "/getTests", method = RequestMethod.GET)
+    @ResponseBody
+    public List<TestRecord> getTests(@RequestParam List<Long> ids) {
+        for(Long id : ids) {
+            if(id != null) {
+                hotKeyTracker.record(id);
+            }
+        }
+        return testService.getTests(ids);
+    }
+
+    /**
+     * 按id升序分页，第一页可以传afterId，之后传上一页返回的next
+     */
+    @RequestMapping(value = "/list", method = RequestMethod.GET)
+    @ResponseBody
+    public Map<String, Object> list(@RequestParam(defaultValue = "0") long afterId,
+                                    @RequestParam(required = false) String cursor,
+                                    @RequestParam(defaultValue = "100") int limit) {
+        return testService.listTest(afterId, cursor, limit);
+    }
+
+    /**
+     * 所有分表并行按key查询，以NDJSON逐行返回：每张分表查完输出一行，最后一行是汇总
+     */
+    @RequestMapping(value = "/searchTest", method = RequestMethod.GET, produces = NDJSON)
+    @ResponseBody
+    public StreamingResponseBody searchTest(@RequestParam String key,
+                                            @RequestParam(defaultValue = "false") boolean prefix,
+                                            @RequestParam(defaultValue = "100") int limit,
+                                            @RequestParam(defaultValue = "1000") long timeoutMillis) {
+        //响应体在异步线程里写，请求线程上的截止时间要带过去
+        Long deadline = RequestDeadline.get();
+        return out -> {
+            Long previous = RequestDeadline.get();
+            RequestDeadline.set(deadline);
+            try {
+                Map<String, Object> summary = testService.searchTest(key, prefix, limit, timeoutMillis,
+                        shard -> writeLine(out, shard));
+                writeLine(out, summary);
+            } finally {
+                RequestDeadline.set(previous);
+            }
+        };
+    }
+
+    /**
+     * 以NDJSON流式导出分表的全部记录，一行一条，边读边写，内存占用与表大小无关
+     */
+    @RequestMapping(value = "/export", method = RequestMethod.GET, produces = NDJSON)
+    @ResponseBody
+    public StreamingResponseBody export(@RequestParam(required = false) List<Integer> shards,
+                                        @RequestParam(defaultValue = "true") boolean parallel) {
+        return out -> {
+            //攒满缓冲区就写到响应流，并行导出时多个线程共用，写的时候加锁
+            BufferedOutputStream buffer = new BufferedOutputStream(out, 64 * 1024);
+            Map<Integer, Long> counts = testService.exportTest(shards, parallel, row -> {
+                byte[] line = JSON.toJSONBytes(row);
+                synchronized (buffer) {
+                    try {
+                        buffer.write(line);
+                        buffer.write('\n');
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                }
+            });
+            buffer.flush();
+            logger.info("导出完成：" + counts);
+        };
+    }
+
+    /**
+     * 批量导入，请求体为CSV(key,value)或NDJSON，边读边写
+     * 失败时请求体格式错误返回400，其它返回500，响应体是导入结果；出错之前写入的行不回滚，written是已写入的行数
+     */
+    @RequestMapping(value = "/import", method = RequestMethod.POST)
+    @ResponseBody
+    public Map<String, Object> importTest(HttpServletRequest request, HttpServletResponse response,
+                                          @RequestParam(defaultValue = "csv") String format) throws IOException {
+        Map<String, Object> result = testService.importTest(request.getInputStream(), format);
+        if("failed".equals(result.get("status"))) {
+            response.setStatus(result.containsKey("failedLine")
+                    ? HttpServletResponse.SC_BAD_REQUEST : HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+        }
+        return result;
+    }
+
+    @RequestMapping(value = "/importProgress", method = RequestMethod.GET)
+    @ResponseBody
+    public Map<String, Object> importProgress() {
+        return testService.importProgress();
+    }
+
+    @RequestMapping(value = "/shardDistribution", method = RequestMethod.GET)
+    @ResponseBody
+    public Map<String, Object> shardDistribution(Integer targetShardCount) {
+        return testService.shardDistribution(targetShardCount);
+    }
+
+    /**
+     * 分表数量变化后在后台迁移数据，新分表需要事先建好。
+     * 复制、校验完成后短暂拦住本节点的写入补齐差异再切换路由，按旧路由发出的语句返回503，重试即可。
+     * 需要开启test.rebalance.enabled和test.shard.topology.persisted，迁移期间只能有本节点对外服务
+     */
+    @RequestMapping(value = "/rebalance", method = RequestMethod.POST)
+    @ResponseBody
+    public Map<String, Object> rebalance(int targetShardCount, Double rowsPerSecond) {
+        return testService.rebalance(targetShardCount, rowsPerSecond);
+    }
+
+    @RequestMapping(value = "/rebalanceProgress", method = RequestMethod.GET)
+    @ResponseBody
+    public Map<String, Object> rebalanceProgress() {
+        return testService.rebalanceProgress();
+    }
+
+    @RequestMapping(value = "/rebalanceThrottle", method = RequestMethod.POST)
+    @ResponseBody
+    public Map<String, Object> rebalanceThrottle(double rowsPerSecond) {
+        return testService.rebalanceThrottle(rowsPerSecond);
+    }
+
+    @RequestMapping(value = "/rebalanceCancel", method = RequestMethod.POST)
+    @ResponseBody
+    public Map<String, Object> rebalanceCancel() {
+        return testService.rebalanceCancel();
+    }
+
+    /**
+     * 升级后执行一次：旧的自增id按低10位路由时落不到所在的分表，换成新id，返回旧id到新id的对应关系
+     */
+    @RequestMapping(value = "/migrateLegacyIds", method = RequestMethod.POST)
+    @ResponseBody
+    public Map<String, Object> migrateLegacyIds() {
+        return testService.migrateLegacyIds();
+    }
+
+    @RequestMapping(value = "/writeBehindStats", method = RequestMethod.GET)
+    @ResponseBody
+    public Map<String, Object> writeBehindStats() {
+        return testService.writeBehindStats();
+    }
+
+    @RequestMapping(value = "/groupCommitStats", method = RequestMethod.GET)
+    @ResponseBody
+    public Map<String, Object> groupCommitStats() {
+        return testService.groupCommitStats();
+    }
+
+    @RequestMapping(value = "/updateCoalesceStats", method = RequestMethod.GET)
+    @ResponseBody
+    public Map<String, Object> updateCoalesceStats() {
+        return testService.updateCoalesceStats();
+    }
+
+    /**
+     * 各分表最近访问最多的id和各分表的访问占比，用来决定缓存预热和发现倾斜的分表
+     */
+    @RequestMapping(value = "/hotKeys", method = RequestMethod.GET)
+    @ResponseBody
+    public Map<String, Object> hotKeys(@RequestParam(defaultValue = "10") int limit) {
+        return testService.hotKeys(limit);
+    }
+
+    /**
+     * 以Server-Sent Events推送saveTest、updateTest、delTest等产生的变更事件，事件id是"epoch-序号"。
+     * 断线重连时带上Last-Event-ID或者from，从之后的序号接着推；节点重启过时先推reset事件；都不带时只推送新事件
+     */
+    @RequestMapping(value = "/changes", method = RequestMethod.GET, produces = MediaType.TEXT_EVENT_STREAM_VALUE)
+    @ResponseBody
+    public SseEmitter changes(@RequestParam(required = false) String from,
+                              @RequestHeader(value = "Last-Event-ID", required = false) String lastEventId) {
+        return changeEventBroadcaster.subscribe(from, lastEventId);
+    }
+
+    @RequestMapping(value = "/changeStats", method = RequestMethod.GET)
+    @ResponseBody
+    public Map<String, Object> changeStats() {
+        return changeEventBroadcaster.stats();
+    }
+
+    @RequestMapping(value = "/getTestsByKey", method = RequestMethod.GET)
+    @ResponseBody
+    public List<TestRecord> getTestsByKey(@RequestParam String key) {
+        return testService.getTestsByKey(key);
+    }
+
+    /**
+     * 按key范围或前缀分页，结果按key、id升序，下一页传上一页返回的nextKey、nextId
+     */
+    @RequestMapping(value = "/scanKeys", method = RequestMethod.GET)
+    @ResponseBody
+    public Map<String, Object> scanKeys(@RequestParam(required = false) String prefix,
+                                        @RequestParam(required = false) String from,
+                                        @RequestParam(required = false) String to,
+                                        @RequestParam(required = false) String afterKey,
+                                        @RequestParam(required = false) Long afterId,
+                                        @RequestParam(defaultValue = "100") int limit) {
+        return testService.scanKeys(prefix, from, to, afterKey, afterId, limit);
+    }
+
+    @RequestMapping(value = "/existsKey", method = RequestMethod.GET)
+    @ResponseBody
+    public Map<String, Object> existsKey(@RequestParam String key) {
+        return testService.existsKey(key);
+    }
+
+    @RequestMapping(value = "/keyIndexStats", method = RequestMethod.GET)
+    @ResponseBody
+    public Map<String, Object> keyIndexStats() {
+        return testService.keyIndexStats();
+    }
+
+    /**
+     * 构建失败或怀疑索引与库不一致时重新构建，完成前按key查询回退到查库
+     */
+    @RequestMapping(value = "/keyIndexRebuild", method = RequestMethod.POST)
+    @ResponseBody
+    public Map<String, Object> keyIndexRebuild() {
+        return testService.keyIndexRebuild();
+    }
+
+    @RequestMapping(value = "/bulkheadStats", method = RequestMethod.GET)
+    @ResponseBody
+    public Map<String, Object> bulkheadStats() {
+        return testService.bulkheadStats();
+    }
+
+    @RequestMapping(value = "/cacheStats", method = RequestMethod.GET)
+    @ResponseBody
+    public Map<String, Object> cacheStats() {
+        return testService.cacheStats();
+    }
+
+    @RequestMapping(value = "/bloomFilterStats", method = RequestMethod.GET)
+    @ResponseBody
+    public Map<String, Object> bloomFilterStats() {
+        return testService.bloomFilterStats();
+    }
+
+    private static void writeLine(OutputStream out, Object value) {
+        try {
+            out.write(JSON.toJSONBytes(value));
+            out.write('\n');
+            out.flush();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
 }
@@ -0,0 +1,58 @@
+package com.example.demo.entity;
+
+/**
+ * test_N表的一次变更，sequence在本节点内从1开始严格递增，重启后重新从1开始，
+ * 所以对外的事件id要带上ChangeEventRing的epoch才能区分
+ * 删除事件只有id；同一个id的事件按sequence的顺序就是本节点提交的顺序
+ */
+public final class ChangeEvent {
+
+    public enum Type {
+        SAVE, UPDATE, DELETE
+    }
+
+    private final long sequence;
+
+    private final Type type;
+
+    private final long id;
+
+    private final String key;
+
+    private final String value;
+
+    private final long timestamp;
+
+    public ChangeEvent(long sequence, Type type, long id, String key, String value, long timestamp) {
+        this.sequence = sequence;
+        this.type = type;
+        this.id = id;
+        this.key = key;
+        this.value = value;
+        this.timestamp = timestamp;
+    }
+
+    public long getSequence() {
+        return sequence;
+    }
+
+    public Type getType() {
+        return type;
+    }
+
+    public long getId() {
+        return id;
+    }
+
+    public String getKey() {
+        return key;
+    }
+
+    public String getValue() {
+        return value;
+    }
+
+    public long getTimestamp() {
+        return timestamp;
+    }
+}
@@ -0,0 +1,37 @@
+package com.example.demo.entity;
+
+/**
+ * id_alloc表的一行，max_id是已经分配出去的最大值(不含)，每次领取step个
+ */
+public class IdAlloc {
+
+    private String bizTag;
+
+    private long maxId;
+
+    private int step;
+
+    public String getBizTag() {
+        return bizTag;
+    }
+
+    public void setBizTag(String bizTag) {
+        this.bizTag = bizTag;
+    }
+
+    public long getMaxId() {
+        return maxId;
+    }
+
+    public void setMaxId(long maxId) {
+        this.maxId = maxId;
+    }
+
+    public int getStep() {
+        return step;
+    }
+
+    public void setStep(int step) {
+        this.step = step;
+    }
+}
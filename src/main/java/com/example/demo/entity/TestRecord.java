@@ -0,0 +1,60 @@
+package com.example.demo.entity;
+
+/**
+ * test_N表的一行
+ * 不可变，id、version用基本类型，MyBatis通过构造方法直接映射，
+ * 读一行只分配这一个对象，可以放心地放进缓存、在线程之间共享
+ */
+public final class TestRecord {
+
+    private final long id;
+
+    private final String key;
+
+    private final String value;
+
+    private final int version;
+
+    public TestRecord(long id, String key, String value, int version) {
+        this.id = id;
+        this.key = key;
+        this.value = value;
+        this.version = version;
+    }
+
+    /**
+     * 还没分配id的新记录
+     */
+    public static TestRecord of(String key, String value) {
+        return new TestRecord(0L, key, value, 0);
+    }
+
+    public TestRecord withId(long id) {
+        return new TestRecord(id, key, value, version);
+    }
+
+    public TestRecord withKeyValue(String key, String value) {
+        return new TestRecord(id, key, value, version);
+    }
+
+    public long getId() {
+        return id;
+    }
+
+    public String getKey() {
+        return key;
+    }
+
+    public String getValue() {
+        return value;
+    }
+
+    public int getVersion() {
+        return version;
+    }
+
+    @Override
+    public String toString() {
+        return "TestRecord{id=" + id + ", key=" + key + ", value=" + value + ", version=" + version + "}";
+    }
+}
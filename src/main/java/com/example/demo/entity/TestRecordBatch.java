@@ -0,0 +1,109 @@
+package com.example.demo.entity;
+
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * 按id查找的一批记录，代替批量接口里的Map<Long, TestRecord>
+ * 开放寻址(线性探测)，id存在long[]里，查找和放入都不装箱，也没有Entry对象；
+ * 同一个id再放一次会覆盖。只在单个请求内部使用，不是线程安全的
+ */
+public final class TestRecordBatch implements Iterable<TestRecord> {
+
+    private long[] ids;
+
+    private TestRecord[] rows;
+
+    private int mask;
+
+    private int size;
+
+    public TestRecordBatch(int expectedSize) {
+        int capacity = Integer.highestOneBit(Math.max(expectedSize, 2) * 2 - 1) << 1;
+        ids = new long[capacity];
+        rows = new TestRecord[capacity];
+        mask = capacity - 1;
+    }
+
+    public void add(TestRecord row) {
+        if((size + 1) * 2 > rows.length) {
+            resize();
+        }
+        int index = indexOf(row.getId());
+        if(rows[index] == null) {
+            ids[index] = row.getId();
+            size++;
+        }
+        rows[index] = row;
+    }
+
+    /**
+     * @return 没有时返回null
+     */
+    public TestRecord get(long id) {
+        return rows[indexOf(id)];
+    }
+
+    public boolean contains(long id) {
+        return get(id) != null;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public Iterator<TestRecord> iterator() {
+        return new Iterator<TestRecord>() {
+            private int next = advance(0);
+
+            private int advance(int from) {
+                while(from < rows.length && rows[from] == null) {
+                    from++;
+                }
+                return from;
+            }
+
+            @Override
+            public boolean hasNext() {
+                return next < rows.length;
+            }
+
+            @Override
+            public TestRecord next() {
+                if(next >= rows.length) {
+                    throw new NoSuchElementException();
+                }
+                TestRecord row = rows[next];
+                next = advance(next + 1);
+                return row;
+            }
+        };
+    }
+
+    /**
+     * id的低位是槽，同一张分表的id低位相同，先打散再取模
+     */
+    private int indexOf(long id) {
+        long hash = id * 0x9E3779B97F4A7C15L;
+        int index = (int) (hash ^ (hash >>> 32)) & mask;
+        while(rows[index] != null && ids[index] != id) {
+            index = (index + 1) & mask;
+        }
+        return index;
+    }
+
+    private void resize() {
+        TestRecord[] old = rows;
+        ids = new long[old.length * 2];
+        rows = new TestRecord[old.length * 2];
+        mask = rows.length - 1;
+        for(TestRecord row : old) {
+            if(row != null) {
+                int index = indexOf(row.getId());
+                ids[index] = row.getId();
+                rows[index] = row;
+            }
+        }
+    }
+}
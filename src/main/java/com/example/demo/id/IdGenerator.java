@@ -0,0 +1,17 @@
+package com.example.demo.id;
+
+/**
+ * 全局id生成器
+ * 生成的id低ShardRouter.SLOT_BITS位必须是传入的槽，读写时靠它定位分表
+ */
+public interface IdGenerator {
+
+    long nextId(int slot);
+
+    /**
+     * id的生成时间(毫秒)，id里没有时间信息时返回-1
+     */
+    default long createdAt(long id) {
+        return -1;
+    }
+}
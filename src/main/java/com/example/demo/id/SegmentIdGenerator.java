@@ -0,0 +1,134 @@
+package com.example.demo.id;
+
+import com.example.demo.shard.ShardIds;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+/**
+ * 号段模式id(参考美团Leaf-segment)
+ * 每次从id_alloc表领取一段[start, end)，在内存里用CAS逐个发放，id = 号段里的值 << SLOT_BITS | 槽。
+ * 双buffer：当前号段用掉prefetchRatio之后，后台线程提前领取下一段，
+ * 当前号段用完时直接切换，正常情况下发号不会等数据库；只有预取失败或者跟不上时才同步领取。
+ * 号段只在本节点内存里，重启后没用完的部分作废，id不连续但不会重复
+ */
+public class SegmentIdGenerator implements IdGenerator, AutoCloseable {
+
+    private static Log logger = LogFactory.getLog(SegmentIdGenerator.class);
+
+    private final Supplier<long[]> allocator;
+
+    private final double prefetchRatio;
+
+    private final long loadTimeoutMillis;
+
+    private final ExecutorService loader = Executors.newSingleThreadExecutor(r -> {
+        Thread thread = new Thread(r, "id-segment-loader");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private volatile Segment current;
+
+    //正在预取或者已经取到的下一段，切换时取走
+    private volatile Future<Segment> next;
+
+    private final AtomicLong segments = new AtomicLong();
+
+    private static final class Segment {
+        private final long end;
+        private final long prefetchAt;
+        private final AtomicLong cursor;
+
+        Segment(long start, long end, double prefetchRatio) {
+            this.end = end;
+            this.prefetchAt = start + (long) ((end - start) * prefetchRatio);
+            this.cursor = new AtomicLong(start);
+        }
+    }
+
+    /**
+     * @param allocator 领取一个新号段，返回{start, end}，多个节点领到的号段不能重叠
+     * @param prefetchRatio 当前号段用掉多少比例后开始预取下一段
+     * @param loadTimeoutMillis 当前号段用完、等待下一段的最长时间
+     */
+    public SegmentIdGenerator(Supplier<long[]> allocator, double prefetchRatio, long loadTimeoutMillis) {
+        this.allocator = allocator;
+        this.prefetchRatio = prefetchRatio;
+        this.loadTimeoutMillis = loadTimeoutMillis;
+        this.current = allocate();
+    }
+
+    @Override
+    public long nextId(int slot) {
+        for(;;) {
+            Segment segment = current;
+            long value = segment.cursor.getAndIncrement();
+            if(value < segment.end) {
+                if(value == segment.prefetchAt) {
+                    //只有恰好拿到这个值的线程触发预取
+                    prefetch();
+                }
+                return ShardIds.compose(value, slot);
+            }
+            switchFrom(segment);
+        }
+    }
+
+    public long segments() {
+        return segments.get();
+    }
+
+    private void prefetch() {
+        synchronized (this) {
+            if(next == null) {
+                next = loader.submit(this::allocate);
+            }
+        }
+    }
+
+    private synchronized void switchFrom(Segment exhausted) {
+        if(current != exhausted) {
+            //别的线程已经切换过了
+            return;
+        }
+        Future<Segment> future = next;
+        next = null;
+        if(future != null) {
+            try {
+                current = future.get(loadTimeoutMillis, TimeUnit.MILLISECONDS);
+                return;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("等待号段时被中断", e);
+            } catch (ExecutionException | TimeoutException e) {
+                future.cancel(true);
+                logger.error("预取号段失败，改为同步领取", e);
+            }
+        }
+        current = allocate();
+    }
+
+    private Segment allocate() {
+        long[] range = allocator.get();
+        if(range[1] <= range[0]) {
+            throw new IllegalStateException("号段为空：" + range[0] + "-" + range[1]);
+        }
+        segments.incrementAndGet();
+        logger.info("领取号段[" + range[0] + ", " + range[1] + ")");
+        return new Segment(range[0], range[1], prefetchRatio);
+    }
+
+    @Override
+    public void close() {
+        loader.shutdownNow();
+    }
+}
@@ -0,0 +1,129 @@
+package com.example.demo.id;
+
+import com.example.demo.shard.ShardIds;
+import com.example.demo.shard.ShardRouter;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * 雪花算法id
+ * 位分布(共63位)：41位毫秒时间戳 | 5位机器号 | 7位序列号 | 10位槽
+ * 高位是时间，同一张分表里的id基本递增，插入落在B+树右侧，不会像随机uuid那样造成页分裂。
+ *
+ * 每个槽单独一个序列号，状态是 (上次的毫秒数 << 7 | 序列号)，用CAS更新，不加锁；
+ * 每个槽每毫秒128个，整个节点每秒可以生成上亿个id。
+ *
+ * 时钟回拨：回拨在maxBackwardMillis以内时继续沿用上次的毫秒数，序列号用完就等时钟追上来；
+ * 超过这个范围直接抛异常，避免生成重复id。
+ * 机器号从id_worker表租用时，租约失效后同样拒绝生成id
+ */
+public class SnowflakeIdGenerator implements IdGenerator, AutoCloseable {
+
+    //2020-01-01 00:00:00 UTC
+    public static final long EPOCH = 1577836800000L;
+
+    public static final int WORKER_BITS = 5;
+
+    public static final int SEQUENCE_BITS = 7;
+
+    public static final int MAX_WORKER_ID = (1 << WORKER_BITS) - 1;
+
+    private static final long SEQUENCE_MASK = (1 << SEQUENCE_BITS) - 1;
+
+    private static final int WORKER_SHIFT = SEQUENCE_BITS + ShardRouter.SLOT_BITS;
+
+    private static final int TIMESTAMP_SHIFT = WORKER_BITS + WORKER_SHIFT;
+
+    private final long workerId;
+
+    private final long maxBackwardMillis;
+
+    //显式配置机器号时为null
+    private final WorkerIdLease lease;
+
+    private final AtomicLongArray states = new AtomicLongArray(ShardRouter.SLOT_COUNT);
+
+    public SnowflakeIdGenerator(int workerId, long maxBackwardMillis) {
+        this(workerId, maxBackwardMillis, null);
+    }
+
+    public SnowflakeIdGenerator(WorkerIdLease lease, long maxBackwardMillis) {
+        this(lease.workerId(), maxBackwardMillis, lease);
+    }
+
+    private SnowflakeIdGenerator(int workerId, long maxBackwardMillis, WorkerIdLease lease) {
+        if(workerId < 0 || workerId > MAX_WORKER_ID) {
+            throw new IllegalArgumentException("workerId必须在0到" + MAX_WORKER_ID + "之间！");
+        }
+        this.workerId = workerId;
+        this.maxBackwardMillis = maxBackwardMillis;
+        this.lease = lease;
+    }
+
+    @Override
+    public long nextId(int slot) {
+        if(lease != null && !lease.valid()) {
+            throw new IllegalStateException("机器号" + workerId + "的租约已失效，拒绝生成id！");
+        }
+        for(;;) {
+            long state = states.get(slot);
+            long last = state >>> SEQUENCE_BITS;
+            long now = System.currentTimeMillis() - EPOCH;
+            long next;
+            if(now > last) {
+                next = now << SEQUENCE_BITS;
+            } else if(last - now > maxBackwardMillis) {
+                throw new IllegalStateException("时钟回拨了" + (last - now) + "ms，拒绝生成id！");
+            } else if((state & SEQUENCE_MASK) < SEQUENCE_MASK) {
+                //同一毫秒或小幅回拨，沿用上次的毫秒数，序列号加一
+                next = state + 1;
+            } else {
+                //这一毫秒的序列号用完了，等到下一毫秒
+                waitUntilAfter(last);
+                continue;
+            }
+            if(states.compareAndSet(slot, state, next)) {
+                long timestamp = next >>> SEQUENCE_BITS;
+                long sequence = next & SEQUENCE_MASK;
+                return ShardIds.compose((timestamp << (TIMESTAMP_SHIFT - ShardRouter.SLOT_BITS))
+                        | (workerId << (WORKER_SHIFT - ShardRouter.SLOT_BITS))
+                        | sequence, slot);
+            }
+        }
+    }
+
+    @Override
+    public long createdAt(long id) {
+        return timestampOf(id);
+    }
+
+    public int getWorkerId() {
+        return (int) workerId;
+    }
+
+    @Override
+    public void close() {
+        if(lease != null) {
+            lease.close();
+        }
+    }
+
+    public static long timestampOf(long id) {
+        return (id >>> TIMESTAMP_SHIFT) + EPOCH;
+    }
+
+    private void waitUntilAfter(long last) {
+        long behind = last - (System.currentTimeMillis() - EPOCH);
+        if(behind > 0) {
+            try {
+                TimeUnit.MILLISECONDS.sleep(behind);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("等待时钟时被中断", e);
+            }
+        } else {
+            Thread.yield();
+        }
+    }
+}
@@ -0,0 +1,98 @@
+package com.example.demo.id;
+
+import com.example.demo.mapper.IdWorkerMapper;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.lang.management.ManagementFactory;
+import java.util.UUID;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 从id_worker表租用雪花算法的机器号，多个节点不用各自配置也不会拿到同一个
+ * 启动时依次尝试0..maxWorkerId，占到第一个空闲的；之后每隔ttl/3续租一次。
+ * 续租失败时租约在本地到期后valid()返回false，生成id的一方应当拒绝发号，
+ * 避免租约过期被其它节点拿走之后两边用同一个机器号
+ */
+public class WorkerIdLease implements AutoCloseable {
+
+    private static Log logger = LogFactory.getLog(WorkerIdLease.class);
+
+    private final IdWorkerMapper idWorkerMapper;
+
+    private final String owner;
+
+    private final long ttlSeconds;
+
+    private final int workerId;
+
+    //本地nanoTime下的到期时间，按发出续租请求的时间算，不会晚于数据库里的到期时间
+    private volatile long validUntil;
+
+    private volatile boolean lost;
+
+    private final ScheduledExecutorService renewer = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "id-worker-lease");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    public WorkerIdLease(IdWorkerMapper idWorkerMapper, int maxWorkerId, long ttlSeconds) {
+        if(ttlSeconds < 3) {
+            throw new IllegalArgumentException("ttlSeconds不能小于3！");
+        }
+        this.idWorkerMapper = idWorkerMapper;
+        this.owner = ManagementFactory.getRuntimeMXBean().getName() + "/" + UUID.randomUUID();
+        this.ttlSeconds = ttlSeconds;
+        int acquired = -1;
+        for(int id = 0; id <= maxWorkerId && acquired < 0; id++) {
+            long sent = System.nanoTime();
+            if(idWorkerMapper.acquire(id, owner, ttlSeconds) > 0) {
+                acquired = id;
+                validUntil = sent + TimeUnit.SECONDS.toNanos(ttlSeconds);
+            }
+        }
+        if(acquired < 0) {
+            renewer.shutdown();
+            throw new IllegalStateException("id_worker表里的机器号都被占用，无法启动！");
+        }
+        this.workerId = acquired;
+        long period = TimeUnit.SECONDS.toMillis(ttlSeconds) / 3;
+        renewer.scheduleWithFixedDelay(this::renew, period, period, TimeUnit.MILLISECONDS);
+        logger.info("租用机器号" + workerId + "，owner=" + owner);
+    }
+
+    public int workerId() {
+        return workerId;
+    }
+
+    public boolean valid() {
+        return !lost && System.nanoTime() - validUntil < 0;
+    }
+
+    private void renew() {
+        long sent = System.nanoTime();
+        try {
+            if(idWorkerMapper.renew(workerId, owner, ttlSeconds) > 0) {
+                validUntil = sent + TimeUnit.SECONDS.toNanos(ttlSeconds);
+            } else {
+                lost = true;
+                logger.error("机器号" + workerId + "的租约已被其它节点占用，停止生成id");
+            }
+        } catch (RuntimeException e) {
+            logger.error("机器号" + workerId + "续租失败，租约到期前会继续重试", e);
+        }
+    }
+
+    @Override
+    public void close() {
+        renewer.shutdownNow();
+        try {
+            idWorkerMapper.release(workerId, owner);
+        } catch (RuntimeException e) {
+            logger.warn("释放机器号" + workerId + "失败，等租约自然过期", e);
+        }
+    }
+}
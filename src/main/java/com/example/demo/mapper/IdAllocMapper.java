@@ -0,0 +1,16 @@
+package com.example.demo.mapper;
+
+import com.example.demo.entity.IdAlloc;
+import org.apache.ibatis.annotations.Param;
+
+public interface IdAllocMapper {
+
+    /**
+     * max_id加一个step，行锁保证多个节点领到的号段不重叠
+     * @param bizTag
+     * @return 0表示没有这个bizTag
+     */
+    int increaseMaxId(@Param("bizTag") String bizTag);
+
+    IdAlloc getIdAlloc(@Param("bizTag") String bizTag);
+}
@@ -0,0 +1,24 @@
+package com.example.demo.mapper;
+
+import org.apache.ibatis.annotations.Param;
+
+public interface IdWorkerMapper {
+
+    /**
+     * 机器号空闲(租约已过期)或本来就是自己的时占用，到期时间按数据库的时间算，各节点的时钟不用一致
+     * @return 0表示被其它节点占用
+     */
+    int acquire(@Param("workerId") int workerId,
+                @Param("owner") String owner,
+                @Param("ttlSeconds") long ttlSeconds);
+
+    /**
+     * @return 0表示租约已经被其它节点拿走
+     */
+    int renew(@Param("workerId") int workerId,
+              @Param("owner") String owner,
+              @Param("ttlSeconds") long ttlSeconds);
+
+    int release(@Param("workerId") int workerId,
+                @Param("owner") String owner);
+}
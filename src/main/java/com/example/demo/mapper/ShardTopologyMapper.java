@@ -0,0 +1,20 @@
+package com.example.demo.mapper;
+
+import org.apache.ibatis.annotations.Param;
+
+public interface ShardTopologyMapper {
+
+    /**
+     * 还没有记录时按配置插入，已有时不变；两个节点同时插入时后一个报主键冲突
+     */
+    int init(@Param("shardCount") int shardCount);
+
+    Integer getShardCount();
+
+    /**
+     * 库里的分表数还是expected时才修改
+     * @return 0表示已经被别人改过
+     */
+    int updateShardCount(@Param("expected") int expected,
+                         @Param("shardCount") int shardCount);
+}
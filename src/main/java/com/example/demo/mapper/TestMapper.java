@@ -1,23 +1,146 @@
 package com.example.demo.mapper;
 
+import com.example.demo.entity.TestRecord;
 import org.apache.ibatis.annotations.Param;
+import org.apache.ibatis.session.ResultHandler;
 
-import java.util.Map;
+import java.util.List;
 
 public interface TestMapper {
 
     int saveTableTest(@Param("table") String table,
+                      @Param("id") Long id,
                       @Param("key") String key,
                       @Param("value") String value);
 
-    int saveTest(@Param("key") String key,
-                 @Param("value") String value);
+    /**
+     * 多行插入，一条insert语句写入同一张分表的多条记录
+     * @param table 分表名
+     * @param list id已经分配好的记录
+     * @return
+     */
+    int batchSaveTableTest(@Param("table") String table,
+                           @Param("list") List<TestRecord> list);
 
-    int updateTest(@Param("key") String key,
+    /**
+     * 迁移用，按id覆盖写入，已存在的行改成传入的key、value、version
+     * @param table 分表名
+     * @param list 从旧分表读出的完整记录
+     * @return
+     */
+    int upsertTests(@Param("table") String table,
+                    @Param("list") List<TestRecord> list);
+
+    int updateTest(@Param("table") String table,
+                   @Param("key") String key,
                    @Param("value") String value,
-                   @Param("id") Integer id);
+                   @Param("id") Long id);
+
+    /**
+     * 同一张分表的多条记录用一条update修改
+     * @param table 分表名
+     * @param list 要修改的id和新的key、value
+     * @return
+     */
+    int batchUpdateTest(@Param("table") String table,
+                        @Param("list") List<TestRecord> list);
+
+    /**
+     * 乐观锁修改，version与库里一致时才修改并把version加一
+     * @return 0表示记录不存在或版本已变
+     */
+    int casUpdateTest(@Param("table") String table,
+                      @Param("key") String key,
+                      @Param("value") String value,
+                      @Param("id") Long id,
+                      @Param("version") Integer version);
+
+    TestRecord getTest(@Param("table") String table,
+                       @Param("id") Long id);
+
+    /**
+     * 按id批量查询同一张分表
+     * @param table 分表名
+     * @param ids 都属于这张分表的id
+     * @return 存在的记录，顺序不保证
+     */
+    List<TestRecord> getTests(@Param("table") String table,
+                              @Param("ids") List<Long> ids);
+
+    int delTest(@Param("table") String table,
+                @Param("id") Long id);
+
+    /**
+     * 迁移用，批量删除
+     * @param table 分表名
+     * @param ids
+     * @return
+     */
+    int delTests(@Param("table") String table,
+                 @Param("ids") List<Long> ids);
+
+    /**
+     * 旧id迁移用，删除按id路由不属于这张表的行，参数名不是ids，不做路由检查
+     * @param table 分表名
+     * @param misroutedIds
+     * @return
+     */
+    int delMisroutedTests(@Param("table") String table,
+                          @Param("misroutedIds") List<Long> misroutedIds);
+
+    long countTest(@Param("table") String table);
+
+    /**
+     * 按id游标分页，走主键范围扫描，翻到多深每页的代价都一样
+     * @param table 分表名
+     * @param afterId 只返回大于这个id的记录
+     * @param limit 最多返回的行数
+     * @return 按id升序
+     */
+    List<TestRecord> listTest(@Param("table") String table,
+                              @Param("afterId") long afterId,
+                              @Param("limit") int limit);
+
+    /**
+     * 按key精确匹配或前缀匹配
+     * @param table 分表名
+     * @param key 前缀匹配时已转义%和_
+     * @param prefix 是否前缀匹配
+     * @param limit 最多返回的行数
+     * @return
+     */
+    List<TestRecord> searchTest(@Param("table") String table,
+                                @Param("key") String key,
+                                @Param("prefix") boolean prefix,
+                                @Param("limit") int limit);
+
+    /**
+     * 按id游标分块读取id，构建布隆过滤器用
+     * @param table 分表名
+     * @param afterId 只返回大于这个id的记录
+     * @param limit 最多返回的行数
+     * @return 升序
+     */
+    List<Long> scanIds(@Param("table") String table,
+                       @Param("afterId") long afterId,
+                       @Param("limit") int limit);
 
-    Map<String, Object> getTest(@Param("id") Integer id);
+    /**
+     * 按id游标分块读取id和key，value为null，构建key索引用
+     * 不依赖mysql驱动的流式读取，其它数据库上也能逐块扫完整张表
+     * @param table 分表名
+     * @param afterId 只返回大于这个id的记录
+     * @param limit 最多返回的行数
+     * @return 按id升序
+     */
+    List<TestRecord> scanKeys(@Param("table") String table,
+                              @Param("afterId") long afterId,
+                              @Param("limit") int limit);
 
-    int delTest(@Param("id") Integer id);
+    /**
+     * 流式扫描分表的全部记录
+     * @param table 分表名
+     * @param handler 每读到一行回调一次
+     */
+    void scanTable(@Param("table") String table, ResultHandler<TestRecord> handler);
 }
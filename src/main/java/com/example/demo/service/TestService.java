@@ -1,19 +1,208 @@
 package com.example.demo.service;
 
+import com.example.demo.entity.TestRecord;
 import org.springframework.stereotype.Service;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.List;
 import java.util.Map;
+import java.util.function.Consumer;
 
 @Service
 public interface TestService {
 
-    int testSplitTable();
+    /**
+     * 生成count条随机记录批量写入
+     * @param count 1到test.split-table.max-count之间
+     * @return 写入的行数
+     */
+    int testSplitTable(int count);
 
-    int saveTest(String key, String vlaue);
+    /**
+     * 批量写入，按分表分组后每张表一条多行insert
+     * @param rows 只需要key、value，id在这里分配，传入的列表不会被修改
+     * @return 写入的行数
+     */
+    int saveTableTests(List<TestRecord> rows);
 
-    int updateTest(String key, String vlaue, Integer id);
+    /**
+     * 单条写入
+     * @return 全局id，低位编码了所属的槽
+     */
+    long saveTest(String key, String vlaue);
 
-    Map<String, Object> getTest(int id);
+    /**
+     * @param version 为空时直接覆盖(开启合并写时异步写入)；不为空时按乐观锁修改，版本不一致抛ConflictException
+     * @return 修改的行数，记录不存在时为0
+     */
+    int updateTest(String key, String vlaue, long id, Integer version);
 
-    int delTest(int id);
+    TestRecord getTest(long id);
+
+    /**
+     * 批量按id查询，先查本地缓存，未命中的按分表分组，每张分表一条where id in并行查询
+     * @param ids
+     * @return 与ids一一对应，不存在的位置为null
+     */
+    List<TestRecord> getTests(List<Long> ids);
+
+    int delTest(long id);
+
+    /**
+     * 流式导出分表的全部记录，逐行回调，不在内存中攒整张表
+     * @param shards 要导出的分表，为空时导出全部
+     * @param parallel 是否多张分表并行导出，并行时rowConsumer会被多个线程调用
+     * @param rowConsumer
+     * @return 每张分表导出的行数
+     */
+    Map<Integer, Long> exportTest(List<Integer> shards, boolean parallel, Consumer<TestRecord> rowConsumer);
+
+    /**
+     * 从输入流逐行导入，每张分表一个装载线程批量写入
+     * @param in
+     * @param format csv(key,value)或ndjson
+     * @return 导入的行数、耗时、吞吐量；出错时status为failed，之前写入的行不回滚
+     */
+    Map<String, Object> importTest(InputStream in, String format) throws IOException;
+
+    /**
+     * 当前或最近一次导入的进度
+     * @return
+     */
+    Map<String, Object> importProgress();
+
+    /**
+     * 所有分表并行按key查询，哪张分表先查完先回调哪张，超时的分表不再等待
+     * @param key
+     * @param prefix 是否按前缀匹配
+     * @param limit 每张分表最多返回的行数，1到1000
+     * @param timeoutMillis 等待分表结果的最长时间
+     * @param shardConsumer 每张分表的结果：shard、table、rows
+     * @return 汇总：是否只有部分结果(partial)、超时和失败的分表
+     */
+    Map<String, Object> searchTest(String key, boolean prefix, int limit, long timeoutMillis,
+                                   Consumer<Map<String, Object>> shardConsumer);
+
+    /**
+     * 分表路由的槽分布，传入目标分表数时附带扩缩容需要迁移的槽
+     * @param targetShardCount
+     * @return
+     */
+    Map<String, Object> shardDistribution(Integer targetShardCount);
+
+    /**
+     * 异步写缓冲的计数，未开启时返回enabled=false
+     * @return
+     */
+    Map<String, Object> writeBehindStats();
+
+    /**
+     * 组提交的计数，未开启时返回enabled=false
+     * @return
+     */
+    Map<String, Object> groupCommitStats();
+
+    /**
+     * 按id升序分页列出所有分表的记录
+     * 每张分表按自己的游标位置走主键范围扫描，再按id多路归并
+     * @param afterId 第一页的起点，cursor不为空时忽略
+     * @param cursor 上一页返回的next
+     * @param limit 每页行数
+     * @return rows、下一页的游标next、是否还有下一页hasMore
+     */
+    Map<String, Object> listTest(long afterId, String cursor, int limit);
+
+    /**
+     * 分表数量变化后在后台迁移归属改变的记录，立即返回
+     * @param targetShardCount 新的分表数量，对应的分表需要事先建好
+     * @param rowsPerSecond 每秒最多扫描的行数，为null时按配置
+     * @return 初始进度
+     */
+    Map<String, Object> rebalance(int targetShardCount, Double rowsPerSecond);
+
+    /**
+     * 迁移的阶段、已扫描/复制/修复/删除的行数、速率和本阶段预计剩余时间
+     * @return
+     */
+    Map<String, Object> rebalanceProgress();
+
+    Map<String, Object> rebalanceThrottle(double rowsPerSecond);
+
+    /**
+     * 切换路由之前可以取消，已复制的副本会被删掉
+     * @return
+     */
+    Map<String, Object> rebalanceCancel();
+
+    /**
+     * 把id里的槽没有编码之前写入的旧记录换成新id，搬到新id所属的分表
+     * @return 迁移的行数和旧id到新id的对应关系
+     */
+    Map<String, Object> migrateLegacyIds();
+
+    /**
+     * updateTest合并写的计数，未开启时返回enabled=false
+     * @return
+     */
+    Map<String, Object> updateCoalesceStats();
+
+    /**
+     * 各分表的热点id(count-min sketch估计值)和访问占比
+     * @param limit 每张分表最多返回的个数
+     * @return
+     */
+    Map<String, Object> hotKeys(int limit);
+
+    /**
+     * 按key查询，key索引构建完成后不查库找id，否则各分表按key查
+     * @param key
+     * @return 最多1000行
+     */
+    List<TestRecord> getTestsByKey(String key);
+
+    /**
+     * 按key、id升序分页扫描有序索引，prefix和from、to二选一
+     * @param prefix key前缀
+     * @param from key下界(含)
+     * @param to key上界(不含)
+     * @param afterKey 上一页返回的nextKey
+     * @param afterId 上一页返回的nextId
+     * @param limit 每页行数
+     * @return rows、nextKey、nextId、是否还有下一页hasMore
+     */
+    Map<String, Object> scanKeys(String prefix, String from, String to, String afterKey, Long afterId, int limit);
+
+    /**
+     * key是否存在，以及结果来自索引还是查库
+     * @param key
+     * @return
+     */
+    Map<String, Object> existsKey(String key);
+
+    /**
+     * key索引的构建状态、条数和估算的内存占用
+     * @return
+     */
+    Map<String, Object> keyIndexStats();
+
+    Map<String, Object> keyIndexRebuild();
+
+    /**
+     * 各分表舱壁的占用、排队和拒绝次数
+     * @return
+     */
+    Map<String, Object> bulkheadStats();
+
+    /**
+     * getTest本地缓存的命中、未命中、淘汰次数
+     * @return
+     */
+    Map<String, Object> cacheStats();
+
+    /**
+     * 各分表布隆过滤器的状态、内存占用和拦截次数
+     * @return
+     */
+    Map<String, Object> bloomFilterStats();
 }
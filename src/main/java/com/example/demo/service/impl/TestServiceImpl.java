@@ -1,52 +1,772 @@
 package com.example.demo.service.impl;
 
+import com.example.demo.entity.ChangeEvent;
+import com.example.demo.entity.TestRecord;
+import com.example.demo.entity.TestRecordBatch;
+import com.example.demo.exception.BadRequestException;
+import com.example.demo.exception.ConflictException;
+import com.example.demo.exception.ServiceUnavailableException;
+import com.example.demo.id.IdGenerator;
 import com.example.demo.mapper.TestMapper;
 import com.example.demo.service.TestService;
+import com.example.demo.shard.RequestDeadline;
+import com.example.demo.shard.ShardBatchWriter;
+import com.example.demo.shard.ShardBulkhead;
+import com.example.demo.shard.ShardCursor;
+import com.example.demo.shard.ShardRouter;
+import com.example.demo.shard.SwitchableShardRouter;
+import com.example.demo.support.ChangeEventRing;
+import com.example.demo.support.GroupCommitWriter;
+import com.example.demo.support.HotKeyTracker;
+import com.example.demo.support.LegacyIdMigrator;
+import com.example.demo.support.ShardRebalancer;
+import com.example.demo.support.TestBloomFilter;
+import com.example.demo.support.TestCache;
+import com.example.demo.support.TestImporter;
+import com.example.demo.support.TestKeyIndex;
+import com.example.demo.support.UpdateCoalescer;
+import com.example.demo.support.WriteBehindBuffer;
 import com.example.demo.util.Utils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
 import org.springframework.util.StringUtils;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
+import java.util.function.Consumer;
+import java.util.function.LongFunction;
 
 @Service
 public class TestServiceImpl implements TestService {
 
+    private static Log logger = LogFactory.getLog(TestServiceImpl.class);
+
+    private static final int MAX_LIST_LIMIT = 1000;
+
     @Autowired
     private TestMapper testMapper;
 
+    @Autowired
+    private SwitchableShardRouter shardRouter;
+
+    @Autowired
+    private IdGenerator idGenerator;
+
+    @Autowired
+    private ShardBatchWriter shardBatchWriter;
+
+    @Autowired
+    private TestCache testCache;
+
+    @Autowired
+    private TestBloomFilter testBloomFilter;
+
+    @Autowired
+    private TestImporter testImporter;
+
+    @Autowired
+    private HotKeyTracker hotKeyTracker;
+
+    @Autowired
+    private ChangeEventRing changeEventRing;
+
+    @Autowired
+    private ShardRebalancer shardRebalancer;
+
+    @Autowired
+    private LegacyIdMigrator legacyIdMigrator;
+
+    @Autowired
+    private ShardBulkhead shardBulkhead;
+
+    @Autowired
+    private TestKeyIndex testKeyIndex;
+
+    /**
+     * test.update-coalesce.enabled=true时才有，不带版本号的updateTest合并后异步写入
+     */
+    @Autowired(required = false)
+    private UpdateCoalescer updateCoalescer;
+
+    @Autowired
+    @Qualifier("shardQueryExecutor")
+    private ExecutorService shardQueryExecutor;
+
+    @Autowired
+    @Qualifier("shardScanExecutor")
+    private ExecutorService shardScanExecutor;
+
+    /**
+     * test.write-behind.enabled=true时才有，saveTest改为异步写入
+     */
+    @Autowired(required = false)
+    private WriteBehindBuffer writeBehindBuffer;
+
+    /**
+     * test.group-commit.enabled=true时才有，并发写入合并提交，仍然等提交完成才返回
+     */
+    @Autowired(required = false)
+    private GroupCommitWriter groupCommitWriter;
+
+    @Value("${test.split-table.max-count:100000}")
+    private int maxSplitTableCount;
+
     @Override
-    public int testSplitTable() {
+    public int testSplitTable(int count) {
+        if(count < 1 || count > maxSplitTableCount) {
+            throw new BadRequestException("count必须在1到" + maxSplitTableCount + "之间！");
+        }
+        List<TestRecord> rows = new ArrayList<>(count);
         String uuid = null;
-        int num = 0;
-        for(int i=0; i<6; i++) {
+        for(int i=0; i<count; i++) {
             uuid = Utils.generateUUID();
-            System.out.println(uuid);
             if(!StringUtils.isEmpty(uuid)) {
-                num = Integer.parseInt(String.valueOf(uuid.charAt(0)), 16) % 3;
-                testMapper.saveTableTest("test_"+num, uuid, "test");
+                rows.add(TestRecord.of(uuid, "test"));
+            }
+        }
+        return saveTableTests(rows);
+    }
+
+    @Override
+    public int saveTableTests(List<TestRecord> rows) {
+        //不修改调用方的列表
+        List<TestRecord> withIds = new ArrayList<>(rows.size());
+        for(TestRecord row : rows) {
+            withIds.add(row.withId(nextId(row.getKey())));
+        }
+        rows = withIds;
+        int num = groupCommitWriter != null ? groupCommitWriter.write(rows) : shardBatchWriter.write(rows);
+        for(TestRecord row : rows) {
+            testKeyIndex.put(row.getId(), row.getKey());
+            changeEventRing.publish(ChangeEvent.Type.SAVE, row.getId(), row.getKey(), row.getValue());
+        }
+        return num;
+    }
+
+    @Override
+    public int updateTest(String key, String value, long id, Integer version) {
+        if(!testBloomFilter.mightContain(id)) {
+            return 0;
+        }
+        //记录始终留在写入时的槽里，修改key不会改变所在分表
+        if(version == null && updateCoalescer != null) {
+            //不存在的记录不确认；key索引和变更事件等合并写库确认这一行还在之后再更新
+            if(testCache.get(id, this::loadTest) == null) {
+                return 0;
+            }
+            updateCoalescer.submit(id, key, value);
+            return 1;
+        }
+        if(version == null) {
+            //写库到发布事件之间持有id的锁，同一个id的事件顺序和提交顺序一致
+            Lock lock = changeEventRing.lockOf(id);
+            lock.lock();
+            try {
+                int num = testMapper.updateTest(tableOfId(id), key, value, id);
+                testCache.invalidate(id);
+                if(num > 0) {
+                    testKeyIndex.put(id, key);
+                    changeEventRing.publish(ChangeEvent.Type.UPDATE, id, key, value);
+                }
+                return num;
+            } finally {
+                lock.unlock();
+            }
+        }
+        //在拿id的锁之前写入，合并写自己也要拿id的锁
+        if(updateCoalescer != null) {
+            updateCoalescer.flush(id);
+        }
+        //和AtomicStampedReference一样，带着读到的版本号去比较并修改，不加行锁等待
+        String table = tableOfId(id);
+        Lock lock = changeEventRing.lockOf(id);
+        lock.lock();
+        try {
+            int num = testMapper.casUpdateTest(table, key, value, id, version);
+            testCache.invalidate(id);
+            if(num == 0) {
+                TestRecord row = testMapper.getTest(table, id);
+                if(row != null) {
+                    throw new ConflictException("版本冲突，当前版本为" + row.getVersion());
+                }
+            } else {
+                testKeyIndex.put(id, key);
+                changeEventRing.publish(ChangeEvent.Type.UPDATE, id, key, value);
+            }
+            return num;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public long saveTest(String key, String value) {
+        long id = nextId(key);
+        if(writeBehindBuffer != null || groupCommitWriter != null) {
+            TestRecord row = new TestRecord(id, key, value, 0);
+            if(writeBehindBuffer == null) {
+                groupCommitWriter.write(Collections.singletonList(row));
+            } else if(!writeBehindBuffer.offer(row)) {
+                throw new ServiceUnavailableException("写入缓冲区已满，请稍后重试");
+            }
+        } else {
+            testMapper.saveTableTest(tableOfId(id), id, key, value);
+        }
+        testKeyIndex.put(id, key);
+        changeEventRing.publish(ChangeEvent.Type.SAVE, id, key, value);
+        return id;
+    }
+
+    @Override
+    public TestRecord getTest(long id) {
+        if(!testBloomFilter.mightContain(id)) {
+            return null;
+        }
+        TestRecord row = testCache.get(id, this::loadTest);
+        TestRecord pending = updateCoalescer == null ? null : updateCoalescer.pending(id);
+        if(row != null && pending != null) {
+            //还没写库的修改覆盖读到的值
+            row = row.withKeyValue(pending.getKey(), pending.getValue());
+        }
+        return row;
+    }
+
+    @Override
+    public List<TestRecord> getTests(List<Long> ids) {
+        if(ids.size() > MAX_LIST_LIMIT) {
+            throw new BadRequestException("一次最多查询" + MAX_LIST_LIMIT + "个id！");
+        }
+        long[] candidates = new long[ids.size()];
+        int count = 0;
+        for(Long id : ids) {
+            if(id != null && testBloomFilter.mightContain(id)) {
+                candidates[count++] = id;
+            }
+        }
+        TestRecordBatch found = testCache.getAll(Arrays.copyOf(candidates, count),
+                missing -> getTests(missing, this::tableOfId));
+        List<TestRecord> result = new ArrayList<>(ids.size());
+        for(Long id : ids) {
+            TestRecord row = id == null ? null : found.get(id);
+            TestRecord pending = row == null || updateCoalescer == null ? null : updateCoalescer.pending(id);
+            result.add(pending == null ? row : row.withKeyValue(pending.getKey(), pending.getValue()));
+        }
+        return result;
+    }
+
+    /**
+     * 按分表分组，每张分表一条where id in
+     */
+    private List<TestRecord> getTests(List<Long> ids, LongFunction<String> tableOfId) {
+        Map<String, List<Long>> tableIds = new TreeMap<>();
+        for(Long id : ids) {
+            tableIds.computeIfAbsent(tableOfId.apply(id), t -> new ArrayList<>()).add(id);
+        }
+        List<Callable<List<TestRecord>>> tasks = new ArrayList<>(tableIds.size());
+        for(Map.Entry<String, List<Long>> entry : tableIds.entrySet()) {
+            tasks.add(() -> testMapper.getTests(entry.getKey(), entry.getValue()));
+        }
+        List<TestRecord> rows = new ArrayList<>(ids.size());
+        for(List<TestRecord> tableRows : callShards(tasks)) {
+            rows.addAll(tableRows);
+        }
+        return rows;
+    }
+
+    @Override
+    public List<TestRecord> getTestsByKey(String key) {
+        long[] indexed = testKeyIndex.idsOf(key);
+        List<TestRecord> result = new ArrayList<>();
+        if(indexed == null) {
+            //索引还没构建好，各分表按key查
+            int shardCount = shardRouter.shardCount();
+            List<Callable<List<TestRecord>>> tasks = new ArrayList<>(shardCount);
+            for(int shard = 0; shard < shardCount; shard++) {
+                int finalShard = shard;
+                tasks.add(() -> owned(finalShard,
+                        testMapper.searchTest(shardRouter.tableOf(finalShard), key, false, MAX_LIST_LIMIT)));
+            }
+            for(List<TestRecord> rows : callShards(tasks)) {
+                result.addAll(rows);
+            }
+            return result;
+        }
+        List<Long> ids = new ArrayList<>(Math.min(indexed.length, MAX_LIST_LIMIT));
+        for(int i = 0; i < indexed.length && i < MAX_LIST_LIMIT; i++) {
+            ids.add(indexed[i]);
+        }
+        //索引和库之间可能有短暂的不一致，按读到的key再过滤一次
+        for(TestRecord row : getTests(ids)) {
+            if(row != null && key.equals(row.getKey())) {
+                result.add(row);
             }
         }
-        return 0;
+        return result;
     }
 
     @Override
-    public int updateTest(String key, String value, Integer id) {
-        return testMapper.updateTest(key, value, id);
+    public Map<String, Object> scanKeys(String prefix, String from, String to,
+                                        String afterKey, Long afterId, int limit) {
+        if(limit < 1 || limit > MAX_LIST_LIMIT) {
+            throw new BadRequestException("limit必须在1到" + MAX_LIST_LIMIT + "之间！");
+        }
+        if(!StringUtils.isEmpty(prefix)) {
+            if(from != null || to != null) {
+                throw new BadRequestException("prefix和from、to不能同时使用！");
+            }
+            from = prefix;
+            to = TestKeyIndex.prefixEnd(prefix);
+        }
+        if((afterKey == null) != (afterId == null)) {
+            throw new BadRequestException("afterKey和afterId要一起传！");
+        }
+        Iterator<TestKeyIndex.Entry> iterator = testKeyIndex.scan(from, to,
+                afterKey == null ? null : new TestKeyIndex.Entry(afterKey, afterId));
+        if(iterator == null) {
+            throw new ServiceUnavailableException("key索引还没有构建完成，前缀查询可以先用/test/searchTest");
+        }
+        List<TestKeyIndex.Entry> entries = new ArrayList<>(limit);
+        while(entries.size() < limit && iterator.hasNext()) {
+            entries.add(iterator.next());
+        }
+        List<Long> ids = new ArrayList<>(entries.size());
+        for(TestKeyIndex.Entry entry : entries) {
+            ids.add(entry.getId());
+        }
+        List<TestRecord> found = getTests(ids);
+        List<TestRecord> rows = new ArrayList<>(entries.size());
+        for(int i = 0; i < entries.size(); i++) {
+            //改key的过程中新旧两项都可能读到，只保留和库里一致的
+            TestRecord row = found.get(i);
+            if(row != null && entries.get(i).getKey().equals(row.getKey())) {
+                rows.add(row);
+            }
+        }
+        Map<String, Object> result = new LinkedHashMap<>();
+        result.put("rows", rows);
+        if(!entries.isEmpty()) {
+            TestKeyIndex.Entry last = entries.get(entries.size() - 1);
+            result.put("nextKey", last.getKey());
+            result.put("nextId", last.getId());
+        }
+        result.put("hasMore", iterator.hasNext());
+        return result;
     }
 
     @Override
-    public int saveTest(String key, String value) {
-        return testMapper.saveTest(key, value);
+    public Map<String, Object> existsKey(String key) {
+        Boolean indexed = testKeyIndex.contains(key);
+        Map<String, Object> result = new LinkedHashMap<>();
+        result.put("key", key);
+        result.put("exists", indexed != null ? indexed : !getTestsByKey(key).isEmpty());
+        result.put("source", indexed != null ? "index" : "database");
+        return result;
     }
 
     @Override
-    public Map<String, Object> getTest(int id) {
-        return testMapper.getTest(id);
+    public int delTest(long id) {
+        if(!testBloomFilter.mightContain(id)) {
+            return 0;
+        }
+        if(updateCoalescer != null) {
+            updateCoalescer.discard(id);
+        }
+        Lock lock = changeEventRing.lockOf(id);
+        lock.lock();
+        try {
+            int num = testMapper.delTest(tableOfId(id), id);
+            testCache.invalidate(id);
+            if(num > 0) {
+                testKeyIndex.remove(id);
+                changeEventRing.publish(ChangeEvent.Type.DELETE, id, null, null);
+            }
+            return num;
+        } finally {
+            lock.unlock();
+        }
     }
 
     @Override
-    public int delTest(int id) {
-        return testMapper.delTest(id);
+    public Map<Integer, Long> exportTest(List<Integer> shards, boolean parallel,
+                                         Consumer<TestRecord> rowConsumer) {
+        if(shards == null || shards.isEmpty()) {
+            shards = new ArrayList<>();
+            for(int shard = 0; shard < shardRouter.shardCount(); shard++) {
+                shards.add(shard);
+            }
+        }
+        Map<Integer, Long> result = new TreeMap<>();
+        if(!parallel) {
+            for(Integer shard : shards) {
+                result.put(shard, exportShard(shard, rowConsumer));
+            }
+            return result;
+        }
+        Map<Integer, Future<Long>> futures = new LinkedHashMap<>();
+        for(Integer shard : shards) {
+            futures.put(shard, shardScanExecutor.submit(() -> exportShard(shard, rowConsumer)));
+        }
+        try {
+            for(Map.Entry<Integer, Future<Long>> entry : futures.entrySet()) {
+                result.put(entry.getKey(), entry.getValue().get());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("导出被中断", e);
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("导出失败", e.getCause());
+        } finally {
+            for(Future<Long> future : futures.values()) {
+                future.cancel(true);
+            }
+        }
+        return result;
+    }
+
+    private long exportShard(int shard, Consumer<TestRecord> rowConsumer) {
+        long[] count = new long[1];
+        testMapper.scanTable(shardRouter.tableOf(shard), context -> {
+            TestRecord row = context.getResultObject();
+            if(shardRouter.shardOfId(row.getId()) == shard) {
+                rowConsumer.accept(row);
+                count[0]++;
+            }
+        });
+        return count[0];
+    }
+
+    @Override
+    public Map<String, Object> importTest(InputStream in, String format) throws IOException {
+        return testImporter.importFrom(in, format);
+    }
+
+    @Override
+    public Map<String, Object> importProgress() {
+        return testImporter.progress();
+    }
+
+    @Override
+    public Map<String, Object> searchTest(String key, boolean prefix, int limit, long timeoutMillis,
+                                          Consumer<Map<String, Object>> shardConsumer) {
+        if(limit < 1 || limit > MAX_LIST_LIMIT) {
+            throw new BadRequestException("limit必须在1到" + MAX_LIST_LIMIT + "之间！");
+        }
+        long start = System.currentTimeMillis();
+        String param = prefix ? key.replace("\\", "\\\\").replace("%", "\\%").replace("_", "\\_") : key;
+        int shardCount = shardRouter.shardCount();
+        ExecutorCompletionService<Map<String, Object>> completionService =
+                new ExecutorCompletionService<>(shardQueryExecutor);
+        Map<Future<Map<String, Object>>, Integer> futures = new HashMap<>(shardCount * 2);
+        List<Integer> failedShards = new ArrayList<>();
+        //超时的分表除了不再等待，语句本身也按截止时间设置queryTimeout
+        Long deadline = RequestDeadline.min(RequestDeadline.get(), start + timeoutMillis);
+        for(int shard = 0; shard < shardCount; shard++) {
+            int finalShard = shard;
+            try {
+                futures.put(completionService.submit(RequestDeadline.wrap(() -> {
+                    Map<String, Object> result = new LinkedHashMap<>();
+                    result.put("shard", finalShard);
+                    result.put("table", shardRouter.tableOf(finalShard));
+                    result.put("rows", owned(finalShard,
+                            testMapper.searchTest(shardRouter.tableOf(finalShard), param, prefix, limit)));
+                    return result;
+                }, deadline)), shard);
+            } catch (RejectedExecutionException e) {
+                failedShards.add(shard);
+            }
+        }
+
+        int pending = futures.size();
+        try {
+            while(pending > 0) {
+                //先完成的分表先拿到
+                Future<Map<String, Object>> future = completionService.poll(
+                        deadline - System.currentTimeMillis(), TimeUnit.MILLISECONDS);
+                if(future == null) {
+                    break;
+                }
+                pending--;
+                Integer shard = futures.remove(future);
+                try {
+                    shardConsumer.accept(future.get());
+                } catch (ExecutionException e) {
+                    logger.error("查询" + shardRouter.tableOf(shard) + "失败", e.getCause());
+                    failedShards.add(shard);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        //剩下的都是超时的分表，取消掉不再等
+        List<Integer> timedOutShards = new ArrayList<>(futures.values());
+        for(Future<Map<String, Object>> future : futures.keySet()) {
+            future.cancel(true);
+        }
+        Collections.sort(timedOutShards);
+        Collections.sort(failedShards);
+        Map<String, Object> summary = new LinkedHashMap<>();
+        summary.put("shards", shardCount);
+        summary.put("answered", shardCount - timedOutShards.size() - failedShards.size());
+        summary.put("partial", !timedOutShards.isEmpty() || !failedShards.isEmpty());
+        summary.put("timedOutShards", timedOutShards);
+        summary.put("failedShards", failedShards);
+        summary.put("elapsedMillis", System.currentTimeMillis() - start);
+        return summary;
+    }
+
+    @Override
+    public Map<String, Object> shardDistribution(Integer targetShardCount) {
+        Map<String, Object> result = shardRouter.distribution();
+        if(targetShardCount != null && targetShardCount != shardRouter.shardCount()) {
+            ShardRouter target = shardRouter.resize(targetShardCount);
+            int moved = shardRouter.movedSlots(target);
+            result.put("targetShardCount", targetShardCount);
+            result.put("movedSlots", moved);
+            result.put("movedRatio", (double) moved / ShardRouter.SLOT_COUNT);
+            result.put("target", target.distribution());
+        }
+        return result;
+    }
+
+    @Override
+    public Map<String, Object> writeBehindStats() {
+        Map<String, Object> result = new LinkedHashMap<>();
+        result.put("enabled", writeBehindBuffer != null);
+        if(writeBehindBuffer != null) {
+            result.putAll(writeBehindBuffer.stats());
+        }
+        return result;
+    }
+
+    @Override
+    public Map<String, Object> groupCommitStats() {
+        Map<String, Object> result = new LinkedHashMap<>();
+        result.put("enabled", groupCommitWriter != null);
+        if(groupCommitWriter != null) {
+            result.putAll(groupCommitWriter.stats());
+        }
+        return result;
+    }
+
+    @Override
+    public Map<String, Object> listTest(long afterId, String cursor, int limit) {
+        if(limit < 1 || limit > MAX_LIST_LIMIT) {
+            throw new BadRequestException("limit必须在1到" + MAX_LIST_LIMIT + "之间！");
+        }
+        int shardCount = shardRouter.shardCount();
+        ShardCursor position;
+        try {
+            position = StringUtils.isEmpty(cursor) ? ShardCursor.after(afterId, shardCount) : ShardCursor.decode(cursor, shardCount);
+        } catch (IllegalArgumentException e) {
+            throw new BadRequestException(e.getMessage());
+        }
+
+        //每张表最多贡献limit行，各取limit行就够归并出一页
+        List<Callable<List<TestRecord>>> tasks = new ArrayList<>(shardCount);
+        for(int shard = 0; shard < shardCount; shard++) {
+            String table = shardRouter.tableOf(shard);
+            long from = position.position(shard);
+            tasks.add(() -> testMapper.listTest(table, from, limit));
+        }
+        List<List<TestRecord>> shardRows = callShards(tasks);
+
+        //按各表当前行的id做k路归并，堆里存{id, shard, 下标}
+        PriorityQueue<long[]> heads = new PriorityQueue<>(shardCount, (a, b) -> Long.compare(a[0], b[0]));
+        for(int shard = 0; shard < shardCount; shard++) {
+            if(!shardRows.get(shard).isEmpty()) {
+                heads.add(new long[]{shardRows.get(shard).get(0).getId(), shard, 0});
+            }
+        }
+        List<TestRecord> rows = new ArrayList<>(limit);
+        long[] lastIds = new long[shardCount];
+        while(rows.size() < limit && !heads.isEmpty()) {
+            long[] head = heads.poll();
+            int shard = (int) head[1];
+            int index = (int) head[2];
+            List<TestRecord> list = shardRows.get(shard);
+            //迁移中不属于这张表的行跳过，游标照样前进
+            if(shardRouter.shardOfId(head[0]) == shard) {
+                rows.add(list.get(index));
+            }
+            lastIds[shard] = head[0];
+            if(index + 1 < list.size()) {
+                heads.add(new long[]{list.get(index + 1).getId(), shard, index + 1});
+            }
+        }
+
+        //还有没归并完的行，或者某张表取满了limit行，都说明可能还有下一页
+        boolean hasMore = !heads.isEmpty();
+        for(int shard = 0; shard < shardCount && !hasMore; shard++) {
+            hasMore = shardRows.get(shard).size() == limit;
+        }
+        Map<String, Object> result = new LinkedHashMap<>();
+        result.put("rows", rows);
+        result.put("next", position.advance(lastIds).encode());
+        result.put("hasMore", hasMore);
+        return result;
+    }
+
+    /**
+     * 每张分表一个查询，在shardQueryExecutor上并行执行，线程池满时在当前线程执行
+     * 请求的截止时间带到执行查询的线程上
+     * @return 与tasks顺序一致的结果
+     */
+    private <T> List<T> callShards(List<Callable<T>> tasks) {
+        if(tasks.size() == 1) {
+            try {
+                return Collections.singletonList(tasks.get(0).call());
+            } catch (RuntimeException e) {
+                throw e;
+            } catch (Exception e) {
+                throw new IllegalStateException(e);
+            }
+        }
+        List<Future<T>> futures = new ArrayList<>(tasks.size());
+        for(Callable<T> original : tasks) {
+            Callable<T> task = RequestDeadline.wrap(original);
+            try {
+                futures.add(shardQueryExecutor.submit(task));
+            } catch (RejectedExecutionException e) {
+                FutureTask<T> inline = new FutureTask<>(task);
+                inline.run();
+                futures.add(inline);
+            }
+        }
+        List<T> results = new ArrayList<>(tasks.size());
+        for(Future<T> future : futures) {
+            try {
+                results.add(future.get());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("分表查询被中断", e);
+            } catch (ExecutionException e) {
+                throw e.getCause() instanceof RuntimeException
+                        ? (RuntimeException) e.getCause() : new IllegalStateException(e.getCause());
+            }
+        }
+        return results;
+    }
+
+    @Override
+    public Map<String, Object> rebalance(int targetShardCount, Double rowsPerSecond) {
+        return shardRebalancer.start(targetShardCount, rowsPerSecond);
+    }
+
+    @Override
+    public Map<String, Object> rebalanceProgress() {
+        return shardRebalancer.progress();
+    }
+
+    @Override
+    public Map<String, Object> migrateLegacyIds() {
+        return legacyIdMigrator.migrate();
+    }
+
+    @Override
+    public Map<String, Object> rebalanceThrottle(double rowsPerSecond) {
+        return shardRebalancer.throttle(rowsPerSecond);
+    }
+
+    @Override
+    public Map<String, Object> rebalanceCancel() {
+        return shardRebalancer.cancel();
+    }
+
+    @Override
+    public Map<String, Object> updateCoalesceStats() {
+        Map<String, Object> result = new LinkedHashMap<>();
+        result.put("enabled", updateCoalescer != null);
+        if(updateCoalescer != null) {
+            result.putAll(updateCoalescer.stats());
+        }
+        return result;
+    }
+
+    @Override
+    public Map<String, Object> hotKeys(int limit) {
+        if(limit < 1) {
+            throw new BadRequestException("limit必须大于0！");
+        }
+        return hotKeyTracker.hotKeys(limit);
+    }
+
+    @Override
+    public Map<String, Object> bulkheadStats() {
+        return shardBulkhead.stats();
+    }
+
+    @Override
+    public Map<String, Object> keyIndexStats() {
+        return testKeyIndex.stats();
+    }
+
+    @Override
+    public Map<String, Object> keyIndexRebuild() {
+        testKeyIndex.rebuild();
+        return testKeyIndex.stats();
+    }
+
+    @Override
+    public Map<String, Object> cacheStats() {
+        return testCache.stats();
+    }
+
+    @Override
+    public Map<String, Object> bloomFilterStats() {
+        return testBloomFilter.stats();
+    }
+
+    /**
+     * 按key分配id，写库之前先放进布隆过滤器
+     */
+    private long nextId(String key) {
+        long id = idGenerator.nextId(shardRouter.slotOf(key));
+        testBloomFilter.put(id);
+        return id;
+    }
+
+    private TestRecord loadTest(long id) {
+        return testMapper.getTest(tableOfId(id), id);
+    }
+
+    private String tableOfId(long id) {
+        return shardRouter.tableOf(shardRouter.shardOfId(id));
+    }
+
+    /**
+     * 迁移中同一条记录可能同时在新旧两张表里，只保留按当前路由属于这张表的
+     */
+    private List<TestRecord> owned(int shard, List<TestRecord> rows) {
+        List<TestRecord> result = new ArrayList<>(rows.size());
+        for(TestRecord row : rows) {
+            if(shardRouter.shardOfId(row.getId()) == shard) {
+                result.add(row);
+            }
+        }
+        return result;
     }
 }
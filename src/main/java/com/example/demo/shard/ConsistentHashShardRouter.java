@@ -0,0 +1,139 @@
+package com.example.demo.shard;
+
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 基于虚拟节点的一致性哈希路由
+ * 每个分表在哈希环上放virtualNodes个虚拟节点，槽落在顺时针方向第一个虚拟节点所属的分表，
+ * 从N个分表扩到N+1个时只有约1/(N+1)的槽换了归属。
+ * 环构建完成后预先算好槽到分表的映射，路由只是一次数组访问，实例不可变，可以放心并发使用
+ */
+public class ConsistentHashShardRouter implements ShardRouter {
+
+    private static final HashFunction HASH = Hashing.murmur3_32();
+
+    private final int shardCount;
+
+    private final int virtualNodes;
+
+    //哈希环上虚拟节点的位置(无符号)，升序
+    private final long[] ringPoints;
+
+    //与ringPoints一一对应的分表下标
+    private final int[] ringOwners;
+
+    private final int[] slotShards;
+
+    public ConsistentHashShardRouter(int shardCount, int virtualNodes) {
+        if(shardCount < 1 || shardCount > SLOT_COUNT) {
+            throw new IllegalArgumentException("shardCount必须在1到" + SLOT_COUNT + "之间！");
+        }
+        if(virtualNodes < 1) {
+            throw new IllegalArgumentException("virtualNodes必须大于0！");
+        }
+        this.shardCount = shardCount;
+        this.virtualNodes = virtualNodes;
+
+        int size = shardCount * virtualNodes;
+        long[] points = new long[size];
+        for(int shard = 0, i = 0; shard < shardCount; shard++) {
+            for(int v = 0; v < virtualNodes; v++, i++) {
+                long point = hash(tableOf(shard) + "#" + v);
+                //低位存分表下标，排序后一起带出来
+                points[i] = (point << 16) | shard;
+            }
+        }
+        Arrays.sort(points);
+        this.ringPoints = new long[size];
+        this.ringOwners = new int[size];
+        for(int i = 0; i < size; i++) {
+            ringPoints[i] = points[i] >>> 16;
+            ringOwners[i] = (int) (points[i] & 0xFFFF);
+        }
+
+        this.slotShards = new int[SLOT_COUNT];
+        for(int slot = 0; slot < SLOT_COUNT; slot++) {
+            slotShards[slot] = ringOwners[ceilingIndex(slotPoint(slot))];
+        }
+    }
+
+    @Override
+    public int shardCount() {
+        return shardCount;
+    }
+
+    public int virtualNodes() {
+        return virtualNodes;
+    }
+
+    @Override
+    public int slotOf(String key) {
+        return HASH.hashString(key, StandardCharsets.UTF_8).asInt() & (SLOT_COUNT - 1);
+    }
+
+    @Override
+    public int shardOfSlot(int slot) {
+        return slotShards[slot];
+    }
+
+    @Override
+    public ConsistentHashShardRouter resize(int shardCount) {
+        return new ConsistentHashShardRouter(shardCount, virtualNodes);
+    }
+
+    @Override
+    public Map<String, Object> distribution() {
+        int[] slots = new int[shardCount];
+        for(int slot = 0; slot < SLOT_COUNT; slot++) {
+            slots[slotShards[slot]]++;
+        }
+        //每个虚拟节点负责从上一个节点到它自己这一段弧
+        long[] arcs = new long[shardCount];
+        long ring = 1L << 32;
+        for(int i = 0; i < ringPoints.length; i++) {
+            long prev = i == 0 ? ringPoints[ringPoints.length - 1] - ring : ringPoints[i - 1];
+            arcs[ringOwners[i]] += ringPoints[i] - prev;
+        }
+        List<Map<String, Object>> shards = new ArrayList<>(shardCount);
+        for(int shard = 0; shard < shardCount; shard++) {
+            Map<String, Object> item = new LinkedHashMap<>();
+            item.put("shard", shard);
+            item.put("table", tableOf(shard));
+            item.put("slots", slots[shard]);
+            item.put("slotRatio", (double) slots[shard] / SLOT_COUNT);
+            item.put("ringRatio", (double) arcs[shard] / ring);
+            shards.add(item);
+        }
+        Map<String, Object> result = new LinkedHashMap<>();
+        result.put("shardCount", shardCount);
+        result.put("virtualNodes", virtualNodes);
+        result.put("slotCount", SLOT_COUNT);
+        result.put("shards", shards);
+        return result;
+    }
+
+    private int ceilingIndex(long point) {
+        int index = Arrays.binarySearch(ringPoints, point);
+        if(index < 0) {
+            index = -index - 1;
+        }
+        //超过环上最后一个节点时回到第一个节点
+        return index == ringPoints.length ? 0 : index;
+    }
+
+    private static long slotPoint(int slot) {
+        return Integer.toUnsignedLong(HASH.hashInt(slot).asInt());
+    }
+
+    private static long hash(String value) {
+        return Integer.toUnsignedLong(HASH.hashString(value, StandardCharsets.UTF_8).asInt());
+    }
+}
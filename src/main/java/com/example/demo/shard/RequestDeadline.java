@@ -0,0 +1,67 @@
+package com.example.demo.shard;
+
+import java.util.concurrent.Callable;
+
+/**
+ * 当前线程所处请求的截止时间(毫秒时间戳)，ShardBulkheadInterceptor据此限制等待和语句超时
+ * 后台任务没有截止时间；提交到线程池的分表查询用wrap把截止时间带过去
+ */
+public class RequestDeadline {
+
+    private static final ThreadLocal<Long> CURRENT = new ThreadLocal<>();
+
+    private RequestDeadline() {
+    }
+
+    public static Long get() {
+        return CURRENT.get();
+    }
+
+    public static void set(Long deadline) {
+        if(deadline == null) {
+            CURRENT.remove();
+        } else {
+            CURRENT.set(deadline);
+        }
+    }
+
+    /**
+     * @return 剩余毫秒数，可能小于等于0；没有截止时间时为null
+     */
+    public static Long remainingMillis() {
+        Long deadline = CURRENT.get();
+        return deadline == null ? null : deadline - System.currentTimeMillis();
+    }
+
+    public static <T> Callable<T> wrap(Callable<T> task) {
+        return wrap(task, CURRENT.get());
+    }
+
+    /**
+     * 在执行task的线程上设置截止时间，执行完恢复
+     */
+    public static <T> Callable<T> wrap(Callable<T> task, Long deadline) {
+        if(deadline == null) {
+            return task;
+        }
+        return () -> {
+            Long previous = CURRENT.get();
+            set(deadline);
+            try {
+                return task.call();
+            } finally {
+                set(previous);
+            }
+        };
+    }
+
+    /**
+     * 两个截止时间中较早的一个，null表示不限
+     */
+    public static Long min(Long a, Long b) {
+        if(a == null) {
+            return b;
+        }
+        return b == null ? a : Math.min(a, b);
+    }
+}
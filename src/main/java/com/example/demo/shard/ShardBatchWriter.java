@@ -0,0 +1,109 @@
+package com.example.demo.shard;
+
+import com.example.demo.entity.TestRecord;
+import com.example.demo.mapper.TestMapper;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * 按分表分组的批量写入
+ * 每张表只发一条（或按batchSize切分的几条）多行insert
+ */
+@Component
+public class ShardBatchWriter {
+
+    @Autowired
+    private TestMapper testMapper;
+
+    @Autowired
+    private ShardRouter shardRouter;
+
+    @Autowired
+    @Qualifier("shardQueryExecutor")
+    private ExecutorService shardQueryExecutor;
+
+    /**
+     * 单条多行insert的最大行数，避免超过max_allowed_packet
+     */
+    @Value("${test.batch.size:1000}")
+    private int batchSize;
+
+    /**
+     * @param rows id已经由IdGenerator分配好的记录
+     * @return 写入的行数
+     */
+    public int write(List<TestRecord> rows) {
+        Map<String, List<TestRecord>> tableRows = groupByTable(rows);
+        if(tableRows.size() == 1) {
+            Map.Entry<String, List<TestRecord>> entry = tableRows.entrySet().iterator().next();
+            return writeTable(entry.getKey(), entry.getValue());
+        }
+        //多张分表并行写，分表在不同数据源上时各用各的连接
+        List<Future<Integer>> futures = new ArrayList<>(tableRows.size());
+        for(Map.Entry<String, List<TestRecord>> entry : tableRows.entrySet()) {
+            Callable<Integer> task = () -> writeTable(entry.getKey(), entry.getValue());
+            try {
+                futures.add(shardQueryExecutor.submit(task));
+            } catch (RejectedExecutionException e) {
+                futures.add(CompletableFuture.completedFuture(writeTable(entry.getKey(), entry.getValue())));
+            }
+        }
+        int num = 0;
+        RuntimeException error = null;
+        for(Future<Integer> future : futures) {
+            try {
+                num += future.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("批量写入被中断", e);
+            } catch (ExecutionException e) {
+                error = e.getCause() instanceof RuntimeException
+                        ? (RuntimeException) e.getCause() : new IllegalStateException(e.getCause());
+            }
+        }
+        if(error != null) {
+            throw error;
+        }
+        return num;
+    }
+
+    public Map<String, List<TestRecord>> groupByTable(List<TestRecord> rows) {
+        Map<String, List<TestRecord>> tableRows = new TreeMap<>();
+        for(TestRecord row : rows) {
+            tableRows.computeIfAbsent(tableOf(row), t -> new ArrayList<>()).add(row);
+        }
+        return tableRows;
+    }
+
+    public String tableOf(TestRecord row) {
+        return shardRouter.tableOf(shardRouter.shardOfId(row.getId()));
+    }
+
+    /**
+     * 写入同一张分表的记录
+     * @param table
+     * @param rows
+     * @return
+     */
+    public int writeTable(String table, List<TestRecord> rows) {
+        int num = 0;
+        for(int from = 0; from < rows.size(); from += batchSize) {
+            int to = Math.min(from + batchSize, rows.size());
+            num += testMapper.batchSaveTableTest(table, rows.subList(from, to));
+        }
+        return num;
+    }
+}
@@ -0,0 +1,87 @@
+package com.example.demo.shard;
+
+import com.example.demo.exception.ServiceUnavailableException;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 按分表隔离的并发上限(舱壁)
+ * 每张分表一个Semaphore，同一时间访问一张分表的语句最多maxConcurrent条，
+ * 某张分表变慢时只会占满它自己的许可，其它分表的请求和共用的tomcat线程、连接池不受拖累。
+ * 有截止时间的请求tryAcquire，最多等acquireTimeoutMillis(且不超过剩余时间)，拿不到直接失败；
+ * 后台任务没有截止时间，排队等待
+ */
+public class ShardBulkhead {
+
+    private final int maxConcurrent;
+
+    private final long acquireTimeoutMillis;
+
+    //扩缩容后分表数会变，按需创建
+    private final ConcurrentHashMap<Integer, Shard> shards = new ConcurrentHashMap<>();
+
+    private static class Shard {
+        private final Semaphore permits;
+        private final LongAdder acquired = new LongAdder();
+        private final LongAdder rejected = new LongAdder();
+
+        Shard(int maxConcurrent) {
+            this.permits = new Semaphore(maxConcurrent);
+        }
+    }
+
+    public ShardBulkhead(int maxConcurrent, long acquireTimeoutMillis) {
+        if(maxConcurrent < 1) {
+            throw new IllegalArgumentException("maxConcurrent必须大于0！");
+        }
+        this.maxConcurrent = maxConcurrent;
+        this.acquireTimeoutMillis = acquireTimeoutMillis;
+    }
+
+    /**
+     * 拿不到许可时抛出ServiceUnavailableException，拿到后必须调用release
+     * @param shard
+     */
+    public void acquire(int shard) throws InterruptedException {
+        Shard bulkhead = shards.computeIfAbsent(shard, s -> new Shard(maxConcurrent));
+        Long remaining = RequestDeadline.remainingMillis();
+        if(remaining == null) {
+            bulkhead.permits.acquire();
+        } else if(remaining <= 0 || !bulkhead.permits.tryAcquire(Math.min(acquireTimeoutMillis, remaining), TimeUnit.MILLISECONDS)) {
+            bulkhead.rejected.increment();
+            throw new ServiceUnavailableException("分表" + shard + "繁忙，请稍后重试");
+        }
+        bulkhead.acquired.increment();
+    }
+
+    public void release(int shard) {
+        shards.get(shard).permits.release();
+    }
+
+    public Map<String, Object> stats() {
+        List<Map<String, Object>> items = new ArrayList<>(shards.size());
+        for(Map.Entry<Integer, Shard> entry : new TreeMap<>(shards).entrySet()) {
+            Shard bulkhead = entry.getValue();
+            Map<String, Object> item = new LinkedHashMap<>();
+            item.put("shard", entry.getKey());
+            item.put("inUse", maxConcurrent - bulkhead.permits.availablePermits());
+            item.put("waiting", bulkhead.permits.getQueueLength());
+            item.put("acquired", bulkhead.acquired.sum());
+            item.put("rejected", bulkhead.rejected.sum());
+            items.add(item);
+        }
+        Map<String, Object> result = new LinkedHashMap<>();
+        result.put("maxConcurrent", maxConcurrent);
+        result.put("acquireTimeoutMillis", acquireTimeoutMillis);
+        result.put("shards", items);
+        return result;
+    }
+}
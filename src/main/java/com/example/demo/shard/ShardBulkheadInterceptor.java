@@ -0,0 +1,87 @@
+package com.example.demo.shard;
+
+import com.example.demo.exception.ServiceUnavailableException;
+import org.apache.ibatis.cache.CacheKey;
+import org.apache.ibatis.executor.Executor;
+import org.apache.ibatis.executor.statement.StatementHandler;
+import org.apache.ibatis.mapping.BoundSql;
+import org.apache.ibatis.mapping.MappedStatement;
+import org.apache.ibatis.plugin.Interceptor;
+import org.apache.ibatis.plugin.Intercepts;
+import org.apache.ibatis.plugin.Invocation;
+import org.apache.ibatis.plugin.Plugin;
+import org.apache.ibatis.plugin.Signature;
+import org.apache.ibatis.session.ResultHandler;
+import org.apache.ibatis.session.RowBounds;
+
+import java.sql.Connection;
+import java.sql.Statement;
+import java.util.Map;
+import java.util.Properties;
+
+/**
+ * 带table参数的语句执行期间占用该分表的舱壁许可；
+ * 语句创建之后按请求剩余的时间设置JDBC的queryTimeout，慢分表上的查询到点由驱动取消，不会一直占着连接。
+ * queryTimeout只能精确到秒，剩余不足1秒按1秒算，已经超时的请求不再执行语句
+ */
+@Intercepts({
+        @Signature(type = Executor.class, method = "update",
+                args = {MappedStatement.class, Object.class}),
+        @Signature(type = Executor.class, method = "query",
+                args = {MappedStatement.class, Object.class, RowBounds.class, ResultHandler.class}),
+        @Signature(type = Executor.class, method = "query",
+                args = {MappedStatement.class, Object.class, RowBounds.class, ResultHandler.class,
+                        CacheKey.class, BoundSql.class}),
+        @Signature(type = StatementHandler.class, method = "prepare",
+                args = {Connection.class, Integer.class})
+})
+public class ShardBulkheadInterceptor implements Interceptor {
+
+    private final ShardRouter shardRouter;
+
+    private final ShardBulkhead shardBulkhead;
+
+    public ShardBulkheadInterceptor(ShardRouter shardRouter, ShardBulkhead shardBulkhead) {
+        this.shardRouter = shardRouter;
+        this.shardBulkhead = shardBulkhead;
+    }
+
+    @Override
+    public Object intercept(Invocation invocation) throws Throwable {
+        if(invocation.getTarget() instanceof StatementHandler) {
+            Statement statement = (Statement) invocation.proceed();
+            Long remaining = RequestDeadline.remainingMillis();
+            if(remaining != null) {
+                int seconds = (int) Math.max(1, (remaining + 999) / 1000);
+                if(statement.getQueryTimeout() == 0 || seconds < statement.getQueryTimeout()) {
+                    statement.setQueryTimeout(seconds);
+                }
+            }
+            return statement;
+        }
+        Long remaining = RequestDeadline.remainingMillis();
+        if(remaining != null && remaining <= 0) {
+            throw new ServiceUnavailableException("请求已超时");
+        }
+        Object parameter = invocation.getArgs()[1];
+        if(!(parameter instanceof Map) || !((Map<?, ?>) parameter).containsKey("table")) {
+            return invocation.proceed();
+        }
+        int shard = shardRouter.shardOfTable((String) ((Map<?, ?>) parameter).get("table"));
+        shardBulkhead.acquire(shard);
+        try {
+            return invocation.proceed();
+        } finally {
+            shardBulkhead.release(shard);
+        }
+    }
+
+    @Override
+    public Object plugin(Object target) {
+        return target instanceof Executor || target instanceof StatementHandler ? Plugin.wrap(target, this) : target;
+    }
+
+    @Override
+    public void setProperties(Properties properties) {
+    }
+}
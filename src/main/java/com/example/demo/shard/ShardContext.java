@@ -0,0 +1,24 @@
+package com.example.demo.shard;
+
+/**
+ * 当前线程正在访问的分表，ShardRoutingDataSource据此选择数据源
+ */
+public class ShardContext {
+
+    private static final ThreadLocal<Integer> CURRENT = new ThreadLocal<>();
+
+    private ShardContext() {
+    }
+
+    public static Integer get() {
+        return CURRENT.get();
+    }
+
+    public static void set(Integer shard) {
+        if(shard == null) {
+            CURRENT.remove();
+        } else {
+            CURRENT.set(shard);
+        }
+    }
+}
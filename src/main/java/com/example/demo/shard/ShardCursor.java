@@ -0,0 +1,69 @@
+package com.example.demo.shard;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Base64;
+
+/**
+ * 分页游标
+ * 记录每张分表已经返回到的最大id，下一页每张表都从自己的位置往后取，
+ * 编码成url安全的base64，客户端原样带回即可
+ */
+public class ShardCursor {
+
+    private final long[] positions;
+
+    private ShardCursor(long[] positions) {
+        this.positions = positions;
+    }
+
+    /**
+     * 所有分表都从afterId之后开始
+     */
+    public static ShardCursor after(long afterId, int shardCount) {
+        long[] positions = new long[shardCount];
+        Arrays.fill(positions, afterId);
+        return new ShardCursor(positions);
+    }
+
+    /**
+     * 解析游标，分表数变了之后旧游标里的位置对不上，按过期处理；
+     * 不能退化为从最大位置之后开始，那样其它分表里更小的id会被跳过
+     */
+    public static ShardCursor decode(String token, int shardCount) {
+        long[] positions;
+        try {
+            String text = new String(Base64.getUrlDecoder().decode(token), StandardCharsets.US_ASCII);
+            positions = Arrays.stream(text.split("\\.")).mapToLong(p -> Long.parseLong(p, Character.MAX_RADIX)).toArray();
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("游标格式不正确：" + token, e);
+        }
+        if(positions.length != shardCount) {
+            throw new IllegalArgumentException("游标已过期(分表数已变化)，请重新从头分页");
+        }
+        return new ShardCursor(positions);
+    }
+
+    public String encode() {
+        StringBuilder text = new StringBuilder(positions.length * 12);
+        for(int i = 0; i < positions.length; i++) {
+            if(i > 0) {
+                text.append('.');
+            }
+            text.append(Long.toString(positions[i], Character.MAX_RADIX));
+        }
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(text.toString().getBytes(StandardCharsets.US_ASCII));
+    }
+
+    public long position(int shard) {
+        return positions[shard];
+    }
+
+    public ShardCursor advance(long[] lastIds) {
+        long[] next = positions.clone();
+        for(int i = 0; i < next.length; i++) {
+            next[i] = Math.max(next[i], lastIds[i]);
+        }
+        return new ShardCursor(next);
+    }
+}
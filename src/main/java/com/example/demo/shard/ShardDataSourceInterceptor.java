@@ -0,0 +1,62 @@
+package com.example.demo.shard;
+
+import org.apache.ibatis.cache.CacheKey;
+import org.apache.ibatis.executor.Executor;
+import org.apache.ibatis.mapping.BoundSql;
+import org.apache.ibatis.mapping.MappedStatement;
+import org.apache.ibatis.plugin.Interceptor;
+import org.apache.ibatis.plugin.Intercepts;
+import org.apache.ibatis.plugin.Invocation;
+import org.apache.ibatis.plugin.Plugin;
+import org.apache.ibatis.plugin.Signature;
+import org.apache.ibatis.session.ResultHandler;
+import org.apache.ibatis.session.RowBounds;
+
+import java.util.Map;
+import java.util.Properties;
+
+/**
+ * 按语句的table参数设置ShardContext
+ * 在Executor执行之前设置，此时还没有取连接，取连接时ShardRoutingDataSource就能选到对应分表的数据源
+ */
+@Intercepts({
+        @Signature(type = Executor.class, method = "update",
+                args = {MappedStatement.class, Object.class}),
+        @Signature(type = Executor.class, method = "query",
+                args = {MappedStatement.class, Object.class, RowBounds.class, ResultHandler.class}),
+        @Signature(type = Executor.class, method = "query",
+                args = {MappedStatement.class, Object.class, RowBounds.class, ResultHandler.class,
+                        CacheKey.class, BoundSql.class})
+})
+public class ShardDataSourceInterceptor implements Interceptor {
+
+    private final ShardRouter shardRouter;
+
+    public ShardDataSourceInterceptor(ShardRouter shardRouter) {
+        this.shardRouter = shardRouter;
+    }
+
+    @Override
+    public Object intercept(Invocation invocation) throws Throwable {
+        Object parameter = invocation.getArgs()[1];
+        if(!(parameter instanceof Map) || !((Map<?, ?>) parameter).containsKey("table")) {
+            return invocation.proceed();
+        }
+        Integer previous = ShardContext.get();
+        ShardContext.set(shardRouter.shardOfTable((String) ((Map<?, ?>) parameter).get("table")));
+        try {
+            return invocation.proceed();
+        } finally {
+            ShardContext.set(previous);
+        }
+    }
+
+    @Override
+    public Object plugin(Object target) {
+        return Plugin.wrap(target, this);
+    }
+
+    @Override
+    public void setProperties(Properties properties) {
+    }
+}
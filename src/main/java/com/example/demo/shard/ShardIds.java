@@ -0,0 +1,22 @@
+package com.example.demo.shard;
+
+/**
+ * 全局id编码
+ * 低SLOT_BITS位存放记录所属的槽，高位由id生成器决定，
+ * 拿到全局id即可算出分表，不需要逐表查找
+ */
+public class ShardIds {
+
+    private static final long SLOT_MASK = ShardRouter.SLOT_COUNT - 1;
+
+    private ShardIds() {
+    }
+
+    public static long compose(long high, int slot) {
+        return (high << ShardRouter.SLOT_BITS) | slot;
+    }
+
+    public static int slotOf(long id) {
+        return (int) (id & SLOT_MASK);
+    }
+}
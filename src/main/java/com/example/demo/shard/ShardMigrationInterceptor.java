@@ -0,0 +1,119 @@
+package com.example.demo.shard;
+
+import com.example.demo.entity.TestRecord;
+import com.example.demo.exception.ServiceUnavailableException;
+import org.apache.ibatis.cache.CacheKey;
+import org.apache.ibatis.executor.Executor;
+import org.apache.ibatis.mapping.BoundSql;
+import org.apache.ibatis.mapping.MappedStatement;
+import org.apache.ibatis.plugin.Interceptor;
+import org.apache.ibatis.plugin.Intercepts;
+import org.apache.ibatis.plugin.Invocation;
+import org.apache.ibatis.plugin.Plugin;
+import org.apache.ibatis.plugin.Signature;
+import org.apache.ibatis.session.ResultHandler;
+import org.apache.ibatis.session.RowBounds;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.locks.Lock;
+
+/**
+ * 配合SwitchableShardRouter在线迁移
+ * 调用方先按路由算出分表再执行语句，中间路由可能已经切换。带id(id、ids或者list里的记录)的语句
+ * 执行前检查这些id按当前路由是不是还在这张表，不在就返回503让调用方重试，
+ * 旧分表在切换之后不会再被写入，也不会读到清理掉的行；迁移线程自己的读写不检查。
+ * 写语句执行期间持有路由的读锁，切换时的fence等它们写完，复制期间写过的id记为dirty
+ */
+@Intercepts({
+        @Signature(type = Executor.class, method = "update",
+                args = {MappedStatement.class, Object.class}),
+        @Signature(type = Executor.class, method = "query",
+                args = {MappedStatement.class, Object.class, RowBounds.class, ResultHandler.class}),
+        @Signature(type = Executor.class, method = "query",
+                args = {MappedStatement.class, Object.class, RowBounds.class, ResultHandler.class,
+                        CacheKey.class, BoundSql.class})
+})
+public class ShardMigrationInterceptor implements Interceptor {
+
+    private final SwitchableShardRouter shardRouter;
+
+    public ShardMigrationInterceptor(SwitchableShardRouter shardRouter) {
+        this.shardRouter = shardRouter;
+    }
+
+    @Override
+    public Object intercept(Invocation invocation) throws Throwable {
+        Object parameter = invocation.getArgs()[1];
+        if(!(parameter instanceof Map) || !((Map<?, ?>) parameter).containsKey("table")
+                || shardRouter.isMigrator()) {
+            return invocation.proceed();
+        }
+        Map<?, ?> params = (Map<?, ?>) parameter;
+        String table = (String) params.get("table");
+        List<Long> ids = idsOf(params);
+        if(!"update".equals(invocation.getMethod().getName())) {
+            checkRoute(table, ids);
+            return invocation.proceed();
+        }
+        Lock lock = shardRouter.beginWrite();
+        try {
+            checkRoute(table, ids);
+            try {
+                return invocation.proceed();
+            } finally {
+                for(Long id : ids) {
+                    shardRouter.written(id);
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void checkRoute(String table, List<Long> ids) {
+        for(Long id : ids) {
+            if(!table.equals(shardRouter.tableOf(shardRouter.shardOfId(id)))) {
+                throw new ServiceUnavailableException("分表路由已切换，请重试");
+            }
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static List<Long> idsOf(Map<?, ?> params) {
+        if(params.containsKey("id")) {
+            Object id = params.get("id");
+            return id instanceof Long ? Collections.singletonList((Long) id) : Collections.emptyList();
+        }
+        if(params.containsKey("ids")) {
+            Object ids = params.get("ids");
+            return ids instanceof List ? (List<Long>) ids : Collections.emptyList();
+        }
+        if(params.containsKey("list")) {
+            Object list = params.get("list");
+            if(list instanceof Collection) {
+                List<Long> ids = new ArrayList<>(((Collection<?>) list).size());
+                for(Object item : (Collection<?>) list) {
+                    if(item instanceof TestRecord) {
+                        ids.add(((TestRecord) item).getId());
+                    }
+                }
+                return ids;
+            }
+        }
+        return Collections.emptyList();
+    }
+
+    @Override
+    public Object plugin(Object target) {
+        return target instanceof Executor ? Plugin.wrap(target, this) : target;
+    }
+
+    @Override
+    public void setProperties(Properties properties) {
+    }
+}
@@ -0,0 +1,75 @@
+package com.example.demo.shard;
+
+import java.util.Map;
+
+/**
+ * 分表路由
+ * key先散列到固定数量的逻辑槽(slot)，再由槽映射到物理分表test_N，
+ * 分表数量变化时只需要迁移归属发生变化的槽
+ */
+public interface ShardRouter {
+
+    int SLOT_BITS = 10;
+
+    int SLOT_COUNT = 1 << SLOT_BITS;
+
+    String TABLE_PREFIX = "test_";
+
+    int shardCount();
+
+    int slotOf(String key);
+
+    int shardOfSlot(int slot);
+
+    default int shardOf(String key) {
+        return shardOfSlot(slotOf(key));
+    }
+
+    /**
+     * 按全局id低位编码的槽找到分表
+     * @param id
+     * @return
+     */
+    default int shardOfId(long id) {
+        return shardOfSlot(ShardIds.slotOf(id));
+    }
+
+    default String tableOf(int shard) {
+        return TABLE_PREFIX + shard;
+    }
+
+    default int shardOfTable(String table) {
+        if(table == null || !table.startsWith(TABLE_PREFIX)) {
+            throw new IllegalArgumentException("不是分表：" + table);
+        }
+        return Integer.parseInt(table.substring(TABLE_PREFIX.length()));
+    }
+
+    /**
+     * 换一个分表数量得到新的路由，其它参数不变
+     * @param shardCount
+     * @return
+     */
+    ShardRouter resize(int shardCount);
+
+    /**
+     * 与另一个路由相比归属不同的槽数量，即扩缩容时需要迁移的槽
+     * @param other
+     * @return
+     */
+    default int movedSlots(ShardRouter other) {
+        int moved = 0;
+        for(int slot = 0; slot < SLOT_COUNT; slot++) {
+            if(shardOfSlot(slot) != other.shardOfSlot(slot)) {
+                moved++;
+            }
+        }
+        return moved;
+    }
+
+    /**
+     * 每个分表分到的槽数量和哈希环占比
+     * @return
+     */
+    Map<String, Object> distribution();
+}
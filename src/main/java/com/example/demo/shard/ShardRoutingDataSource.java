@@ -0,0 +1,54 @@
+package com.example.demo.shard;
+
+import org.springframework.jdbc.datasource.lookup.AbstractRoutingDataSource;
+
+import javax.sql.DataSource;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * 按分表路由的数据源
+ * 每张分表映射到一个物理数据源(各自的连接池)，多张分表可以共用一个数据源；
+ * 不涉及分表的语句和没有配置映射的分表使用默认数据源
+ */
+public class ShardRoutingDataSource extends AbstractRoutingDataSource {
+
+    private final Map<String, DataSource> dataSources;
+
+    private final String[] shardDataSources;
+
+    private final String defaultDataSource;
+
+    /**
+     * @param dataSources 数据源名称到数据源
+     * @param shardDataSources 下标为分表，值为数据源名称
+     * @param defaultDataSource 默认数据源名称
+     */
+    public ShardRoutingDataSource(Map<String, DataSource> dataSources, String[] shardDataSources,
+                                  String defaultDataSource) {
+        for(int shard = 0; shard < shardDataSources.length; shard++) {
+            if(!dataSources.containsKey(shardDataSources[shard])) {
+                throw new IllegalArgumentException("分表" + shard + "没有配置数据源！");
+            }
+        }
+        if(!dataSources.containsKey(defaultDataSource)) {
+            throw new IllegalArgumentException("默认数据源" + defaultDataSource + "不存在！");
+        }
+        this.dataSources = dataSources;
+        this.shardDataSources = shardDataSources;
+        this.defaultDataSource = defaultDataSource;
+        setTargetDataSources(new HashMap<>(dataSources));
+        setDefaultTargetDataSource(dataSources.get(defaultDataSource));
+    }
+
+    public DataSource dataSourceOf(int shard) {
+        return dataSources.get(shard < shardDataSources.length ? shardDataSources[shard] : defaultDataSource);
+    }
+
+    @Override
+    protected Object determineCurrentLookupKey() {
+        Integer shard = ShardContext.get();
+        //没有配置映射的分表用默认数据源
+        return shard == null || shard >= shardDataSources.length ? null : shardDataSources[shard];
+    }
+}
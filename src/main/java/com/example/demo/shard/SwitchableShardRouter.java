@@ -0,0 +1,194 @@
+package com.example.demo.shard;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * 可以在运行中切换的路由，所有组件共用这一个实例
+ * 扩缩容迁移开始时先prepare目标路由(next)，复制期间读写仍按当前路由，
+ * 写到归属会改变的记录时把id记为dirty；切换前在fence里拦住所有写入，
+ * 把dirty的记录补到新分表后再切换，切换之后新分表和旧分表在那一刻完全一致，不需要双读。
+ * 旧路由保留为previous，直到旧分表里已迁走的记录清理完
+ */
+public class SwitchableShardRouter implements ShardRouter {
+
+    private volatile ShardRouter current;
+
+    private volatile ShardRouter next;
+
+    private volatile ShardRouter previous;
+
+    //写分表的语句持有读锁，fence持有写锁
+    private final ReentrantReadWriteLock gate = new ReentrantReadWriteLock();
+
+    //复制开始之后写过的、归属会改变的id
+    private final Set<Long> dirty = ConcurrentHashMap.newKeySet();
+
+    //执行迁移的线程，它对新旧分表的读写不受路由检查
+    private volatile Thread migrator;
+
+    public SwitchableShardRouter(ShardRouter current) {
+        this.current = current;
+    }
+
+    public ShardRouter current() {
+        return current;
+    }
+
+    /**
+     * @return 正在复制数据的目标路由，没有迁移或已切换时为null
+     */
+    public ShardRouter next() {
+        return next;
+    }
+
+    /**
+     * @return 正在清理的旧路由，没有迁移时为null
+     */
+    public ShardRouter previous() {
+        return previous;
+    }
+
+    /**
+     * 启动时按持久化的拓扑替换配置里的路由，只能在没有迁移时调用
+     */
+    public synchronized void restore(ShardRouter router) {
+        if(next != null || previous != null) {
+            throw new IllegalStateException("已有迁移在进行");
+        }
+        current = router;
+    }
+
+    /**
+     * 在写锁里设置next，之前开始的写入都已经结束，之后的写入都能看到next
+     */
+    public synchronized void prepare(ShardRouter target) {
+        if(next != null || previous != null) {
+            throw new IllegalStateException("已有迁移在进行");
+        }
+        gate.writeLock().lock();
+        try {
+            dirty.clear();
+            next = target;
+        } finally {
+            gate.writeLock().unlock();
+        }
+    }
+
+    /**
+     * 放弃还没切换的迁移
+     */
+    public synchronized void abort() {
+        next = null;
+        dirty.clear();
+    }
+
+    /**
+     * 切换到prepare的目标路由，只能在fence里调用
+     */
+    public synchronized void switchTo() {
+        if(next == null) {
+            throw new IllegalStateException("没有prepare目标路由");
+        }
+        if(!gate.isWriteLockedByCurrentThread()) {
+            throw new IllegalStateException("切换路由必须在fence里进行");
+        }
+        previous = current;
+        current = next;
+        next = null;
+        dirty.clear();
+    }
+
+    /**
+     * 旧分表清理完成
+     */
+    public synchronized void finishSwitch() {
+        previous = null;
+    }
+
+    /**
+     * 拦住所有分表写入(等正在执行的写完)，执行action
+     */
+    public void fence(Runnable action) {
+        gate.writeLock().lock();
+        try {
+            action.run();
+        } finally {
+            gate.writeLock().unlock();
+        }
+    }
+
+    /**
+     * 执行一条写分表的语句之前调用，写完之后unlock
+     */
+    public Lock beginWrite() {
+        Lock lock = gate.readLock();
+        lock.lock();
+        return lock;
+    }
+
+    /**
+     * 在beginWrite和unlock之间调用，复制期间记下归属会改变的id
+     */
+    public void written(long id) {
+        ShardRouter target = next;
+        if(target != null && target.shardOfId(id) != current.shardOfId(id)) {
+            dirty.add(id);
+        }
+    }
+
+    /**
+     * 取出并清空dirty，取出之后再写的id会重新记下
+     */
+    public List<Long> drainDirty() {
+        List<Long> result = new ArrayList<>();
+        for(Iterator<Long> iterator = dirty.iterator(); iterator.hasNext(); ) {
+            result.add(iterator.next());
+            iterator.remove();
+        }
+        return result;
+    }
+
+    public int dirtyCount() {
+        return dirty.size();
+    }
+
+    public void bindMigrator(Thread thread) {
+        migrator = thread;
+    }
+
+    public boolean isMigrator() {
+        return migrator == Thread.currentThread();
+    }
+
+    @Override
+    public int shardCount() {
+        return current.shardCount();
+    }
+
+    @Override
+    public int slotOf(String key) {
+        return current.slotOf(key);
+    }
+
+    @Override
+    public int shardOfSlot(int slot) {
+        return current.shardOfSlot(slot);
+    }
+
+    @Override
+    public ShardRouter resize(int shardCount) {
+        return current.resize(shardCount);
+    }
+
+    @Override
+    public Map<String, Object> distribution() {
+        return current.distribution();
+    }
+}
@@ -0,0 +1,284 @@
+package com.example.demo.support;
+
+import com.alibaba.fastjson.JSON;
+import com.example.demo.entity.ChangeEvent;
+import com.example.demo.exception.BadRequestException;
+import com.example.demo.exception.ServiceUnavailableException;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * 把变更事件以Server-Sent Events推给http订阅者
+ * 每个订阅者一个ChangeEventRing.Cursor，分发线程轮流读取，交给发送线程池发送；
+ * 每个订阅者同时最多一个发送任务，慢的连接只占住自己的发送线程，
+ * 一次发送超过maxSendMillis还没完成的直接断开，由客户端带着Last-Event-ID重连。
+ *
+ * 事件id是"epoch-序号"，断线重连时浏览器会带上Last-Event-ID，epoch相同就从下一个序号接着推；
+ * epoch不同(本节点重启过或者连到了别的节点)或者序号比最新的还大时无法续传，
+ * 先发一个reset事件让客户端全量同步，再推之后的新事件。
+ * 订阅者落后太多丢了事件时先发一个gap事件，告诉它丢失的范围
+ */
+@Component
+public class ChangeEventBroadcaster implements InitializingBean, DisposableBean {
+
+    private static Log logger = LogFactory.getLog(ChangeEventBroadcaster.class);
+
+    private static final int BATCH = 256;
+
+    @Autowired
+    private ChangeEventRing changeEventRing;
+
+    @Value("${test.cdc.max-subscribers:100}")
+    private int maxSubscribers;
+
+    /**
+     * 单个连接的最长时间，到期后客户端带着Last-Event-ID重连
+     */
+    @Value("${test.cdc.sse-timeout-millis:1800000}")
+    private long sseTimeoutMillis;
+
+    @Value("${test.cdc.heartbeat-millis:15000}")
+    private long heartbeatMillis;
+
+    /**
+     * 一次发送的最长时间，超过就认为客户端读得太慢，断开连接
+     */
+    @Value("${test.cdc.max-send-millis:5000}")
+    private long maxSendMillis;
+
+    private final CopyOnWriteArrayList<Subscriber> subscribers = new CopyOnWriteArrayList<>();
+
+    private final AtomicLong sent = new AtomicLong();
+
+    private final AtomicLong slowDisconnected = new AtomicLong();
+
+    private volatile boolean running;
+
+    private Thread dispatcher;
+
+    //每个订阅者最多占一个线程，线程数不会超过maxSubscribers
+    private ExecutorService senders;
+
+    private static class Subscriber {
+        private final SseEmitter emitter;
+        private final ChangeEventRing.Cursor cursor;
+        //只有分发线程读写
+        private final List<ChangeEvent> batch = new ArrayList<>(BATCH);
+        private final AtomicBoolean sending = new AtomicBoolean();
+        private volatile long sendStartedMillis;
+        //无法续传时先发给客户端的reset事件
+        private Map<String, Object> reset;
+        private long reportedLost;
+        private long lastSentMillis = System.currentTimeMillis();
+
+        Subscriber(SseEmitter emitter, ChangeEventRing.Cursor cursor, Map<String, Object> reset) {
+            this.emitter = emitter;
+            this.cursor = cursor;
+            this.reset = reset;
+        }
+    }
+
+    @Override
+    public void afterPropertiesSet() {
+        running = true;
+        senders = Executors.newCachedThreadPool(r -> {
+            Thread thread = new Thread(r, "change-event-sender");
+            thread.setDaemon(true);
+            return thread;
+        });
+        dispatcher = new Thread(this::dispatchLoop, "change-event-sse");
+        dispatcher.setDaemon(true);
+        dispatcher.start();
+    }
+
+    /**
+     * @param from 从这个位置开始推送(包含)，"epoch-序号"或者本次启动的序号；
+     *             epoch不是本次启动的、或者比最新的序号还大时返回400
+     * @param lastEventId 浏览器重连时带的上一个事件id，从它的下一个开始推送；无法续传时先推reset事件
+     * @return 两个都为空时只推送之后的事件
+     */
+    public SseEmitter subscribe(String from, String lastEventId) {
+        if(subscribers.size() >= maxSubscribers) {
+            throw new ServiceUnavailableException("订阅者已满，请稍后重试");
+        }
+        ChangeEventRing.Cursor cursor;
+        Map<String, Object> reset = null;
+        if(from != null) {
+            Long sequence = sequenceOf(from);
+            if(sequence == null) {
+                throw new BadRequestException("from不是本节点本次启动的事件id，无法续传：" + from);
+            }
+            cursor = changeEventRing.subscribe(sequence);
+        } else if(lastEventId != null) {
+            Long last = sequenceOf(lastEventId);
+            if(last != null && last <= changeEventRing.lastSequence()) {
+                cursor = changeEventRing.subscribe(last + 1);
+            } else {
+                cursor = changeEventRing.subscribe(null);
+                reset = new LinkedHashMap<>();
+                reset.put("lastEventId", lastEventId);
+                reset.put("epoch", changeEventRing.epoch());
+                reset.put("resumeFrom", changeEventRing.epoch() + "-" + cursor.next());
+            }
+        } else {
+            cursor = changeEventRing.subscribe(null);
+        }
+        SseEmitter emitter = new SseEmitter(sseTimeoutMillis);
+        Subscriber subscriber = new Subscriber(emitter, cursor, reset);
+        emitter.onCompletion(() -> subscribers.remove(subscriber));
+        emitter.onTimeout(() -> subscribers.remove(subscriber));
+        subscribers.add(subscriber);
+        LockSupport.unpark(dispatcher);
+        return emitter;
+    }
+
+    public Map<String, Object> stats() {
+        List<Map<String, Object>> items = new ArrayList<>(subscribers.size());
+        for(Subscriber subscriber : subscribers) {
+            Map<String, Object> item = new LinkedHashMap<>();
+            item.put("next", subscriber.cursor.next());
+            item.put("lag", subscriber.cursor.lag());
+            item.put("lost", subscriber.cursor.lost());
+            items.add(item);
+        }
+        Map<String, Object> result = new LinkedHashMap<>(changeEventRing.stats());
+        result.put("sent", sent.get());
+        result.put("slowDisconnected", slowDisconnected.get());
+        result.put("subscribers", items);
+        return result;
+    }
+
+    /**
+     * "epoch-序号"或者纯序号，epoch不是本次启动的时返回null
+     */
+    private Long sequenceOf(String eventId) {
+        int dash = eventId.lastIndexOf('-');
+        if(dash >= 0 && !eventId.substring(0, dash).equals(changeEventRing.epoch())) {
+            return null;
+        }
+        try {
+            return Long.parseLong(eventId.substring(dash + 1));
+        } catch (NumberFormatException e) {
+            throw new BadRequestException("事件id格式不正确：" + eventId);
+        }
+    }
+
+    private void dispatchLoop() {
+        while(running) {
+            boolean idle = true;
+            long now = System.currentTimeMillis();
+            for(Subscriber subscriber : subscribers) {
+                if(subscriber.sending.get()) {
+                    if(now - subscriber.sendStartedMillis > maxSendMillis) {
+                        slowDisconnected.incrementAndGet();
+                        disconnect(subscriber, new IOException("发送超过" + maxSendMillis + "ms，断开慢订阅者"));
+                    }
+                    continue;
+                }
+                List<ChangeEvent> batch = subscriber.batch;
+                batch.clear();
+                int count = subscriber.cursor.poll(batch, BATCH);
+                if(count == 0 && subscriber.reset == null && subscriber.cursor.lost() == subscriber.reportedLost
+                        && now - subscriber.lastSentMillis < heartbeatMillis) {
+                    continue;
+                }
+                subscriber.sendStartedMillis = now;
+                subscriber.sending.set(true);
+                try {
+                    senders.execute(() -> {
+                        try {
+                            send(subscriber, batch);
+                        } catch (IOException | IllegalStateException e) {
+                            //客户端断开
+                            disconnect(subscriber, e);
+                        } finally {
+                            subscriber.sending.set(false);
+                            LockSupport.unpark(dispatcher);
+                        }
+                    });
+                } catch (RejectedExecutionException e) {
+                    subscriber.sending.set(false);
+                    disconnect(subscriber, new IOException("正在关闭", e));
+                    continue;
+                }
+                if(count == BATCH) {
+                    idle = false;
+                }
+            }
+            if(idle) {
+                LockSupport.parkNanos(this, TimeUnit.MILLISECONDS.toNanos(20));
+            }
+        }
+    }
+
+    private void disconnect(Subscriber subscriber, Exception e) {
+        if(subscribers.remove(subscriber)) {
+            logger.info("断开变更事件订阅者：" + e.getMessage());
+            subscriber.emitter.completeWithError(e);
+        }
+    }
+
+    private void send(Subscriber subscriber, List<ChangeEvent> batch) throws IOException {
+        long now = System.currentTimeMillis();
+        String epoch = changeEventRing.epoch();
+        if(subscriber.reset != null) {
+            subscriber.emitter.send(SseEmitter.event().name("reset").data(JSON.toJSONString(subscriber.reset)));
+            subscriber.reset = null;
+            subscriber.lastSentMillis = now;
+        }
+        if(subscriber.cursor.lost() > subscriber.reportedLost) {
+            Map<String, Object> gap = new LinkedHashMap<>();
+            gap.put("lost", subscriber.cursor.lost() - subscriber.reportedLost);
+            gap.put("resumeFrom", epoch + "-" + (batch.isEmpty() ? subscriber.cursor.next() : batch.get(0).getSequence()));
+            subscriber.emitter.send(SseEmitter.event().name("gap").data(JSON.toJSONString(gap)));
+            subscriber.reportedLost = subscriber.cursor.lost();
+            subscriber.lastSentMillis = now;
+        }
+        for(ChangeEvent event : batch) {
+            subscriber.emitter.send(SseEmitter.event()
+                    .id(epoch + "-" + event.getSequence())
+                    .name(event.getType().name().toLowerCase())
+                    .data(JSON.toJSONString(event)));
+            sent.incrementAndGet();
+            subscriber.lastSentMillis = now;
+        }
+        if(now - subscriber.lastSentMillis >= heartbeatMillis) {
+            //注释行，保持连接不被代理断开
+            subscriber.emitter.send(SseEmitter.event().comment("heartbeat"));
+            subscriber.lastSentMillis = now;
+        }
+    }
+
+    @Override
+    public void destroy() throws InterruptedException {
+        running = false;
+        LockSupport.unpark(dispatcher);
+        dispatcher.join(TimeUnit.SECONDS.toMillis(5));
+        senders.shutdown();
+        senders.awaitTermination(maxSendMillis, TimeUnit.MILLISECONDS);
+        for(Subscriber subscriber : subscribers) {
+            subscriber.emitter.complete();
+        }
+        subscribers.clear();
+    }
+}
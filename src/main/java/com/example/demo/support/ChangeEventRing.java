@@ -0,0 +1,183 @@
+package com.example.demo.support;
+
+import com.example.demo.entity.ChangeEvent;
+import com.example.demo.exception.BadRequestException;
+import com.google.common.util.concurrent.Striped;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.Lock;
+
+/**
+ * 变更事件环形缓冲区
+ * 写入方用AtomicLong领取序号，再把事件放进序号对应的槽，不加锁，也不等待消费者；
+ * 每个消费者持有自己的Cursor，各自记录读到的位置，互不影响。
+ * 消费者落后超过capacity时旧事件已经被覆盖，Cursor会跳到还在缓冲区里的最早事件并累计丢失数，
+ * 消费者据此决定是否重新全量同步。
+ * 序号只在本节点的这次启动内有意义，epoch在启动时随机生成，和序号一起组成对外的事件id。
+ * 修改和删除在写库到发布之间持有lockOf(id)，同一个id的事件顺序和提交顺序一致；新写入的id在返回之前不会被别人修改，不用加锁
+ */
+@Component
+public class ChangeEventRing implements InitializingBean {
+
+    /**
+     * 容量，取2的幂
+     */
+    @Value("${test.cdc.capacity:65536}")
+    private int capacity;
+
+    @Value("${test.cdc.enabled:true}")
+    private boolean enabled;
+
+    private int mask;
+
+    private AtomicReferenceArray<ChangeEvent> slots;
+
+    private String epoch;
+
+    //下一个要领取的序号
+    private final AtomicLong nextSequence = new AtomicLong(1);
+
+    private final Striped<Lock> idLocks = Striped.lock(1024);
+
+    @Override
+    public void afterPropertiesSet() {
+        capacity = Integer.highestOneBit(Math.max(capacity, 2) - 1) << 1;
+        mask = capacity - 1;
+        slots = new AtomicReferenceArray<>(capacity);
+        epoch = Long.toString(System.currentTimeMillis(), Character.MAX_RADIX)
+                + Long.toString(ThreadLocalRandom.current().nextLong(1L << 40), Character.MAX_RADIX);
+    }
+
+    /**
+     * 本次启动的标识，不含'-'
+     */
+    public String epoch() {
+        return epoch;
+    }
+
+    /**
+     * 最后一个已领取的序号，还没有事件时为0
+     */
+    public long lastSequence() {
+        return nextSequence.get() - 1;
+    }
+
+    /**
+     * 同一个id的写库和发布事件之间持有
+     */
+    public Lock lockOf(long id) {
+        return idLocks.get(id);
+    }
+
+    /**
+     * 按固定顺序返回多个id的锁，依次加锁不会死锁
+     */
+    public Iterable<Lock> locksOf(Iterable<Long> ids) {
+        return idLocks.bulkGet(ids);
+    }
+
+    /**
+     * @return 事件的序号，未开启时返回0
+     */
+    public long publish(ChangeEvent.Type type, long id, String key, String value) {
+        if(!enabled) {
+            return 0;
+        }
+        long sequence = nextSequence.getAndIncrement();
+        slots.set(index(sequence), new ChangeEvent(sequence, type, id, key, value, System.currentTimeMillis()));
+        return sequence;
+    }
+
+    /**
+     * @param fromSequence 从这个序号开始读(包含)，为空时只读之后发布的事件
+     * @return
+     * @throws BadRequestException fromSequence比下一个要发布的序号还大
+     */
+    public Cursor subscribe(Long fromSequence) {
+        long next = nextSequence.get();
+        if(fromSequence != null && fromSequence > next) {
+            throw new BadRequestException("序号" + fromSequence + "超过了最新的序号" + (next - 1));
+        }
+        return new Cursor(fromSequence == null ? next : Math.max(fromSequence, 1));
+    }
+
+    public Map<String, Object> stats() {
+        long last = nextSequence.get() - 1;
+        Map<String, Object> result = new LinkedHashMap<>();
+        result.put("enabled", enabled);
+        result.put("epoch", epoch);
+        result.put("capacity", capacity);
+        result.put("lastSequence", last);
+        result.put("oldestSequence", Math.max(1, last - capacity + 1));
+        return result;
+    }
+
+    private int index(long sequence) {
+        return (int) (sequence & mask);
+    }
+
+    public class Cursor {
+
+        private long next;
+
+        private long lost;
+
+        private Cursor(long next) {
+            this.next = next;
+        }
+
+        /**
+         * 读取已经发布的事件，没有新事件时立即返回0
+         * @param out
+         * @param max 最多读取的个数
+         * @return 读到的个数
+         */
+        public int poll(List<ChangeEvent> out, int max) {
+            int count = 0;
+            while(count < max) {
+                ChangeEvent event = slots.get(index(next));
+                if(event == null || event.getSequence() < next) {
+                    //序号已经领取但事件还没放进来，或者还没有这么新的事件
+                    break;
+                }
+                if(event.getSequence() > next) {
+                    //被覆盖了，跳到还没被覆盖的最早位置
+                    long oldest = Math.max(next + 1, nextSequence.get() - capacity);
+                    lost += oldest - next;
+                    next = oldest;
+                    continue;
+                }
+                out.add(event);
+                next++;
+                count++;
+            }
+            return count;
+        }
+
+        /**
+         * 下一个要读的序号
+         */
+        public long next() {
+            return next;
+        }
+
+        /**
+         * 因为落后太多被覆盖、没有读到的事件数
+         */
+        public long lost() {
+            return lost;
+        }
+
+        public long lag() {
+            return Math.max(0, nextSequence.get() - next);
+        }
+    }
+}
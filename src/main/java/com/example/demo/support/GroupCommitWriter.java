@@ -0,0 +1,190 @@
+package com.example.demo.support;
+
+import com.example.demo.entity.TestRecord;
+import com.example.demo.shard.ShardBatchWriter;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.dao.DuplicateKeyException;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * 同步的组提交(group commit)，leader/follower模式
+ * 并发写入的请求先排队，抢到leader的线程把队列里的请求一起取出，
+ * 每张分表合成一条多行insert提交，然后逐个唤醒这些请求；没抢到的线程(follower)挂起等待。
+ * leader写库期间新来的请求继续排队，下一轮由队首的线程接任leader。
+ * 每个请求都要等自己的记录提交成功才返回，持久性和逐条insert一样。
+ * 某张表的合并insert失败时按请求拆开重试，一条坏记录只让它所在的请求失败
+ */
+@Component
+@ConditionalOnProperty(prefix = "test.group-commit", name = "enabled", havingValue = "true")
+public class GroupCommitWriter {
+
+    private static Log logger = LogFactory.getLog(GroupCommitWriter.class);
+
+    @Autowired
+    private ShardBatchWriter shardBatchWriter;
+
+    /**
+     * 一轮最多合并的行数
+     */
+    @Value("${test.group-commit.max-rows:2000}")
+    private int maxRows;
+
+    private final ConcurrentLinkedQueue<Request> queue = new ConcurrentLinkedQueue<>();
+
+    private final AtomicBoolean leader = new AtomicBoolean();
+
+    private final AtomicLong commits = new AtomicLong();
+
+    private final AtomicLong requests = new AtomicLong();
+
+    private final AtomicLong rows = new AtomicLong();
+
+    private final AtomicLong retries = new AtomicLong();
+
+    private static class Request {
+        private final List<TestRecord> rows;
+        private final Thread thread;
+        private int result;
+        private RuntimeException error;
+        private volatile boolean done;
+
+        Request(List<TestRecord> rows, Thread thread) {
+            this.rows = rows;
+            this.thread = thread;
+        }
+    }
+
+    /**
+     * 阻塞到这些记录所在的批次提交完成
+     * @param rows id已经分配好的记录
+     * @return 写入的行数
+     */
+    public int write(List<TestRecord> rows) {
+        Request request = new Request(rows, Thread.currentThread());
+        queue.offer(request);
+        while(!request.done) {
+            if(leader.compareAndSet(false, true)) {
+                try {
+                    commitBatch();
+                } finally {
+                    leader.set(false);
+                }
+                //把leader交给队首还在等的线程
+                Request next = queue.peek();
+                if(next != null) {
+                    LockSupport.unpark(next.thread);
+                }
+            } else {
+                //兜底超时，防止错过唤醒
+                LockSupport.parkNanos(this, TimeUnit.MILLISECONDS.toNanos(10));
+            }
+        }
+        if(request.error != null) {
+            throw request.error;
+        }
+        return request.result;
+    }
+
+    public Map<String, Object> stats() {
+        Map<String, Object> result = new LinkedHashMap<>();
+        result.put("commits", commits.get());
+        result.put("requests", requests.get());
+        result.put("rows", rows.get());
+        result.put("requestsPerCommit", commits.get() == 0 ? 0 : (double) requests.get() / commits.get());
+        result.put("retries", retries.get());
+        return result;
+    }
+
+    private void commitBatch() {
+        List<Request> batch = new ArrayList<>();
+        List<TestRecord> batchRows = new ArrayList<>();
+        Request request;
+        while(batchRows.size() < maxRows && (request = queue.poll()) != null) {
+            batch.add(request);
+            batchRows.addAll(request.rows);
+        }
+        if(batch.isEmpty()) {
+            return;
+        }
+        //逐表提交，某张表失败时只重试有记录落在这张表上的请求
+        Map<Request, RuntimeException> errors = new IdentityHashMap<>();
+        for(Map.Entry<String, List<TestRecord>> entry : shardBatchWriter.groupByTable(batchRows).entrySet()) {
+            try {
+                shardBatchWriter.writeTable(entry.getKey(), entry.getValue());
+                commits.incrementAndGet();
+            } catch (RuntimeException e) {
+                logger.warn("组提交写入" + entry.getKey() + "失败，按请求拆开重试", e);
+                retryEach(entry.getKey(), batch, errors);
+            }
+        }
+        requests.addAndGet(batch.size());
+        rows.addAndGet(batchRows.size());
+        for(Request item : batch) {
+            RuntimeException error = errors.get(item);
+            if(error != null) {
+                item.error = error;
+            } else {
+                item.result = item.rows.size();
+            }
+            item.done = true;
+            LockSupport.unpark(item.thread);
+        }
+    }
+
+    private void retryEach(String table, List<Request> batch, Map<Request, RuntimeException> errors) {
+        for(Request item : batch) {
+            List<TestRecord> tableRows = new ArrayList<>();
+            for(TestRecord row : item.rows) {
+                if(table.equals(shardBatchWriter.tableOf(row))) {
+                    tableRows.add(row);
+                }
+            }
+            if(tableRows.isEmpty()) {
+                continue;
+            }
+            retries.incrementAndGet();
+            try {
+                writeRows(table, tableRows);
+            } catch (RuntimeException e) {
+                logger.error("组提交重试写入" + table + "失败", e);
+                errors.putIfAbsent(item, e);
+            }
+        }
+    }
+
+    /**
+     * 超过batchSize的批次分成几条insert，前面的可能已经提交；
+     * id由IdGenerator分配，主键冲突说明这一行已经写进去了，逐条确认
+     */
+    private void writeRows(String table, List<TestRecord> tableRows) {
+        try {
+            shardBatchWriter.writeTable(table, tableRows);
+            return;
+        } catch (DuplicateKeyException e) {
+            logger.debug(table + "部分记录已写入，逐条确认");
+        }
+        for(TestRecord row : tableRows) {
+            try {
+                shardBatchWriter.writeTable(table, Collections.singletonList(row));
+            } catch (DuplicateKeyException e) {
+                //已经写进去了
+            }
+        }
+    }
+}
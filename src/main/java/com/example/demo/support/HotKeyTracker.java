@@ -0,0 +1,262 @@
+package com.example.demo.support;
+
+import com.example.demo.shard.ShardRouter;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.DependsOn;
+import org.springframework.stereotype.Component;
+
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * 热点id统计
+ * count-min sketch估算每个id的访问次数：depth行、每行width个计数器，
+ * 一次访问在每行各加一，估计值取各行的最小值，只会高估不会低估，内存固定与id数量无关。
+ * 计数器是AtomicLongArray，记录时只有getAndIncrement，不加锁。
+ *
+ * 每张分表维护一个候选集，估计值进入前topK的id放进去，候选超过2倍topK时裁剪，
+ * 裁剪用tryLock，抢不到说明别的线程正在裁剪，直接跳过。
+ * 每隔decaySeconds把所有计数减半，旧的热点逐渐冷却，反映的是最近几个窗口的访问
+ */
+@Component
+@DependsOn("shardTopologyStore")
+public class HotKeyTracker implements InitializingBean, DisposableBean {
+
+    private static final long[] SEEDS = {
+            0x9e3779b97f4a7c15L, 0xbf58476d1ce4e5b9L, 0x94d049bb133111ebL, 0x2545f4914f6cdd1dL,
+            0x6a09e667f3bcc909L, 0xbb67ae8584caa73bL, 0x3c6ef372fe94f82bL, 0xa54ff53a5f1d36f1L
+    };
+
+    @Autowired
+    private ShardRouter shardRouter;
+
+    @Value("${test.hotkey.enabled:true}")
+    private boolean enabled;
+
+    @Value("${test.hotkey.depth:4}")
+    private int depth;
+
+    /**
+     * 每行计数器个数，取2的幂
+     */
+    @Value("${test.hotkey.width:4096}")
+    private int width;
+
+    @Value("${test.hotkey.top-k:10}")
+    private int topK;
+
+    @Value("${test.hotkey.decay-seconds:60}")
+    private long decaySeconds;
+
+    private AtomicLongArray counters;
+
+    private int mask;
+
+    //扩缩容后整体替换
+    private volatile Shard[] shards;
+
+    private ScheduledExecutorService decayer;
+
+    private static class Shard {
+        //分表的访问次数，所有请求都会加，用LongAdder避免争用同一个计数器
+        private final LongAdder hits = new LongAdder();
+        private final ConcurrentHashMap<Long, Long> candidates = new ConcurrentHashMap<>();
+        private final ReentrantLock pruneLock = new ReentrantLock();
+        //候选集里第topK大的估计值，低于它的id不用进候选集
+        private volatile long threshold;
+    }
+
+    @Override
+    public void afterPropertiesSet() {
+        width = Integer.highestOneBit(Math.max(width, 16) - 1) << 1;
+        mask = width - 1;
+        counters = new AtomicLongArray(depth * width);
+        resize();
+        decayer = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "hotkey-decay");
+            thread.setDaemon(true);
+            return thread;
+        });
+        decayer.scheduleAtFixedRate(this::decay, decaySeconds, decaySeconds, TimeUnit.SECONDS);
+    }
+
+    /**
+     * 记录一次对id的读或写
+     * @param id
+     */
+    public void record(long id) {
+        if(!enabled) {
+            return;
+        }
+        long estimate = Long.MAX_VALUE;
+        for(int row = 0; row < depth; row++) {
+            estimate = Math.min(estimate, counters.incrementAndGet(index(id, row)));
+        }
+        Shard[] current = shards;
+        int shardIndex = shardRouter.shardOfId(id);
+        if(shardIndex >= current.length) {
+            //分表数刚变，还没resize
+            return;
+        }
+        Shard shard = current[shardIndex];
+        shard.hits.increment();
+        if(estimate < shard.threshold) {
+            return;
+        }
+        shard.candidates.put(id, estimate);
+        if(shard.candidates.size() > topK * 2 && shard.pruneLock.tryLock()) {
+            try {
+                prune(shard);
+            } finally {
+                shard.pruneLock.unlock();
+            }
+        }
+    }
+
+    /**
+     * 各分表当前最热的id
+     * @param limit 每张分表最多返回的个数，不超过topK
+     * @return
+     */
+    public Map<String, Object> hotKeys(int limit) {
+        limit = Math.min(limit, topK);
+        Shard[] current = shards;
+        long total = 0;
+        for(Shard shard : current) {
+            total += shard.hits.sum();
+        }
+        List<Map<String, Object>> items = new ArrayList<>(current.length);
+        for(int shardIndex = 0; shardIndex < current.length; shardIndex++) {
+            List<Map<String, Object>> keys = new ArrayList<>(limit);
+            for(Map.Entry<Long, Long> entry : top(current[shardIndex], limit)) {
+                Map<String, Object> key = new LinkedHashMap<>();
+                key.put("id", entry.getKey());
+                key.put("estimate", entry.getValue());
+                keys.add(key);
+            }
+            long hits = current[shardIndex].hits.sum();
+            Map<String, Object> item = new LinkedHashMap<>();
+            item.put("shard", shardIndex);
+            item.put("table", shardRouter.tableOf(shardIndex));
+            item.put("hits", hits);
+            item.put("hitRatio", total == 0 ? 0 : (double) hits / total);
+            item.put("keys", keys);
+            items.add(item);
+        }
+        Map<String, Object> result = new LinkedHashMap<>();
+        result.put("enabled", enabled);
+        result.put("depth", depth);
+        result.put("width", width);
+        result.put("decaySeconds", decaySeconds);
+        result.put("hits", total);
+        result.put("shards", items);
+        return result;
+    }
+
+    /**
+     * 分表数变化后按新的分表数重新统计，计数器保留
+     */
+    public void resize() {
+        Shard[] next = new Shard[shardRouter.shardCount()];
+        for(int shard = 0; shard < next.length; shard++) {
+            next[shard] = new Shard();
+        }
+        shards = next;
+    }
+
+    private void prune(Shard shard) {
+        //重新估计一遍，已经冷却的id让出位置
+        List<Map.Entry<Long, Long>> top = top(shard, topK);
+        if(top.size() < topK) {
+            return;
+        }
+        shard.threshold = top.get(top.size() - 1).getValue();
+        shard.candidates.keySet().retainAll(keysOf(top));
+    }
+
+    /**
+     * 用小顶堆从候选集里取估计值最大的limit个，按估计值从大到小返回
+     */
+    private List<Map.Entry<Long, Long>> top(Shard shard, int limit) {
+        PriorityQueue<Map.Entry<Long, Long>> heap = new PriorityQueue<>(limit + 1, Map.Entry.comparingByValue());
+        for(Long id : shard.candidates.keySet()) {
+            heap.add(new AbstractMap.SimpleImmutableEntry<>(id, estimate(id)));
+            if(heap.size() > limit) {
+                heap.poll();
+            }
+        }
+        List<Map.Entry<Long, Long>> result = new ArrayList<>(heap);
+        result.sort(Map.Entry.<Long, Long>comparingByValue(Comparator.reverseOrder()));
+        return result;
+    }
+
+    private long estimate(long id) {
+        long estimate = Long.MAX_VALUE;
+        for(int row = 0; row < depth; row++) {
+            estimate = Math.min(estimate, counters.get(index(id, row)));
+        }
+        return estimate;
+    }
+
+    /**
+     * 每行用不同的种子各自哈希，行与行之间相互独立，
+     * 一个冷id要在所有行都撞上热点id才会被高估
+     */
+    private int index(long id, int row) {
+        return row * width + (int) (mix(id + SEEDS[row & (SEEDS.length - 1)] * (row + 1)) & mask);
+    }
+
+    private static List<Long> keysOf(List<Map.Entry<Long, Long>> entries) {
+        List<Long> keys = new ArrayList<>(entries.size());
+        for(Map.Entry<Long, Long> entry : entries) {
+            keys.add(entry.getKey());
+        }
+        return keys;
+    }
+
+    private void decay() {
+        for(int i = 0; i < counters.length(); i++) {
+            if(counters.get(i) != 0) {
+                counters.getAndUpdate(i, c -> c >>> 1);
+            }
+        }
+        for(Shard item : shards) {
+            item.hits.add(-(item.hits.sum() >>> 1));
+            item.threshold >>>= 1;
+            //冷却到0的id不再是候选
+            item.candidates.keySet().removeIf(id -> estimate(id) == 0);
+        }
+    }
+
+    /**
+     * murmur3的64位finalizer，把相邻的id打散到不同计数器
+     */
+    private static long mix(long id) {
+        id ^= id >>> 33;
+        id *= 0xff51afd7ed558ccdL;
+        id ^= id >>> 33;
+        id *= 0xc4ceb9fe1a85ec53L;
+        id ^= id >>> 33;
+        return id;
+    }
+
+    @Override
+    public void destroy() {
+        decayer.shutdownNow();
+    }
+}
@@ -0,0 +1,120 @@
+package com.example.demo.support;
+
+import com.example.demo.entity.ChangeEvent;
+import com.example.demo.entity.TestRecord;
+import com.example.demo.exception.ConflictException;
+import com.example.demo.id.IdGenerator;
+import com.example.demo.mapper.TestMapper;
+import com.example.demo.shard.SwitchableShardRouter;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * id里编码槽之前的记录用的是各分表自己的自增id，按低10位的槽路由大多落到别的分表，按id读写都找不到。
+ * 逐块扫描每张分表，按id路由不属于这张表的行按key重新分配id，写到新id所属的分表后删除旧行，
+ * 同时维护缓存、布隆过滤器、key索引，并发布旧id的DELETE和新id的SAVE事件。
+ * 按路由恰好属于所在分表的旧id本来就能访问，不处理；在线迁移期间不能执行
+ */
+@Component
+public class LegacyIdMigrator {
+
+    private static Log logger = LogFactory.getLog(LegacyIdMigrator.class);
+
+    @Autowired
+    private TestMapper testMapper;
+
+    @Autowired
+    private SwitchableShardRouter shardRouter;
+
+    @Autowired
+    private IdGenerator idGenerator;
+
+    @Autowired
+    private TestBloomFilter testBloomFilter;
+
+    @Autowired
+    private TestCache testCache;
+
+    @Autowired
+    private TestKeyIndex testKeyIndex;
+
+    @Autowired
+    private ChangeEventRing changeEventRing;
+
+    @Value("${test.rebalance.chunk-size:500}")
+    private int chunkSize;
+
+    public synchronized Map<String, Object> migrate() {
+        if(shardRouter.next() != null || shardRouter.previous() != null) {
+            throw new ConflictException("在线迁移进行中，结束后再迁移旧id");
+        }
+        Map<Long, Long> mapping = new LinkedHashMap<>();
+        long scanned = 0;
+        for(int shard = 0; shard < shardRouter.shardCount(); shard++) {
+            String table = shardRouter.tableOf(shard);
+            long afterId = Long.MIN_VALUE;
+            while(true) {
+                List<TestRecord> rows = testMapper.listTest(table, afterId, chunkSize);
+                if(rows.isEmpty()) {
+                    break;
+                }
+                scanned += rows.size();
+                migrate(shard, table, rows, mapping);
+                if(rows.size() < chunkSize) {
+                    break;
+                }
+                afterId = rows.get(rows.size() - 1).getId();
+            }
+        }
+        Map<String, Object> result = new LinkedHashMap<>();
+        result.put("scanned", scanned);
+        result.put("migrated", mapping.size());
+        result.put("mapping", mapping);
+        return result;
+    }
+
+    private void migrate(int shard, String table, List<TestRecord> rows, Map<Long, Long> mapping) {
+        Map<String, List<TestRecord>> moved = new TreeMap<>();
+        List<Long> legacyIds = new ArrayList<>();
+        for(TestRecord row : rows) {
+            if(shardRouter.shardOfId(row.getId()) == shard) {
+                continue;
+            }
+            long id = idGenerator.nextId(shardRouter.slotOf(row.getKey() == null ? "" : row.getKey()));
+            testBloomFilter.put(id);
+            moved.computeIfAbsent(shardRouter.tableOf(shardRouter.shardOfId(id)), t -> new ArrayList<>())
+                    .add(new TestRecord(id, row.getKey(), row.getValue(), row.getVersion()));
+            legacyIds.add(row.getId());
+            mapping.put(row.getId(), id);
+        }
+        if(legacyIds.isEmpty()) {
+            return;
+        }
+        //先写新行再删旧行，中途失败不会丢数据，但删除失败后重新执行会按日志里的对应关系多出一份
+        for(Map.Entry<String, List<TestRecord>> entry : moved.entrySet()) {
+            testMapper.upsertTests(entry.getKey(), entry.getValue());
+        }
+        testMapper.delMisroutedTests(table, legacyIds);
+        for(List<TestRecord> list : moved.values()) {
+            for(TestRecord row : list) {
+                testKeyIndex.put(row.getId(), row.getKey());
+                changeEventRing.publish(ChangeEvent.Type.SAVE, row.getId(), row.getKey(), row.getValue());
+            }
+        }
+        for(Long legacyId : legacyIds) {
+            testCache.invalidate(legacyId);
+            testKeyIndex.remove(legacyId);
+            changeEventRing.publish(ChangeEvent.Type.DELETE, legacyId, null, null);
+            logger.info(table + "旧id" + legacyId + "迁移为" + mapping.get(legacyId));
+        }
+    }
+}
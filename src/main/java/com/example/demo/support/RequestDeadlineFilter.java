@@ -0,0 +1,64 @@
+package com.example.demo.support;
+
+import com.example.demo.shard.RequestDeadline;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import org.springframework.util.StringUtils;
+import org.springframework.web.filter.OncePerRequestFilter;
+
+import javax.servlet.FilterChain;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * 给每个请求设置截止时间，调用方可以用X-Request-Timeout-Millis缩短或放宽，不超过max-millis
+ * 导入、导出、变更流这类长请求不设置
+ */
+@Component
+public class RequestDeadlineFilter extends OncePerRequestFilter {
+
+    public static final String TIMEOUT_HEADER = "X-Request-Timeout-Millis";
+
+    @Value("${test.deadline.default-millis:3000}")
+    private long defaultMillis;
+
+    @Value("${test.deadline.max-millis:30000}")
+    private long maxMillis;
+
+    @Value("${test.deadline.excluded-paths:/test/import,/test/export,/test/changes}")
+    private String[] excludedPaths;
+
+    @Override
+    protected boolean shouldNotFilter(HttpServletRequest request) {
+        return Arrays.asList(excludedPaths).contains(request.getServletPath());
+    }
+
+    @Override
+    protected void doFilterInternal(HttpServletRequest request, HttpServletResponse response,
+                                    FilterChain filterChain) throws ServletException, IOException {
+        long timeout = defaultMillis;
+        String header = request.getHeader(TIMEOUT_HEADER);
+        if(!StringUtils.isEmpty(header)) {
+            try {
+                timeout = Math.min(Long.parseLong(header.trim()), maxMillis);
+            } catch (NumberFormatException e) {
+                response.sendError(HttpServletResponse.SC_BAD_REQUEST, TIMEOUT_HEADER + "必须是整数");
+                return;
+            }
+            if(timeout <= 0) {
+                response.sendError(HttpServletResponse.SC_BAD_REQUEST, TIMEOUT_HEADER + "必须大于0");
+                return;
+            }
+        }
+        Long previous = RequestDeadline.get();
+        RequestDeadline.set(System.currentTimeMillis() + timeout);
+        try {
+            filterChain.doFilter(request, response);
+        } finally {
+            RequestDeadline.set(previous);
+        }
+    }
+}
@@ -0,0 +1,566 @@
+package com.example.demo.support;
+
+import com.example.demo.entity.TestRecord;
+import com.example.demo.exception.BadRequestException;
+import com.example.demo.exception.ConflictException;
+import com.example.demo.exception.ServiceUnavailableException;
+import com.example.demo.mapper.TestMapper;
+import com.example.demo.shard.ShardRouter;
+import com.example.demo.shard.SwitchableShardRouter;
+import com.google.common.util.concurrent.RateLimiter;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.zip.CRC32;
+
+/**
+ * 在线扩缩容迁移
+ * 分表数量变化后，归属改变的槽里的记录要搬到新的分表，在后台线程按阶段执行：
+ * COPYING   按id游标逐块扫描旧分表，归属改变的行upsert到新分表，前台读写仍按旧路由，
+ *           写到归属会改变的记录时路由把id记为dirty
+ * VERIFYING 再扫一遍，每块迁移行与新分表里同id的行比较CRC32，不一致的逐行修复，
+ *           新分表里旧分表已经删掉的副本也删掉，直到一轮没有修复或达到轮数上限；
+ *           然后按dirty把复制开始之后的修改和删除补到新分表
+ * 切换      dirty追到一块以内之后在路由的fence里拦住所有写入，补齐最后一批dirty，更新shard_topology表再切换路由，
+ *           此刻新旧分表完全一致，之后按旧路由算出的分表会被ShardMigrationInterceptor拒绝(503重试)
+ * DRAINING  等切换前发出的请求结束
+ * CLEANING  删除旧分表里已迁走的行
+ * 扫描按行数从RateLimiter取令牌，速率可以在运行中调整，避免迁移挤占前台请求。
+ *
+ * fence只能拦住本节点的写入，分表数量也要持久化，重启或新节点才能按迁移后的分表路由，
+ * 所以只有开启test.shard.topology.persisted和test.rebalance.enabled才允许迁移，
+ * 而且迁移期间只能有执行迁移的这一个节点对外服务
+ */
+@Component
+public class ShardRebalancer {
+
+    private static Log logger = LogFactory.getLog(ShardRebalancer.class);
+
+    @Autowired
+    private SwitchableShardRouter shardRouter;
+
+    @Autowired
+    private TestMapper testMapper;
+
+    @Autowired
+    private TestBloomFilter testBloomFilter;
+
+    @Autowired
+    private HotKeyTracker hotKeyTracker;
+
+    @Autowired
+    private ShardTopologyStore shardTopologyStore;
+
+    @Value("${test.rebalance.enabled:false}")
+    private boolean enabled;
+
+    @Value("${test.rebalance.chunk-size:500}")
+    private int chunkSize;
+
+    @Value("${test.rebalance.rows-per-second:2000}")
+    private double rowsPerSecond;
+
+    @Value("${test.rebalance.max-verify-passes:3}")
+    private int maxVerifyPasses;
+
+    @Value("${test.rebalance.max-catch-up-rounds:10}")
+    private int maxCatchUpRounds;
+
+    @Value("${test.rebalance.drain-millis:5000}")
+    private long drainMillis;
+
+    private final Semaphore running = new Semaphore(1);
+
+    private volatile Job current;
+
+    public enum Phase {
+        COPYING, VERIFYING, DRAINING, CLEANING, DONE, CANCELLED, FAILED
+    }
+
+    private static class Job {
+        private final ShardRouter source;
+        private final ShardRouter target;
+        private final RateLimiter limiter;
+        private final long startTime = System.currentTimeMillis();
+        private volatile long endTime;
+        private volatile Phase phase;
+        private volatile long phaseStartTime;
+        //本阶段预计要扫描的行数
+        private volatile long phaseRows;
+        private final AtomicLong phaseScanned = new AtomicLong();
+        private final AtomicLong scanned = new AtomicLong();
+        private final AtomicLong copied = new AtomicLong();
+        private final AtomicLong repaired = new AtomicLong();
+        private final AtomicLong deleted = new AtomicLong();
+        private volatile int verifyPasses;
+        private volatile boolean switched;
+        private volatile boolean cancelled;
+        private volatile Throwable error;
+
+        Job(ShardRouter source, ShardRouter target, double rowsPerSecond) {
+            this.source = source;
+            this.target = target;
+            this.limiter = RateLimiter.create(rowsPerSecond);
+        }
+
+        void enter(Phase phase, long rows) {
+            this.phaseStartTime = System.currentTimeMillis();
+            this.phaseRows = rows;
+            this.phaseScanned.set(0);
+            this.phase = phase;
+        }
+
+        Map<String, Object> progress() {
+            long now = endTime == 0 ? System.currentTimeMillis() : endTime;
+            long phaseElapsed = now - phaseStartTime;
+            long phaseScanned = this.phaseScanned.get();
+            double rate = phaseElapsed == 0 ? 0 : phaseScanned * 1000.0 / phaseElapsed;
+            Map<String, Object> result = new LinkedHashMap<>();
+            result.put("phase", phase);
+            result.put("sourceShardCount", source.shardCount());
+            result.put("targetShardCount", target.shardCount());
+            result.put("movedSlots", source.movedSlots(target));
+            result.put("switched", switched);
+            result.put("scanned", scanned.get());
+            result.put("copied", copied.get());
+            result.put("repaired", repaired.get());
+            result.put("deleted", deleted.get());
+            result.put("verifyPasses", verifyPasses);
+            result.put("phaseScanned", phaseScanned);
+            result.put("phaseRows", phaseRows);
+            result.put("rowsPerSecond", (long) rate);
+            result.put("throttleRowsPerSecond", limiter.getRate());
+            //按本阶段的平均速率估计剩余时间，行数是开始时count出来的，有并发写入时只是近似值
+            if(endTime == 0 && rate > 0) {
+                result.put("phaseEtaSeconds", Math.max(0, phaseRows - phaseScanned) / rate);
+            }
+            result.put("elapsedMillis", now - startTime);
+            if(error != null) {
+                result.put("error", String.valueOf(error.getMessage()));
+            }
+            return result;
+        }
+    }
+
+    /**
+     * 在后台开始迁移，立即返回
+     * @param targetShardCount 新的分表数量，对应的分表需要事先建好
+     * @param rowsPerSecond 每秒最多扫描的行数，为null时按配置
+     * @return 初始进度
+     */
+    public Map<String, Object> start(int targetShardCount, Double rowsPerSecond) {
+        if(!enabled || !shardTopologyStore.persisted()) {
+            throw new ConflictException("在线迁移需要开启test.rebalance.enabled和test.shard.topology.persisted，"
+                    + "并且迁移期间只有本节点对外服务");
+        }
+        if(targetShardCount < 1 || targetShardCount > ShardRouter.SLOT_COUNT) {
+            throw new BadRequestException("targetShardCount必须在1到" + ShardRouter.SLOT_COUNT + "之间！");
+        }
+        if(targetShardCount == shardRouter.shardCount()) {
+            throw new BadRequestException("分表数量没有变化！");
+        }
+        double rate = rowsPerSecond == null ? this.rowsPerSecond : rowsPerSecond;
+        if(rate <= 0) {
+            throw new BadRequestException("rowsPerSecond必须大于0！");
+        }
+        if(!running.tryAcquire()) {
+            throw new ServiceUnavailableException("已有迁移任务在执行，请稍后重试");
+        }
+        try {
+            if(shardRouter.previous() != null) {
+                throw new ServiceUnavailableException("上一次迁移的旧分表还没有清理完");
+            }
+            ShardRouter source = shardRouter.current();
+            Job job = new Job(source, source.resize(targetShardCount), rate);
+            job.enter(Phase.COPYING, countRows(source));
+            shardRouter.prepare(job.target);
+            current = job;
+            Thread thread = new Thread(() -> run(job), "shard-rebalance");
+            thread.setDaemon(true);
+            thread.start();
+            return job.progress();
+        } catch (RuntimeException e) {
+            running.release();
+            throw e;
+        }
+    }
+
+    /**
+     * 当前或最近一次迁移的进度
+     */
+    public Map<String, Object> progress() {
+        Job job = current;
+        if(job == null) {
+            Map<String, Object> result = new LinkedHashMap<>();
+            result.put("phase", "IDLE");
+            return result;
+        }
+        return job.progress();
+    }
+
+    /**
+     * 运行中调整限速
+     */
+    public Map<String, Object> throttle(double rowsPerSecond) {
+        if(rowsPerSecond <= 0) {
+            throw new BadRequestException("rowsPerSecond必须大于0！");
+        }
+        Job job = current;
+        if(job != null && job.endTime == 0) {
+            job.limiter.setRate(rowsPerSecond);
+        }
+        return progress();
+    }
+
+    /**
+     * 只能在切换路由之前取消，已经复制到新分表的副本会被删掉
+     */
+    public Map<String, Object> cancel() {
+        Job job = current;
+        if(job == null || job.endTime != 0) {
+            throw new ConflictException("没有正在执行的迁移");
+        }
+        synchronized (job) {
+            if(job.switched) {
+                throw new ConflictException("已经切换路由，不能取消");
+            }
+            job.cancelled = true;
+        }
+        return progress();
+    }
+
+    private void run(Job job) {
+        shardRouter.bindMigrator(Thread.currentThread());
+        try {
+            for(int shard = 0; shard < job.source.shardCount(); shard++) {
+                int owner = shard;
+                scan(job, job.source.tableOf(shard), true, rows -> copy(job, owner, rows));
+            }
+            long repaired;
+            do {
+                job.enter(Phase.VERIFYING, countRows(job.source) + countRows(job.target));
+                job.verifyPasses++;
+                repaired = verify(job);
+            } while(repaired > 0 && job.verifyPasses < maxVerifyPasses);
+            //一直有写入时可能收敛不到0，这些行都在dirty里，切换前补齐
+            if(repaired > 0) {
+                logger.warn("迁移校验" + job.verifyPasses + "轮后仍有" + repaired + "行不一致，切换前补齐");
+            }
+            //在fence外面追到只剩一块以内才拦写入，fence里补齐的量有上限，写入最多停顿一块的时间
+            int rounds = 0;
+            while(!job.switched) {
+                while(shardRouter.dirtyCount() > chunkSize) {
+                    if(job.cancelled) {
+                        throw new CancellationException();
+                    }
+                    if(++rounds > maxCatchUpRounds) {
+                        throw new IllegalStateException("写入太频繁，补齐" + maxCatchUpRounds + "轮后仍有"
+                                + shardRouter.dirtyCount() + "个id待补，没有切换路由");
+                    }
+                    catchUp(job);
+                }
+                synchronized (job) {
+                    if(job.cancelled) {
+                        throw new CancellationException();
+                    }
+                    shardRouter.fence(() -> {
+                        //等在途写入结束时又积累了一批，放开写入回到外面继续追
+                        if(shardRouter.dirtyCount() > chunkSize) {
+                            return;
+                        }
+                        catchUp(job);
+                        shardTopologyStore.save(job.source.shardCount(), job.target.shardCount());
+                        //切换期间布隆过滤器全部放行，清理之后按新分表重建
+                        testBloomFilter.suspend();
+                        shardRouter.switchTo();
+                        job.switched = true;
+                    });
+                }
+            }
+            hotKeyTracker.resize();
+            job.enter(Phase.DRAINING, 0);
+            Thread.sleep(drainMillis);
+
+            job.enter(Phase.CLEANING, countRows(job.source));
+            for(int shard = 0; shard < job.source.shardCount(); shard++) {
+                int owner = shard;
+                scan(job, job.source.tableOf(shard), false, rows -> clean(job, owner, rows));
+            }
+            testBloomFilter.rebuild();
+            shardRouter.finishSwitch();
+            job.enter(Phase.DONE, 0);
+        } catch (CancellationException e) {
+            shardRouter.abort();
+            rollback(job);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            fail(job, e);
+        } catch (RuntimeException e) {
+            fail(job, e);
+        } finally {
+            shardRouter.bindMigrator(null);
+            job.endTime = System.currentTimeMillis();
+            running.release();
+            logger.info("迁移结束：" + job.progress());
+        }
+    }
+
+    private void fail(Job job, Throwable e) {
+        logger.error("迁移失败", e);
+        job.error = e;
+        if(!job.switched) {
+            //新分表里的副本不属于当前路由，读写和列表都不会用到
+            shardRouter.abort();
+        }
+        job.phase = Phase.FAILED;
+    }
+
+    /**
+     * 取消后删掉已经复制到新分表的副本
+     */
+    private void rollback(Job job) {
+        try {
+            job.enter(Phase.CANCELLED, countRows(job.target));
+            for(int shard = 0; shard < job.target.shardCount(); shard++) {
+                int owner = shard;
+                String table = job.target.tableOf(shard);
+                scan(job, table, false, rows -> {
+                    List<Long> ids = new ArrayList<>();
+                    for(TestRecord row : rows) {
+                        if(job.source.shardOfId(row.getId()) != owner && job.target.shardOfId(row.getId()) == owner) {
+                            ids.add(row.getId());
+                        }
+                    }
+                    if(!ids.isEmpty()) {
+                        job.deleted.addAndGet(testMapper.delTests(table, ids));
+                    }
+                });
+            }
+        } catch (RuntimeException e) {
+            logger.error("清理新分表里的副本失败", e);
+            job.error = e;
+        }
+    }
+
+    private void copy(Job job, int owner, List<TestRecord> rows) {
+        for(Map.Entry<String, List<TestRecord>> entry : moved(job, owner, rows).entrySet()) {
+            job.copied.addAndGet(upsert(entry.getKey(), entry.getValue()));
+        }
+    }
+
+    /**
+     * @return 本轮修复和删除的行数
+     */
+    private long verify(Job job) {
+        AtomicLong repaired = new AtomicLong();
+        for(int shard = 0; shard < job.source.shardCount(); shard++) {
+            int owner = shard;
+            scan(job, job.source.tableOf(shard), true, rows -> {
+                for(Map.Entry<String, List<TestRecord>> entry : moved(job, owner, rows).entrySet()) {
+                    List<TestRecord> expected = entry.getValue();
+                    List<TestRecord> actual = fetch(entry.getKey(), expected);
+                    if(checksum(expected) == checksum(actual)) {
+                        continue;
+                    }
+                    Map<Long, TestRecord> actualById = byId(actual);
+                    List<TestRecord> diff = new ArrayList<>();
+                    for(TestRecord row : expected) {
+                        TestRecord copy = actualById.get(row.getId());
+                        if(copy == null || checksum(row) != checksum(copy)) {
+                            diff.add(row);
+                        }
+                    }
+                    if(!diff.isEmpty()) {
+                        upsert(entry.getKey(), diff);
+                        repaired.addAndGet(diff.size());
+                    }
+                }
+            });
+        }
+        //复制之后旧分表里删除的行，新分表里的副本也要删掉
+        for(int shard = 0; shard < job.target.shardCount(); shard++) {
+            int owner = shard;
+            String table = job.target.tableOf(shard);
+            scan(job, table, true, rows -> {
+                Map<String, List<TestRecord>> copies = new TreeMap<>();
+                for(TestRecord row : rows) {
+                    int sourceShard = job.source.shardOfId(row.getId());
+                    if(sourceShard != owner && job.target.shardOfId(row.getId()) == owner) {
+                        copies.computeIfAbsent(job.source.tableOf(sourceShard), t -> new ArrayList<>()).add(row);
+                    }
+                }
+                for(Map.Entry<String, List<TestRecord>> entry : copies.entrySet()) {
+                    Map<Long, TestRecord> originals = byId(fetch(entry.getKey(), entry.getValue()));
+                    List<Long> orphans = new ArrayList<>();
+                    for(TestRecord row : entry.getValue()) {
+                        if(!originals.containsKey(row.getId())) {
+                            orphans.add(row.getId());
+                        }
+                    }
+                    if(!orphans.isEmpty()) {
+                        job.deleted.addAndGet(testMapper.delTests(table, orphans));
+                        repaired.addAndGet(orphans.size());
+                    }
+                }
+            });
+        }
+        job.repaired.addAndGet(repaired.get());
+        return repaired.get();
+    }
+
+    /**
+     * 复制开始之后写过的id按旧分表里的现状补到新分表：还在的upsert，已经删掉的也从新分表删掉
+     */
+    private void catchUp(Job job) {
+        Map<String, List<Long>> bySource = new TreeMap<>();
+        for(Long id : shardRouter.drainDirty()) {
+            bySource.computeIfAbsent(job.source.tableOf(job.source.shardOfId(id)), t -> new ArrayList<>()).add(id);
+        }
+        for(Map.Entry<String, List<Long>> entry : bySource.entrySet()) {
+            List<Long> ids = entry.getValue();
+            for(int from = 0; from < ids.size(); from += chunkSize) {
+                List<Long> chunk = ids.subList(from, Math.min(from + chunkSize, ids.size()));
+                Map<Long, TestRecord> rows = byId(testMapper.getTests(entry.getKey(), chunk));
+                Map<String, List<TestRecord>> upserts = new TreeMap<>();
+                Map<String, List<Long>> deletes = new TreeMap<>();
+                for(Long id : chunk) {
+                    String table = job.target.tableOf(job.target.shardOfId(id));
+                    TestRecord row = rows.get(id);
+                    if(row != null) {
+                        upserts.computeIfAbsent(table, t -> new ArrayList<>()).add(row);
+                    } else {
+                        deletes.computeIfAbsent(table, t -> new ArrayList<>()).add(id);
+                    }
+                }
+                for(Map.Entry<String, List<TestRecord>> upsert : upserts.entrySet()) {
+                    job.repaired.addAndGet(upsert(upsert.getKey(), upsert.getValue()));
+                }
+                for(Map.Entry<String, List<Long>> delete : deletes.entrySet()) {
+                    job.deleted.addAndGet(testMapper.delTests(delete.getKey(), delete.getValue()));
+                }
+            }
+        }
+    }
+
+    /**
+     * 切换之后旧分表里已迁走的行不会再被读写，直接删除
+     */
+    private void clean(Job job, int owner, List<TestRecord> rows) {
+        List<Long> ids = new ArrayList<>();
+        for(List<TestRecord> moved : moved(job, owner, rows).values()) {
+            for(TestRecord row : moved) {
+                ids.add(row.getId());
+            }
+        }
+        if(!ids.isEmpty()) {
+            job.deleted.addAndGet(testMapper.delTests(job.source.tableOf(owner), ids));
+        }
+    }
+
+    /**
+     * 按id游标逐块扫描，每块先按行数取令牌
+     * @param cancellable 切换路由之前的阶段响应取消
+     */
+    private void scan(Job job, String table, boolean cancellable, Consumer<List<TestRecord>> chunkConsumer) {
+        long afterId = Long.MIN_VALUE;
+        while(true) {
+            if(cancellable && job.cancelled) {
+                throw new CancellationException();
+            }
+            List<TestRecord> rows = testMapper.listTest(table, afterId, chunkSize);
+            if(rows.isEmpty()) {
+                return;
+            }
+            job.limiter.acquire(rows.size());
+            chunkConsumer.accept(rows);
+            job.scanned.addAndGet(rows.size());
+            job.phaseScanned.addAndGet(rows.size());
+            if(rows.size() < chunkSize) {
+                return;
+            }
+            afterId = rows.get(rows.size() - 1).getId();
+        }
+    }
+
+    /**
+     * 旧分表owner里归属改变的行，按新分表分组
+     */
+    private static Map<String, List<TestRecord>> moved(Job job, int owner, List<TestRecord> rows) {
+        Map<String, List<TestRecord>> result = new TreeMap<>();
+        for(TestRecord row : rows) {
+            int targetShard = job.target.shardOfId(row.getId());
+            if(targetShard != owner && job.source.shardOfId(row.getId()) == owner) {
+                result.computeIfAbsent(job.target.tableOf(targetShard), t -> new ArrayList<>()).add(row);
+            }
+        }
+        return result;
+    }
+
+    private List<TestRecord> fetch(String table, List<TestRecord> rows) {
+        List<Long> ids = new ArrayList<>(rows.size());
+        for(TestRecord row : rows) {
+            ids.add(row.getId());
+        }
+        List<TestRecord> result = new ArrayList<>(testMapper.getTests(table, ids));
+        result.sort(Comparator.comparingLong(TestRecord::getId));
+        return result;
+    }
+
+    private int upsert(String table, List<TestRecord> rows) {
+        testMapper.upsertTests(table, rows);
+        return rows.size();
+    }
+
+    private long countRows(ShardRouter router) {
+        long total = 0;
+        for(int shard = 0; shard < router.shardCount(); shard++) {
+            total += testMapper.countTest(router.tableOf(shard));
+        }
+        return total;
+    }
+
+    private static Map<Long, TestRecord> byId(List<TestRecord> rows) {
+        Map<Long, TestRecord> result = new HashMap<>(rows.size() * 2);
+        for(TestRecord row : rows) {
+            result.put(row.getId(), row);
+        }
+        return result;
+    }
+
+    /**
+     * 按id顺序对id、key、value、version做CRC32
+     */
+    private static long checksum(List<TestRecord> rows) {
+        CRC32 crc = new CRC32();
+        for(TestRecord row : rows) {
+            update(crc, row);
+        }
+        return crc.getValue();
+    }
+
+    private static long checksum(TestRecord row) {
+        CRC32 crc = new CRC32();
+        update(crc, row);
+        return crc.getValue();
+    }
+
+    private static void update(CRC32 crc, TestRecord row) {
+        String line = row.getId() + "\u0001" + row.getKey() + "\u0001" + row.getValue() + "\u0001" + row.getVersion() + "\n";
+        crc.update(line.getBytes(StandardCharsets.UTF_8));
+    }
+}
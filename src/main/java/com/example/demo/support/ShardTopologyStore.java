@@ -0,0 +1,67 @@
+package com.example.demo.support;
+
+import com.example.demo.mapper.ShardTopologyMapper;
+import com.example.demo.shard.SwitchableShardRouter;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.dao.DuplicateKeyException;
+import org.springframework.stereotype.Component;
+
+/**
+ * 分表数量持久化在shard_topology表里，所有节点共用
+ * test.shard.topology.persisted=true时启动时以表里的为准(test.shard.count只用于第一次插入)，
+ * 迁移切换路由时在同一个fence里更新，重启或者新节点启动都按迁移后的分表数路由。
+ * 按分表数组织数组的组件(布隆过滤器、热点统计)依赖这个bean，保证初始化时拿到的是持久化的分表数
+ */
+@Component
+public class ShardTopologyStore implements InitializingBean {
+
+    private static Log logger = LogFactory.getLog(ShardTopologyStore.class);
+
+    @Autowired
+    private SwitchableShardRouter shardRouter;
+
+    @Autowired
+    private ShardTopologyMapper shardTopologyMapper;
+
+    @Value("${test.shard.topology.persisted:false}")
+    private boolean persisted;
+
+    @Override
+    public void afterPropertiesSet() {
+        if(!persisted) {
+            return;
+        }
+        try {
+            shardTopologyMapper.init(shardRouter.shardCount());
+        } catch (DuplicateKeyException e) {
+            //其它节点同时插入了
+        }
+        Integer shardCount = shardTopologyMapper.getShardCount();
+        if(shardCount != null && shardCount != shardRouter.shardCount()) {
+            logger.warn("按shard_topology表使用" + shardCount + "张分表，配置的test.shard.count="
+                    + shardRouter.shardCount() + "已过时");
+            shardRouter.restore(shardRouter.resize(shardCount));
+        }
+    }
+
+    public boolean persisted() {
+        return persisted;
+    }
+
+    /**
+     * 迁移切换时调用
+     * @throws IllegalStateException 库里的分表数已经不是expected
+     */
+    public void save(int expected, int shardCount) {
+        if(!persisted) {
+            return;
+        }
+        if(shardTopologyMapper.updateShardCount(expected, shardCount) == 0) {
+            throw new IllegalStateException("shard_topology表里的分表数不是" + expected + "，可能有其它节点在迁移");
+        }
+    }
+}
@@ -0,0 +1,75 @@
+package com.example.demo.support;
+
+import com.example.demo.exception.ServiceUnavailableException;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/**
+ * 相同key的并发加载合并为一次(single flight)
+ * 第一个到达的线程执行加载，其它线程等待同一个CompletableFuture，
+ * 加载失败时所有等待的线程拿到同一个异常；等待超时只影响等待的线程，不影响正在进行的加载
+ */
+public class SingleFlight<K, V> {
+
+    private final ConcurrentHashMap<K, CompletableFuture<V>> inFlight = new ConcurrentHashMap<>();
+
+    private final LongAdder loads = new LongAdder();
+
+    private final LongAdder coalesced = new LongAdder();
+
+    public V execute(K key, Supplier<V> loader, long timeout, TimeUnit unit) {
+        CompletableFuture<V> future = new CompletableFuture<>();
+        CompletableFuture<V> existing = inFlight.putIfAbsent(key, future);
+        if(existing == null) {
+            loads.increment();
+            try {
+                V value = loader.get();
+                future.complete(value);
+                return value;
+            } catch (RuntimeException | Error e) {
+                future.completeExceptionally(e);
+                throw e;
+            } finally {
+                inFlight.remove(key, future);
+            }
+        }
+        coalesced.increment();
+        try {
+            return existing.get(timeout, unit);
+        } catch (TimeoutException e) {
+            throw new ServiceUnavailableException("等待加载" + key + "超时");
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new ServiceUnavailableException("等待加载" + key + "时被中断");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if(cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            if(cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new IllegalStateException(cause);
+        }
+    }
+
+    /**
+     * 实际执行的加载次数
+     */
+    public long loads() {
+        return loads.sum();
+    }
+
+    /**
+     * 合并到别人加载结果上的次数
+     */
+    public long coalesced() {
+        return coalesced.sum();
+    }
+}
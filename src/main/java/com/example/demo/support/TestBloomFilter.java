@@ -0,0 +1,298 @@
+package com.example.demo.support;
+
+import com.example.demo.id.IdGenerator;
+import com.example.demo.mapper.TestMapper;
+import com.example.demo.shard.ShardRouter;
+import com.google.common.hash.BloomFilter;
+import com.google.common.hash.Funnels;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.ApplicationListener;
+import org.springframework.context.annotation.DependsOn;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 每张分表一个布隆过滤器，拦截不存在的id
+ * 启动后每张分表一个线程按id游标分块扫描已有id构建，新写入的id在分配时就放进去。
+ * 构建完成之前(或构建失败)一律放行，不会误拦存在的记录；删除不会从过滤器中移除，只会多放行。
+ * guava 23之后的BloomFilter用原子操作置位，可以并发put和mightContain。
+ *
+ * 多节点部署时过滤器只知道本节点分配的id和构建时扫描到的id，其它节点在扫描开始之后写入的记录不在里面，
+ * 所以否定结果只对扫描开始(减去余量)之前生成的id可信，更新的id放行给数据库确认；
+ * 生成时间按IdGenerator.createdAt算，号段模式的id没有时间，否定结果一律不可信。
+ * 每隔refreshSeconds在后台重新扫描一遍，换上新的过滤器，让可信范围往前推
+ */
+@Component
+@DependsOn("shardTopologyStore")
+public class TestBloomFilter implements InitializingBean, ApplicationListener<ApplicationReadyEvent> {
+
+    private static Log logger = LogFactory.getLog(TestBloomFilter.class);
+
+    @Autowired
+    private TestMapper testMapper;
+
+    @Autowired
+    private ShardRouter shardRouter;
+
+    @Autowired
+    private IdGenerator idGenerator;
+
+    @Value("${test.bloom.enabled:true}")
+    private boolean enabled;
+
+    /**
+     * 每张分表预计的记录数，超过后误判率会升高
+     */
+    @Value("${test.bloom.expected-insertions:1000000}")
+    private long expectedInsertions;
+
+    @Value("${test.bloom.fpp:0.01}")
+    private double fpp;
+
+    /**
+     * 写入耗时加上节点间时钟偏差的上限，生成时间晚于扫描开始减去这个余量的id不做拦截
+     */
+    @Value("${test.bloom.trust-margin-millis:5000}")
+    private long trustMarginMillis;
+
+    @Value("${test.bloom.refresh-seconds:600}")
+    private long refreshSeconds;
+
+    /**
+     * 构建时按id游标每次读取的行数
+     */
+    @Value("${test.bloom.build-chunk-size:5000}")
+    private int buildChunkSize;
+
+    //扩缩容和定时刷新后整体替换
+    private volatile Shard[] shards;
+
+    //定时刷新正在构建的过滤器，新分配的id同时放进去
+    private volatile Shard[] refreshing;
+
+    private boolean suspended;
+
+    private ScheduledExecutorService refresher;
+
+    private final AtomicLong checks = new AtomicLong();
+
+    private final AtomicLong rejected = new AtomicLong();
+
+    private final AtomicLong unconfirmed = new AtomicLong();
+
+    private static class Shard {
+        private final BloomFilter<Long> filter;
+        private volatile boolean ready;
+        private volatile long scanned;
+        //开始扫描的时间，之前写入的记录都在过滤器里
+        private volatile long scanStart;
+
+        Shard(BloomFilter<Long> filter) {
+            this.filter = filter;
+        }
+    }
+
+    @Override
+    public void afterPropertiesSet() {
+        shards = newShards();
+        if(enabled && refreshSeconds > 0) {
+            refresher = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread thread = new Thread(r, "bloom-refresh");
+                thread.setDaemon(true);
+                return thread;
+            });
+            refresher.scheduleWithFixedDelay(this::refresh, refreshSeconds, refreshSeconds, TimeUnit.SECONDS);
+        }
+    }
+
+    @Override
+    public void onApplicationEvent(ApplicationReadyEvent event) {
+        buildAll(shards);
+    }
+
+    /**
+     * 迁移切换路由之前调用，记录换了分表之后原来的过滤器不再可信，全部放行
+     */
+    public synchronized void suspend() {
+        suspended = true;
+        for(Shard shard : shards) {
+            shard.ready = false;
+        }
+    }
+
+    /**
+     * 切换路由之后按新的分表重新构建，构建完成前放行
+     */
+    public synchronized void rebuild() {
+        suspended = false;
+        Shard[] next = newShards();
+        shards = next;
+        buildAll(next);
+    }
+
+    /**
+     * 后台逐张分表重新扫描，全部成功后整体替换，期间旧的过滤器照常使用
+     */
+    private void refresh() {
+        Shard[] base = shards;
+        Shard[] next = newShards();
+        refreshing = next;
+        try {
+            for(int i = 0; i < next.length; i++) {
+                if(!build(next, i)) {
+                    return;
+                }
+            }
+            synchronized (this) {
+                //刷新期间迁移挂起或者重建了，这次的结果作废
+                if(!suspended && shards == base) {
+                    shards = next;
+                }
+            }
+        } finally {
+            refreshing = null;
+        }
+    }
+
+    private Shard[] newShards() {
+        Shard[] next = new Shard[shardRouter.shardCount()];
+        for(int i = 0; i < next.length; i++) {
+            next[i] = new Shard(BloomFilter.create(Funnels.longFunnel(), expectedInsertions, fpp));
+        }
+        return next;
+    }
+
+    private void buildAll(Shard[] target) {
+        if(!enabled) {
+            return;
+        }
+        for(int i = 0; i < target.length; i++) {
+            int shard = i;
+            Thread thread = new Thread(() -> build(target, shard), "bloom-build-" + shard);
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    /**
+     * 新分配的id，写库之前放入
+     * @param id
+     */
+    public void put(long id) {
+        int shard = shardRouter.shardOfId(id);
+        Shard[] current = shards;
+        if(shard < current.length) {
+            current[shard].filter.put(id);
+        }
+        Shard[] next = refreshing;
+        if(next != null && shard < next.length) {
+            next[shard].filter.put(id);
+        }
+    }
+
+    /**
+     * @param id
+     * @return false表示一定不存在，true时由调用方查库确认
+     */
+    public boolean mightContain(long id) {
+        if(!enabled) {
+            return true;
+        }
+        checks.incrementAndGet();
+        Shard[] current = shards;
+        int index = shardRouter.shardOfId(id);
+        if(index >= current.length) {
+            //分表数刚变，还没rebuild
+            return true;
+        }
+        Shard shard = current[index];
+        if(!shard.ready || shard.filter.mightContain(id)) {
+            return true;
+        }
+        //可能是其它节点在扫描开始之后写入的
+        long createdAt = idGenerator.createdAt(id);
+        if(createdAt < 0 || createdAt > shard.scanStart - trustMarginMillis) {
+            unconfirmed.incrementAndGet();
+            return true;
+        }
+        rejected.incrementAndGet();
+        return false;
+    }
+
+    public Map<String, Object> stats() {
+        long bits = optimalNumOfBits(expectedInsertions, fpp);
+        Shard[] shards = this.shards;
+        List<Map<String, Object>> items = new ArrayList<>(shards.length);
+        for(int i = 0; i < shards.length; i++) {
+            Map<String, Object> item = new LinkedHashMap<>();
+            item.put("shard", i);
+            item.put("ready", shards[i].ready);
+            item.put("scanned", shards[i].scanned);
+            item.put("scanStart", shards[i].scanStart);
+            item.put("approximateElementCount", shards[i].filter.approximateElementCount());
+            item.put("expectedFpp", shards[i].filter.expectedFpp());
+            items.add(item);
+        }
+        Map<String, Object> result = new LinkedHashMap<>();
+        result.put("enabled", enabled);
+        result.put("expectedInsertions", expectedInsertions);
+        result.put("fpp", fpp);
+        result.put("bitsPerShard", bits);
+        result.put("bytes", bits / 8 * shards.length);
+        result.put("checks", checks.get());
+        result.put("rejected", rejected.get());
+        result.put("unconfirmed", unconfirmed.get());
+        result.put("trustMarginMillis", trustMarginMillis);
+        result.put("refreshSeconds", refreshSeconds);
+        result.put("shards", items);
+        return result;
+    }
+
+    private boolean build(Shard[] target, int index) {
+        Shard shard = target[index];
+        String table = shardRouter.tableOf(index);
+        long start = System.currentTimeMillis();
+        shard.scanStart = start;
+        try {
+            long afterId = Long.MIN_VALUE;
+            while(true) {
+                List<Long> ids = testMapper.scanIds(table, afterId, buildChunkSize);
+                for(Long id : ids) {
+                    shard.filter.put(id);
+                }
+                shard.scanned += ids.size();
+                if(ids.size() < buildChunkSize) {
+                    break;
+                }
+                afterId = ids.get(ids.size() - 1);
+            }
+            shard.ready = true;
+            logger.info(table + "布隆过滤器构建完成，" + shard.scanned + "条，耗时"
+                    + (System.currentTimeMillis() - start) + "ms");
+            return true;
+        } catch (Exception e) {
+            logger.error(table + "布隆过滤器构建失败，该分表不做拦截", e);
+            return false;
+        }
+    }
+
+    /**
+     * 与guava BloomFilter内部的位数计算方式相同：m = -n*ln(p)/(ln2)^2
+     */
+    private static long optimalNumOfBits(long n, double p) {
+        return (long) (-n * Math.log(p) / (Math.log(2) * Math.log(2)));
+    }
+}
@@ -0,0 +1,195 @@
+package com.example.demo.support;
+
+import com.example.demo.entity.TestRecord;
+import com.example.demo.entity.TestRecordBatch;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.function.Function;
+import java.util.function.LongFunction;
+
+/**
+ * getTest的本地缓存(read-through)
+ * 基于guava Cache，按条数淘汰，写入后过期时间兜底其它节点的修改。
+ *
+ * 本节点的修改通过invalidate保证读不到旧值：按id分段维护一个修改计数，
+ * 读库前记下计数，放入缓存后再检查一次，期间有修改就把刚放入的值删掉，
+ * 避免"先读到旧值、修改删缓存、再把旧值放回缓存"的问题。
+ *
+ * 未命中时同一个id的并发读库合并成一次(SingleFlight)，合并的key带上修改计数，
+ * 修改之后到达的读请求不会等一个修改之前发出的查询
+ */
+@Component
+public class TestCache implements InitializingBean {
+
+    private static final int STRIPES = 1024;
+
+    @Value("${test.cache.maximum-size:100000}")
+    private long maximumSize;
+
+    @Value("${test.cache.expire-after-write-seconds:600}")
+    private long expireAfterWriteSeconds;
+
+    /**
+     * 等待别的线程读库的最长时间
+     */
+    @Value("${test.cache.load-timeout-millis:3000}")
+    private long loadTimeoutMillis;
+
+    private final SingleFlight<LoadKey, TestRecord> singleFlight = new SingleFlight<>();
+
+    private Cache<Long, TestRecord> cache;
+
+    private final AtomicLongArray writeStamps = new AtomicLongArray(STRIPES);
+
+    @Override
+    public void afterPropertiesSet() {
+        cache = CacheBuilder.newBuilder()
+                .maximumSize(maximumSize)
+                .expireAfterWrite(expireAfterWriteSeconds, TimeUnit.SECONDS)
+                .recordStats()
+                .build();
+    }
+
+    /**
+     * 命中直接返回，未命中时调用loader读库并放入缓存，不存在的记录不缓存
+     * @param id
+     * @param loader
+     * @return
+     */
+    public TestRecord get(long id, LongFunction<TestRecord> loader) {
+        TestRecord row = cache.getIfPresent(id);
+        if(row != null) {
+            return row;
+        }
+        int stripe = stripe(id);
+        long stamp = writeStamps.get(stripe);
+        row = singleFlight.execute(new LoadKey(id, stamp), () -> loader.apply(id),
+                loadTimeoutMillis, TimeUnit.MILLISECONDS);
+        if(row != null) {
+            cache.put(id, row);
+            if(writeStamps.get(stripe) != stamp) {
+                cache.invalidate(id);
+            }
+        }
+        return row;
+    }
+
+    /**
+     * 批量读取，先查缓存，未命中的id一次交给loader，结果按修改计数检查后放入缓存
+     * @param ids 可以重复，会排序去重
+     * @param loader 按未命中的id批量读库，不存在的id不返回
+     * @return 找到的记录，不存在的id不在结果里
+     */
+    public TestRecordBatch getAll(long[] ids, Function<List<Long>, List<TestRecord>> loader) {
+        long[] sorted = ids.clone();
+        Arrays.sort(sorted);
+        TestRecordBatch result = new TestRecordBatch(sorted.length);
+        List<Long> missing = new ArrayList<>();
+        //和missing一一对应
+        long[] stamps = new long[sorted.length];
+        for(int i = 0; i < sorted.length; i++) {
+            long id = sorted[i];
+            if(i > 0 && id == sorted[i - 1]) {
+                continue;
+            }
+            TestRecord row = cache.getIfPresent(id);
+            if(row != null) {
+                result.add(row);
+            } else {
+                stamps[missing.size()] = writeStamps.get(stripe(id));
+                missing.add(id);
+            }
+        }
+        if(missing.isEmpty()) {
+            return result;
+        }
+        TestRecordBatch loaded = new TestRecordBatch(missing.size());
+        for(TestRecord row : loader.apply(missing)) {
+            loaded.add(row);
+        }
+        for(int i = 0; i < missing.size(); i++) {
+            long id = missing.get(i);
+            TestRecord row = loaded.get(id);
+            if(row == null) {
+                continue;
+            }
+            result.add(row);
+            cache.put(id, row);
+            if(writeStamps.get(stripe(id)) != stamps[i]) {
+                cache.invalidate(id);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * 修改、删除之后调用
+     * @param id
+     */
+    public void invalidate(long id) {
+        writeStamps.incrementAndGet(stripe(id));
+        cache.invalidate(id);
+    }
+
+    public Map<String, Object> stats() {
+        CacheStats stats = cache.stats();
+        Map<String, Object> result = new LinkedHashMap<>();
+        result.put("size", cache.size());
+        result.put("maximumSize", maximumSize);
+        result.put("hitCount", stats.hitCount());
+        result.put("missCount", stats.missCount());
+        result.put("hitRate", stats.hitRate());
+        result.put("evictionCount", stats.evictionCount());
+        result.put("loadCount", singleFlight.loads());
+        result.put("coalescedLoadCount", singleFlight.coalesced());
+        return result;
+    }
+
+    private static final class LoadKey {
+        private final long id;
+        private final long stamp;
+
+        LoadKey(long id, long stamp) {
+            this.id = id;
+            this.stamp = stamp;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if(this == o) {
+                return true;
+            }
+            if(!(o instanceof LoadKey)) {
+                return false;
+            }
+            LoadKey other = (LoadKey) o;
+            return id == other.id && stamp == other.stamp;
+        }
+
+        @Override
+        public int hashCode() {
+            return Long.hashCode(id) * 31 + Long.hashCode(stamp);
+        }
+
+        @Override
+        public String toString() {
+            return String.valueOf(id);
+        }
+    }
+
+    private static int stripe(long id) {
+        return (int) ((id ^ (id >>> 32)) & (STRIPES - 1));
+    }
+}
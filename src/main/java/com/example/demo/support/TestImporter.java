@@ -0,0 +1,336 @@
+package com.example.demo.support;
+
+import com.alibaba.fastjson.JSON;
+import com.alibaba.fastjson.JSONObject;
+import com.example.demo.entity.ChangeEvent;
+import com.example.demo.entity.TestRecord;
+import com.example.demo.exception.BadRequestException;
+import com.example.demo.exception.ServiceUnavailableException;
+import com.example.demo.id.IdGenerator;
+import com.example.demo.shard.ShardBatchWriter;
+import com.example.demo.shard.ShardRouter;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * 流式批量导入
+ * 解析线程(即请求线程)从请求体逐行读取CSV(key,value)或NDJSON({"key":..,"value":..})，
+ * 按saveTest同样的规则分配id、路由到分表，放进该分表的有界队列；
+ * 每张分表一个装载线程从队列里取数据，凑够batchSize条写一次多行insert，写入后更新key索引并发布SAVE事件。
+ * 队列满时解析线程阻塞，内存占用只和队列长度有关。同一时间只允许一个导入任务。
+ *
+ * 不是事务：解析或写入出错时停止导入，出错之前已经写入的批次不回滚，它们的key索引、SAVE事件也都保留，
+ * 结果里的written是已经写入的行数，status为failed，请求格式错误时带failedLine(从1开始的行号)。
+ * 已经分配了id但没写入的行在布隆过滤器里留下的位只会多放行几次查库
+ */
+@Component
+public class TestImporter {
+
+    private static Log logger = LogFactory.getLog(TestImporter.class);
+
+    //队列结束标记
+    private static final TestRecord END = TestRecord.of(null, null);
+
+    @Autowired
+    private ShardRouter shardRouter;
+
+    @Autowired
+    private IdGenerator idGenerator;
+
+    @Autowired
+    private TestBloomFilter testBloomFilter;
+
+    @Autowired
+    private ShardBatchWriter shardBatchWriter;
+
+    @Autowired
+    private TestKeyIndex testKeyIndex;
+
+    @Autowired
+    private ChangeEventRing changeEventRing;
+
+    @Value("${test.import.queue-size:10000}")
+    private int queueSize;
+
+    @Value("${test.import.batch-size:1000}")
+    private int batchSize;
+
+    private final Semaphore running = new Semaphore(1);
+
+    private volatile Job current;
+
+    private static class Job {
+        private final String format;
+        private final long startTime = System.currentTimeMillis();
+        private volatile long endTime;
+        private final AtomicLong parsed = new AtomicLong();
+        private final AtomicLong skipped = new AtomicLong();
+        private final AtomicLongArray written;
+        private volatile String status = "running";
+        private volatile Throwable error;
+        //请求体格式错误的行号
+        private volatile long failedLine;
+
+        Job(String format, int shardCount) {
+            this.format = format;
+            this.written = new AtomicLongArray(shardCount);
+        }
+
+        void fail(Throwable e) {
+            if(error == null) {
+                error = e;
+            }
+        }
+
+        Map<String, Object> progress() {
+            long total = 0;
+            List<Long> shards = new ArrayList<>(written.length());
+            for(int i = 0; i < written.length(); i++) {
+                shards.add(written.get(i));
+                total += written.get(i);
+            }
+            long elapsed = (endTime == 0 ? System.currentTimeMillis() : endTime) - startTime;
+            Map<String, Object> result = new LinkedHashMap<>();
+            result.put("status", status);
+            result.put("format", format);
+            result.put("parsed", parsed.get());
+            result.put("skipped", skipped.get());
+            result.put("written", total);
+            result.put("writtenPerShard", shards);
+            result.put("elapsedMillis", elapsed);
+            result.put("rowsPerSecond", elapsed == 0 ? 0 : total * 1000 / elapsed);
+            if(error != null) {
+                result.put("error", String.valueOf(error.getMessage()));
+            }
+            if(failedLine > 0) {
+                result.put("failedLine", failedLine);
+            }
+            return result;
+        }
+    }
+
+    /**
+     * 阻塞到全部写完或者出错
+     * @param in 请求体
+     * @param format csv或ndjson
+     * @return 导入结果，出错时status为failed，之前写入的行不回滚
+     */
+    public Map<String, Object> importFrom(InputStream in, String format) throws IOException {
+        boolean ndjson = "ndjson".equalsIgnoreCase(format);
+        if(!ndjson && !"csv".equalsIgnoreCase(format)) {
+            throw new BadRequestException("不支持的格式：" + format);
+        }
+        if(!running.tryAcquire()) {
+            throw new ServiceUnavailableException("已有导入任务在执行，请稍后重试");
+        }
+        try {
+            int shardCount = shardRouter.shardCount();
+            Job job = new Job(format, shardCount);
+            current = job;
+            List<BlockingQueue<TestRecord>> queues = new ArrayList<>(shardCount);
+            List<Thread> loaders = new ArrayList<>(shardCount);
+            for(int shard = 0; shard < shardCount; shard++) {
+                BlockingQueue<TestRecord> queue = new ArrayBlockingQueue<>(queueSize);
+                int finalShard = shard;
+                Thread loader = new Thread(() -> load(job, finalShard, queue), "import-loader-" + shard);
+                loader.setDaemon(true);
+                queues.add(queue);
+                loaders.add(loader);
+                loader.start();
+            }
+            try {
+                parse(job, in, ndjson, queues);
+            } catch (IOException | RuntimeException e) {
+                job.fail(e);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                job.fail(e);
+            } finally {
+                for(BlockingQueue<TestRecord> queue : queues) {
+                    putEnd(job, queue);
+                }
+                for(Thread loader : loaders) {
+                    joinQuietly(loader);
+                }
+                job.endTime = System.currentTimeMillis();
+                job.status = job.error == null ? "finished" : "failed";
+            }
+            Map<String, Object> result = job.progress();
+            logger.info("导入结束：" + result);
+            return result;
+        } finally {
+            running.release();
+        }
+    }
+
+    /**
+     * 当前或最近一次导入的进度
+     */
+    public Map<String, Object> progress() {
+        Job job = current;
+        if(job == null) {
+            Map<String, Object> result = new LinkedHashMap<>();
+            result.put("status", "idle");
+            return result;
+        }
+        return job.progress();
+    }
+
+    private void parse(Job job, InputStream in, boolean ndjson,
+                       List<BlockingQueue<TestRecord>> queues) throws IOException, InterruptedException {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8), 64 * 1024);
+        String line;
+        boolean first = true;
+        long lineNumber = 0;
+        while((line = reader.readLine()) != null && job.error == null) {
+            lineNumber++;
+            if(line.trim().isEmpty()) {
+                continue;
+            }
+            String[] record;
+            try {
+                record = ndjson ? parseJson(line) : parseCsv(line);
+            } catch (RuntimeException e) {
+                job.failedLine = lineNumber;
+                throw new BadRequestException("第" + lineNumber + "行格式错误：" + e.getMessage());
+            }
+            if(first && !ndjson && "key".equals(record[0]) && "value".equals(record[1])) {
+                //跳过表头
+                first = false;
+                continue;
+            }
+            first = false;
+            if(record[0] == null) {
+                job.skipped.incrementAndGet();
+                continue;
+            }
+            long id = idGenerator.nextId(shardRouter.slotOf(record[0]));
+            testBloomFilter.put(id);
+            TestRecord row = new TestRecord(id, record[0], record[1], 0);
+            //队列满时在这里等装载线程，最多等1秒检查一次装载是否已经失败
+            BlockingQueue<TestRecord> queue = queues.get(shardRouter.shardOfId(id));
+            while(!queue.offer(row, 1, TimeUnit.SECONDS)) {
+                if(job.error != null) {
+                    return;
+                }
+            }
+            job.parsed.incrementAndGet();
+        }
+    }
+
+    private void load(Job job, int shard, BlockingQueue<TestRecord> queue) {
+        String table = shardRouter.tableOf(shard);
+        List<TestRecord> batch = new ArrayList<>(batchSize);
+        try {
+            boolean end = false;
+            while(!end) {
+                batch.add(queue.take());
+                queue.drainTo(batch, batchSize - 1);
+                //结束标记一定是最后一个入队的
+                if(batch.get(batch.size() - 1) == END) {
+                    batch.remove(batch.size() - 1);
+                    end = true;
+                }
+                if(!batch.isEmpty() && job.error == null) {
+                    job.written.addAndGet(shard, shardBatchWriter.writeTable(table, batch));
+                    for(TestRecord row : batch) {
+                        testKeyIndex.put(row.getId(), row.getKey());
+                        changeEventRing.publish(ChangeEvent.Type.SAVE, row.getId(), row.getKey(), row.getValue());
+                    }
+                }
+                batch.clear();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            job.fail(e);
+        } catch (RuntimeException e) {
+            logger.error("导入" + table + "失败", e);
+            job.fail(e);
+            //继续清空队列，避免解析线程阻塞在put上
+            drainUntilEnd(queue);
+        }
+    }
+
+    private static void drainUntilEnd(BlockingQueue<TestRecord> queue) {
+        try {
+            while(queue.take() != END) {
+                //丢弃
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static void putEnd(Job job, BlockingQueue<TestRecord> queue) {
+        try {
+            queue.put(END);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            job.fail(e);
+        }
+    }
+
+    private static void joinQuietly(Thread thread) {
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static String[] parseJson(String line) {
+        JSONObject object = JSON.parseObject(line);
+        return new String[] {object.getString("key"), object.getString("value")};
+    }
+
+    /**
+     * 解析一行两列的CSV，支持双引号包裹和""转义
+     */
+    private static String[] parseCsv(String line) {
+        String[] record = new String[2];
+        StringBuilder field = new StringBuilder();
+        int column = 0;
+        boolean quoted = false;
+        for(int i = 0; i < line.length(); i++) {
+            char c = line.charAt(i);
+            if(quoted) {
+                if(c == '"' && i + 1 < line.length() && line.charAt(i + 1) == '"') {
+                    field.append('"');
+                    i++;
+                } else if(c == '"') {
+                    quoted = false;
+                } else {
+                    field.append(c);
+                }
+            } else if(c == '"') {
+                quoted = true;
+            } else if(c == ',' && column == 0) {
+                record[column++] = field.toString();
+                field.setLength(0);
+            } else {
+                field.append(c);
+            }
+        }
+        record[column] = field.toString();
+        return record;
+    }
+}
@@ -0,0 +1,406 @@
+package com.example.demo.support;
+
+import com.example.demo.entity.TestRecord;
+import com.example.demo.mapper.TestMapper;
+import com.example.demo.shard.ShardRouter;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.ApplicationListener;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * key列的本地哈希索引：key到id，分表由id里的槽决定，不用另外存
+ * 启动后每张分表一个线程按id游标分块并行扫描构建，之后由写入路径(saveTest、updateTest、delTest、导入)维护。
+ * 所有分表构建完成之前查询返回null，调用方回退到查库。
+ *
+ * 修改key时要知道旧key，所以同时保留id到key的反向映射；对同一个id的修改都在keys.compute里进行，
+ * 构建期间写入路径改过的id记在touched里，扫描读到的旧值不会覆盖它们。
+ * put、remove在读锁里读取当前的构建，rebuild在写锁里先发布新的构建再清空，每个并发的写入要么在清空之前完成，
+ * 要么能看到新的构建并记进touched。
+ *
+ * 另外按(key, id)排序放在跳表里，支持范围和前缀扫描：跳表的读不加锁，迭代器弱一致，
+ * 遍历时的写入不会阻塞也不会让迭代器抛异常；改key时先加新的再删旧的，读到的可能是新旧两条，由调用方按库里的key过滤
+ */
+@Component
+public class TestKeyIndex implements ApplicationListener<ApplicationReadyEvent> {
+
+    private static Log logger = LogFactory.getLog(TestKeyIndex.class);
+
+    private static final long[] EMPTY = new long[0];
+
+    @Autowired
+    private TestMapper testMapper;
+
+    @Autowired
+    private ShardRouter shardRouter;
+
+    @Value("${test.key-index.enabled:true}")
+    private boolean enabled;
+
+    @Value("${test.key-index.build-chunk-size:5000}")
+    private int buildChunkSize;
+
+    //id -> key
+    private final ConcurrentHashMap<Long, String> keys = new ConcurrentHashMap<>();
+
+    //key -> ids，同一个key的id很少，写时复制
+    private final ConcurrentHashMap<String, long[]> ids = new ConcurrentHashMap<>();
+
+    //按key、id升序
+    private final ConcurrentSkipListSet<Entry> ordered = new ConcurrentSkipListSet<>();
+
+    //key的字符总数，估算内存用
+    private final LongAdder keyChars = new LongAdder();
+
+    private volatile Build build;
+
+    //put、remove持有读锁，rebuild切换构建时持有写锁
+    private final ReentrantReadWriteLock rebuilding = new ReentrantReadWriteLock();
+
+    /**
+     * 有序索引里的一项，也用作翻页的位置
+     */
+    public static final class Entry implements Comparable<Entry> {
+        private final String key;
+        private final long id;
+
+        public Entry(String key, long id) {
+            this.key = key;
+            this.id = id;
+        }
+
+        public String getKey() {
+            return key;
+        }
+
+        public long getId() {
+            return id;
+        }
+
+        @Override
+        public int compareTo(Entry o) {
+            int c = key.compareTo(o.key);
+            return c != 0 ? c : Long.compare(id, o.id);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if(this == o) {
+                return true;
+            }
+            if(!(o instanceof Entry)) {
+                return false;
+            }
+            Entry other = (Entry) o;
+            return id == other.id && key.equals(other.key);
+        }
+
+        @Override
+        public int hashCode() {
+            return key.hashCode() * 31 + Long.hashCode(id);
+        }
+    }
+
+    private static class Build {
+        private final boolean[] ready;
+        private final long[] scanned;
+        private volatile int remaining;
+        private volatile boolean failed;
+        //构建期间写入路径改过的id
+        private final Set<Long> touched = ConcurrentHashMap.newKeySet();
+
+        Build(int shardCount) {
+            this.ready = new boolean[shardCount];
+            this.scanned = new long[shardCount];
+            this.remaining = shardCount;
+        }
+    }
+
+    @Override
+    public void onApplicationEvent(ApplicationReadyEvent event) {
+        rebuild();
+    }
+
+    /**
+     * 清空后重新扫描所有分表，完成前查询返回null
+     */
+    public synchronized void rebuild() {
+        if(!enabled) {
+            return;
+        }
+        Build next = new Build(shardRouter.shardCount());
+        rebuilding.writeLock().lock();
+        try {
+            build = next;
+            keys.clear();
+            ids.clear();
+            ordered.clear();
+            keyChars.reset();
+        } finally {
+            rebuilding.writeLock().unlock();
+        }
+        for(int i = 0; i < next.ready.length; i++) {
+            int shard = i;
+            Thread thread = new Thread(() -> build(next, shard), "key-index-build-" + shard);
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    public boolean ready() {
+        Build current = build;
+        return current != null && current.remaining == 0 && !current.failed;
+    }
+
+    private static boolean building(Build current) {
+        return current != null && current.remaining > 0 && !current.failed;
+    }
+
+    /**
+     * 写入或修改key之后调用
+     */
+    public void put(long id, String key) {
+        if(!enabled) {
+            return;
+        }
+        rebuilding.readLock().lock();
+        try {
+            Build current = build;
+            keys.compute(id, (i, old) -> {
+                if(building(current)) {
+                    current.touched.add(i);
+                }
+                return replace(i, old, key);
+            });
+        } finally {
+            rebuilding.readLock().unlock();
+        }
+    }
+
+    /**
+     * 删除之后调用
+     */
+    public void remove(long id) {
+        if(!enabled) {
+            return;
+        }
+        rebuilding.readLock().lock();
+        try {
+            Build current = build;
+            keys.compute(id, (i, old) -> {
+                if(building(current)) {
+                    current.touched.add(i);
+                }
+                return replace(i, old, null);
+            });
+        } finally {
+            rebuilding.readLock().unlock();
+        }
+    }
+
+    /**
+     * @return key对应的id，没有时为空数组；索引还没构建完成时为null
+     */
+    public long[] idsOf(String key) {
+        if(!ready()) {
+            return null;
+        }
+        return key == null ? EMPTY : ids.getOrDefault(key, EMPTY);
+    }
+
+    /**
+     * @return 索引还没构建完成时为null
+     */
+    public Boolean contains(String key) {
+        long[] found = idsOf(key);
+        return found == null ? null : found.length > 0;
+    }
+
+    /**
+     * 按key、id升序懒加载遍历，key在[from, to)之间，after不为null时从after之后开始
+     * @param from 为null时不限
+     * @param to 为null时不限
+     * @param after 上一页最后一项，不含
+     * @return 索引还没构建完成时为null
+     */
+    public Iterator<Entry> scan(String from, String to, Entry after) {
+        if(!ready()) {
+            return null;
+        }
+        Entry lower = from == null ? null : new Entry(from, Long.MIN_VALUE);
+        boolean inclusive = true;
+        if(after != null && (lower == null || after.compareTo(lower) >= 0)) {
+            lower = after;
+            inclusive = false;
+        }
+        Entry upper = to == null ? null : new Entry(to, Long.MIN_VALUE);
+        if(lower != null && upper != null && lower.compareTo(upper) >= 0) {
+            return Collections.emptyIterator();
+        }
+        NavigableSet<Entry> view = lower == null ? ordered : ordered.tailSet(lower, inclusive);
+        if(upper != null) {
+            view = view.headSet(upper, false);
+        }
+        return view.iterator();
+    }
+
+    /**
+     * 以prefix开头的key的上界(不含)，作为scan的to；没有上界时为null
+     */
+    public static String prefixEnd(String prefix) {
+        int end = prefix.length();
+        while(end > 0 && prefix.charAt(end - 1) == Character.MAX_VALUE) {
+            end--;
+        }
+        if(end == 0) {
+            return null;
+        }
+        return prefix.substring(0, end - 1) + (char) (prefix.charAt(end - 1) + 1);
+    }
+
+    public Map<String, Object> stats() {
+        Build current = build;
+        List<Map<String, Object>> shards = new ArrayList<>();
+        if(current != null) {
+            for(int shard = 0; shard < current.ready.length; shard++) {
+                Map<String, Object> item = new LinkedHashMap<>();
+                item.put("shard", shard);
+                item.put("ready", current.ready[shard]);
+                item.put("scanned", current.scanned[shard]);
+                shards.add(item);
+            }
+        }
+        long idCount = keys.size();
+        long keyCount = ids.size();
+        Map<String, Object> result = new LinkedHashMap<>();
+        result.put("enabled", enabled);
+        result.put("ready", ready());
+        result.put("failed", current != null && current.failed);
+        result.put("ids", idCount);
+        result.put("keys", keyCount);
+        result.put("estimatedBytes", estimateBytes(idCount, keyCount, keyChars.sum()));
+        result.put("shards", shards);
+        return result;
+    }
+
+    /**
+     * 只修改反向映射，返回值是id新的key
+     */
+    private String replace(long id, String oldKey, String newKey) {
+        if(oldKey != null && oldKey.equals(newKey)) {
+            return oldKey;
+        }
+        if(oldKey != null) {
+            ids.computeIfPresent(oldKey, (k, list) -> {
+                int index = indexOf(list, id);
+                if(index < 0) {
+                    return list;
+                }
+                if(list.length == 1) {
+                    keyChars.add(-k.length());
+                    return null;
+                }
+                long[] next = new long[list.length - 1];
+                System.arraycopy(list, 0, next, 0, index);
+                System.arraycopy(list, index + 1, next, index, list.length - index - 1);
+                return next;
+            });
+        }
+        if(newKey != null) {
+            ordered.add(new Entry(newKey, id));
+            ids.compute(newKey, (k, list) -> {
+                if(list == null) {
+                    keyChars.add(k.length());
+                    return new long[]{id};
+                }
+                if(indexOf(list, id) >= 0) {
+                    return list;
+                }
+                long[] next = Arrays.copyOf(list, list.length + 1);
+                next[list.length] = id;
+                return next;
+            });
+        }
+        if(oldKey != null) {
+            ordered.remove(new Entry(oldKey, id));
+        }
+        return newKey;
+    }
+
+    private void build(Build current, int shard) {
+        String table = shardRouter.tableOf(shard);
+        long start = System.currentTimeMillis();
+        try {
+            long afterId = Long.MIN_VALUE;
+            while(true) {
+                if(build != current || current.failed) {
+                    return;
+                }
+                List<TestRecord> rows = testMapper.scanKeys(table, afterId, buildChunkSize);
+                for(TestRecord row : rows) {
+                    keys.compute(row.getId(), (i, old) -> current.touched.contains(i) ? old : replace(i, old, row.getKey()));
+                }
+                current.scanned[shard] += rows.size();
+                if(rows.size() < buildChunkSize) {
+                    break;
+                }
+                afterId = rows.get(rows.size() - 1).getId();
+            }
+            if(build != current) {
+                return;
+            }
+            current.ready[shard] = true;
+            synchronized (current) {
+                if(--current.remaining == 0) {
+                    current.touched.clear();
+                }
+            }
+            logger.info(table + "key索引构建完成，" + current.scanned[shard] + "条，耗时"
+                    + (System.currentTimeMillis() - start) + "ms");
+        } catch (Exception e) {
+            logger.error(table + "key索引构建失败，按key查询回退到查库", e);
+            synchronized (current) {
+                current.failed = true;
+                current.touched.clear();
+            }
+        }
+    }
+
+    private static int indexOf(long[] list, long id) {
+        for(int i = 0; i < list.length; i++) {
+            if(list[i] == id) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * 按64位JVM开启压缩指针估算：
+     * 每个id是一个CHM节点(32) + Long(16) + 数组里的8字节，
+     * 每个key是一个CHM节点(32) + long[]对象头(16) + String(24) + char[]对象头(16)，每个字符2字节，
+     * 两张哈希表的桶数组按负载因子0.75每个槽4字节；
+     * 跳表里每个id一个Entry(24)和一个节点(24)，平均每3个节点一个索引节点(24)
+     */
+    private static long estimateBytes(long idCount, long keyCount, long chars) {
+        long table = (long) ((idCount + keyCount) / 0.75 * 4);
+        return idCount * (32 + 16 + 8 + 24 + 24 + 8) + keyCount * (32 + 16 + 24 + 16) + chars * 2 + table;
+    }
+}
@@ -0,0 +1,223 @@
+package com.example.demo.support;
+
+import com.example.demo.entity.ChangeEvent;
+import com.example.demo.entity.TestRecord;
+import com.example.demo.mapper.TestMapper;
+import com.example.demo.shard.ShardBatchWriter;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
+
+/**
+ * updateTest合并写
+ * 一个时间窗口内对同一个id的多次修改只保留最后一次，窗口结束时按分表用一条
+ * update ... case id when ... 批量写入不同id。
+ * 待写入的修改在写库成功之前一直留在pending里，本节点的getTest会用它覆盖读到的值，保证读到自己的写。
+ * 写库之后确认哪些行确实修改了(期间可能被删除)，只对这些行更新key索引、发布UPDATE事件。
+ * 定时写和乐观锁修改前的flush(id)互斥，快照在锁里取，写之前再核对一次pending，
+ * 旧的快照不会覆盖新的修改，同一个修改也不会写两次
+ */
+@Component
+@ConditionalOnProperty(prefix = "test.update-coalesce", name = "enabled", havingValue = "true")
+public class UpdateCoalescer implements InitializingBean, DisposableBean {
+
+    private static Log logger = LogFactory.getLog(UpdateCoalescer.class);
+
+    @Autowired
+    private TestMapper testMapper;
+
+    @Autowired
+    private ShardBatchWriter shardBatchWriter;
+
+    @Autowired
+    private TestCache testCache;
+
+    @Autowired
+    private TestKeyIndex testKeyIndex;
+
+    @Autowired
+    private ChangeEventRing changeEventRing;
+
+    @Value("${test.update-coalesce.window-millis:100}")
+    private long windowMillis;
+
+    @Value("${test.batch.size:1000}")
+    private int batchSize;
+
+    private final ConcurrentHashMap<Long, TestRecord> pending = new ConcurrentHashMap<>();
+
+    private final AtomicLong submitted = new AtomicLong();
+
+    private final AtomicLong coalesced = new AtomicLong();
+
+    private final AtomicLong written = new AtomicLong();
+
+    private final AtomicLong statements = new AtomicLong();
+
+    private ScheduledExecutorService flusher;
+
+    @Override
+    public void afterPropertiesSet() {
+        flusher = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "update-coalescer");
+            thread.setDaemon(true);
+            return thread;
+        });
+        flusher.scheduleWithFixedDelay(this::flushQuietly, windowMillis, windowMillis, TimeUnit.MILLISECONDS);
+    }
+
+    public void submit(long id, String key, String value) {
+        submitted.incrementAndGet();
+        if(pending.put(id, new TestRecord(id, key, value, 0)) != null) {
+            coalesced.incrementAndGet();
+        }
+    }
+
+    /**
+     * 还没写库的修改，没有时返回null，只有id、key、value有意义
+     */
+    public TestRecord pending(long id) {
+        return pending.get(id);
+    }
+
+    /**
+     * 删除前调用，丢弃还没写库的修改
+     */
+    public void discard(long id) {
+        pending.remove(id);
+    }
+
+    /**
+     * 立即写入某个id还没写库的修改，乐观锁修改之前调用，保证版本号包含了之前的修改
+     */
+    public synchronized void flush(long id) {
+        TestRecord item = pending.get(id);
+        if(item != null) {
+            Map<Long, TestRecord> one = new HashMap<>(2);
+            one.put(id, item);
+            write(one);
+        }
+    }
+
+    public Map<String, Object> stats() {
+        Map<String, Object> result = new LinkedHashMap<>();
+        result.put("pending", pending.size());
+        result.put("submitted", submitted.get());
+        result.put("coalesced", coalesced.get());
+        result.put("written", written.get());
+        result.put("statements", statements.get());
+        return result;
+    }
+
+    private synchronized void flushQuietly() {
+        try {
+            write(new HashMap<>(pending));
+        } catch (Exception e) {
+            //留在pending里，下个窗口重试
+            logger.error("合并写入失败", e);
+        }
+    }
+
+    /**
+     * 只在持有this的锁时调用
+     */
+    private void write(Map<Long, TestRecord> snapshot) {
+        //取快照之后又提交了新的修改(留给下个窗口)或者已经删除的不写
+        List<TestRecord> latest = new ArrayList<>(snapshot.size());
+        for(TestRecord row : snapshot.values()) {
+            if(pending.get(row.getId()) == row) {
+                latest.add(row);
+            }
+        }
+        if(latest.isEmpty()) {
+            return;
+        }
+        Map<String, List<TestRecord>> tableRows = shardBatchWriter.groupByTable(latest);
+        for(Map.Entry<String, List<TestRecord>> entry : tableRows.entrySet()) {
+            List<TestRecord> rows = entry.getValue();
+            for(int from = 0; from < rows.size(); from += batchSize) {
+                List<TestRecord> chunk = rows.subList(from, Math.min(from + batchSize, rows.size()));
+                List<Long> ids = new ArrayList<>(chunk.size());
+                for(TestRecord row : chunk) {
+                    ids.add(row.getId());
+                }
+                //和updateTest、delTest一样在写库到发布事件之间持有这些id的锁
+                List<Lock> locks = new ArrayList<>();
+                try {
+                    for(Lock lock : changeEventRing.locksOf(ids)) {
+                        lock.lock();
+                        locks.add(lock);
+                    }
+                    int num = testMapper.batchUpdateTest(entry.getKey(), chunk);
+                    statements.incrementAndGet();
+                    for(TestRecord row : chunk) {
+                        //先让缓存失效再移出pending，中间的读要么用pending覆盖，要么读到库里的新值
+                        testCache.invalidate(row.getId());
+                        //期间又来了新的修改就留给下个窗口
+                        pending.remove(row.getId(), row);
+                    }
+                    List<TestRecord> applied = num == chunk.size() ? chunk : existing(entry.getKey(), chunk);
+                    for(TestRecord row : applied) {
+                        testKeyIndex.put(row.getId(), row.getKey());
+                        changeEventRing.publish(ChangeEvent.Type.UPDATE, row.getId(), row.getKey(), row.getValue());
+                    }
+                    written.addAndGet(applied.size());
+                } finally {
+                    for(Lock lock : locks) {
+                        lock.unlock();
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * 修改的行数比提交的少，说明有的id已经被删除，按库里还在的过滤
+     */
+    private List<TestRecord> existing(String table, List<TestRecord> chunk) {
+        List<Long> ids = new ArrayList<>(chunk.size());
+        for(TestRecord row : chunk) {
+            ids.add(row.getId());
+        }
+        Set<Long> found = new HashSet<>();
+        for(TestRecord row : testMapper.getTests(table, ids)) {
+            found.add(row.getId());
+        }
+        List<TestRecord> result = new ArrayList<>(found.size());
+        for(TestRecord row : chunk) {
+            if(found.contains(row.getId())) {
+                result.add(row);
+            }
+        }
+        return result;
+    }
+
+    @Override
+    public void destroy() throws InterruptedException {
+        flusher.shutdown();
+        flusher.awaitTermination(10, TimeUnit.SECONDS);
+        synchronized (this) {
+            write(new HashMap<>(pending));
+        }
+        logger.info("合并写已关闭：" + stats());
+    }
+}
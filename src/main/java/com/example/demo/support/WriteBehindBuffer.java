@@ -0,0 +1,260 @@
+package com.example.demo.support;
+
+import com.alibaba.fastjson.JSON;
+import com.example.demo.entity.ChangeEvent;
+import com.example.demo.entity.TestRecord;
+import com.example.demo.shard.ShardBatchWriter;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.dao.DuplicateKeyException;
+import org.springframework.stereotype.Component;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * saveTest的异步写缓冲(write-behind)
+ * 请求线程把记录放进有界的无锁队列后立即返回，刷盘线程凑够batchSize条
+ * 或者等到maxDelayMillis后按分表批量insert。
+ * 队列满时offer返回false，由调用方返回503；应用关闭时先把剩余记录刷完。
+ *
+ * 记录入队时已经向调用方确认，写库失败不能直接丢：先按分表退避重试，
+ * 还不行就逐条写(主键冲突说明之前那次其实写进去了，算成功)，
+ * 最后仍然写不进去的追加到死信文件(NDJSON，可以用/test/import重新导入)，
+ * 同时撤销key索引、缓存，并发布DELETE事件抵消之前的SAVE。重试期间队列会积压，满了以后新的写入返回503
+ */
+@Component
+@ConditionalOnProperty(prefix = "test.write-behind", name = "enabled", havingValue = "true")
+public class WriteBehindBuffer implements InitializingBean, DisposableBean {
+
+    private static Log logger = LogFactory.getLog(WriteBehindBuffer.class);
+
+    @Autowired
+    private ShardBatchWriter shardBatchWriter;
+
+    @Value("${test.write-behind.capacity:100000}")
+    private int capacity;
+
+    @Value("${test.write-behind.batch-size:1000}")
+    private int batchSize;
+
+    @Value("${test.write-behind.max-delay-millis:50}")
+    private long maxDelayMillis;
+
+    @Value("${test.write-behind.max-retries:3}")
+    private int maxRetries;
+
+    /**
+     * 第一次重试前的等待时间，之后每次翻倍
+     */
+    @Value("${test.write-behind.retry-backoff-millis:100}")
+    private long retryBackoffMillis;
+
+    @Value("${test.write-behind.dead-letter-file:write-behind-dead-letter.ndjson}")
+    private String deadLetterFile;
+
+    @Autowired
+    private TestKeyIndex testKeyIndex;
+
+    @Autowired
+    private TestCache testCache;
+
+    @Autowired
+    private ChangeEventRing changeEventRing;
+
+    private final ConcurrentLinkedQueue<TestRecord> queue = new ConcurrentLinkedQueue<>();
+
+    //ConcurrentLinkedQueue.size()需要遍历，单独计数，同时用来限制容量
+    private final AtomicInteger size = new AtomicInteger();
+
+    private final AtomicLong accepted = new AtomicLong();
+
+    private final AtomicLong rejected = new AtomicLong();
+
+    private final AtomicLong flushed = new AtomicLong();
+
+    //第一次写入失败的行数
+    private final AtomicLong failed = new AtomicLong();
+
+    private final AtomicLong deadLettered = new AtomicLong();
+
+    private volatile boolean running;
+
+    private Thread flusher;
+
+    @Override
+    public void afterPropertiesSet() {
+        running = true;
+        flusher = new Thread(this::flushLoop, "write-behind-flusher");
+        flusher.setDaemon(true);
+        flusher.start();
+    }
+
+    /**
+     * @param row id已经分配好的记录
+     * @return 缓冲区已满或正在关闭时返回false
+     */
+    public boolean offer(TestRecord row) {
+        if(!running) {
+            rejected.incrementAndGet();
+            return false;
+        }
+        int current;
+        do {
+            current = size.get();
+            if(current >= capacity) {
+                rejected.incrementAndGet();
+                return false;
+            }
+        } while(!size.compareAndSet(current, current + 1));
+        queue.offer(row);
+        accepted.incrementAndGet();
+        if(current + 1 == batchSize) {
+            LockSupport.unpark(flusher);
+        }
+        return true;
+    }
+
+    public Map<String, Object> stats() {
+        Map<String, Object> result = new LinkedHashMap<>();
+        result.put("capacity", capacity);
+        result.put("buffered", size.get());
+        result.put("accepted", accepted.get());
+        result.put("rejected", rejected.get());
+        result.put("flushed", flushed.get());
+        result.put("failed", failed.get());
+        result.put("deadLettered", deadLettered.get());
+        result.put("deadLetterFile", deadLetterFile);
+        return result;
+    }
+
+    private void flushLoop() {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(maxDelayMillis);
+        while(running) {
+            long wait = deadline - System.nanoTime();
+            if(size.get() < batchSize && wait > 0) {
+                LockSupport.parkNanos(this, wait);
+                continue;
+            }
+            flush();
+            deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(maxDelayMillis);
+        }
+    }
+
+    private void flush() {
+        List<TestRecord> rows = new ArrayList<>(Math.min(size.get(), batchSize));
+        TestRecord row;
+        while(rows.size() < batchSize && (row = queue.poll()) != null) {
+            rows.add(row);
+        }
+        if(rows.isEmpty()) {
+            return;
+        }
+        size.addAndGet(-rows.size());
+        try {
+            shardBatchWriter.write(rows);
+            flushed.addAndGet(rows.size());
+            return;
+        } catch (RuntimeException e) {
+            failed.addAndGet(rows.size());
+            logger.warn("异步写入" + rows.size() + "条记录失败，按分表重试", e);
+        }
+        //不知道哪些分表已经写进去了，逐表重试，已经写进去的表会主键冲突，转到逐条写
+        for(Map.Entry<String, List<TestRecord>> entry : shardBatchWriter.groupByTable(rows).entrySet()) {
+            retry(entry.getKey(), entry.getValue());
+        }
+    }
+
+    private void retry(String table, List<TestRecord> rows) {
+        long backoff = retryBackoffMillis;
+        for(int attempt = 0; attempt < maxRetries; attempt++) {
+            try {
+                Thread.sleep(backoff);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+            backoff *= 2;
+            try {
+                shardBatchWriter.writeTable(table, rows);
+                flushed.addAndGet(rows.size());
+                return;
+            } catch (DuplicateKeyException e) {
+                break;
+            } catch (RuntimeException e) {
+                logger.warn(table + "第" + (attempt + 1) + "次重试失败", e);
+            }
+        }
+        //id由IdGenerator分配，不会和别的记录冲突，主键冲突说明这一行已经写进去了
+        List<TestRecord> lost = new ArrayList<>();
+        RuntimeException error = null;
+        for(TestRecord row : rows) {
+            try {
+                shardBatchWriter.writeTable(table, Collections.singletonList(row));
+                flushed.incrementAndGet();
+            } catch (DuplicateKeyException e) {
+                flushed.incrementAndGet();
+            } catch (RuntimeException e) {
+                lost.add(row);
+                error = e;
+            }
+        }
+        if(!lost.isEmpty()) {
+            deadLetter(table, lost, error);
+        }
+    }
+
+    /**
+     * 转存到死信文件，并撤销入队时已经生效的副作用；布隆过滤器不能删除，多出来的只是一次误判
+     */
+    private synchronized void deadLetter(String table, List<TestRecord> rows, RuntimeException error) {
+        deadLettered.addAndGet(rows.size());
+        try(OutputStream out = new FileOutputStream(deadLetterFile, true)) {
+            for(TestRecord row : rows) {
+                out.write(JSON.toJSONBytes(row));
+                out.write('\n');
+            }
+            logger.error(table + "有" + rows.size() + "条记录重试后仍写入失败，已转存到" + deadLetterFile, error);
+        } catch (IOException e) {
+            logger.error(table + "有" + rows.size() + "条记录写入失败且无法转存，记录如下："
+                    + new String(JSON.toJSONBytes(rows), StandardCharsets.UTF_8), error);
+        }
+        for(TestRecord row : rows) {
+            testCache.invalidate(row.getId());
+            testKeyIndex.remove(row.getId());
+            changeEventRing.publish(ChangeEvent.Type.DELETE, row.getId(), null, null);
+        }
+    }
+
+    @Override
+    public void destroy() throws InterruptedException {
+        running = false;
+        LockSupport.unpark(flusher);
+        flusher.join();
+        //size先于入队增加，按size判断才不会漏掉正在入队的记录
+        while(size.get() > 0) {
+            if(queue.isEmpty()) {
+                Thread.yield();
+            }
+            flush();
+        }
+        logger.info("异步写缓冲已关闭：" + stats());
+    }
+}
@@ -13,7 +13,6 @@ import java.security.NoSuchAlgorithmException;
 import java.text.SimpleDateFormat;
 import java.util.Date;
 import java.util.Random;
-import java.util.UUID;
 import java.util.zip.Adler32;
 
 /**
@@ -197,7 +196,7 @@ public class CommonUtils {
 	}
 
 	public static String generateUUID() {
-		return UUID.randomUUID().toString().replaceAll("-", "");
+		return Utils.generateUUID();
 	}
 
 	/**
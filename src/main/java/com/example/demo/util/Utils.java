@@ -3,11 +3,26 @@ package com.example.demo.util;
 import java.util.UUID;
 
 public class Utils {
+
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
     /**
      * 获取32位随机字符串，作为用户的id
+     * 直接按位转16进制，不再toString之后用正则去掉"-"
      * @return
      */
     public static String generateUUID() {
-        return UUID.randomUUID().toString().replaceAll("-", "");
+        UUID uuid = UUID.randomUUID();
+        char[] chars = new char[32];
+        toHex(uuid.getMostSignificantBits(), chars, 0);
+        toHex(uuid.getLeastSignificantBits(), chars, 16);
+        return new String(chars);
+    }
+
+    private static void toHex(long value, char[] chars, int offset) {
+        for(int i = 15; i >= 0; i--) {
+            chars[offset + i] = HEX[(int) (value & 0xF)];
+            value >>>= 4;
+        }
     }
 }
@@ -21,17 +21,18 @@ SET FOREIGN_KEY_CHECKS = 0;
 -- ----------------------------
 DROP TABLE IF EXISTS `test_0`;
 CREATE TABLE `test_0` (
-  `id` int(11) NOT NULL AUTO_INCREMENT,
+  `id` bigint(20) NOT NULL,
   `key` varchar(255) DEFAULT NULL,
   `value` varchar(255) DEFAULT NULL,
+  `version` int(11) NOT NULL DEFAULT '0',
   PRIMARY KEY (`id`)
-) ENGINE=InnoDB AUTO_INCREMENT=807 DEFAULT CHARSET=utf8mb4 COLLATE=utf8mb4_0900_ai_ci;
+) ENGINE=InnoDB DEFAULT CHARSET=utf8mb4 COLLATE=utf8mb4_0900_ai_ci;
 
 -- ----------------------------
---  Records of `test_0`
+--  Records of `test_0`，id的低10位是槽(1027 = 1 << 10 | 3)，默认3张分表时槽3属于test_0
 -- ----------------------------
 BEGIN;
-INSERT INTO `test_0` VALUES ('799', 'sdfgbnghfdsadf', '123dsfs');
+INSERT INTO `test_0` VALUES ('1027', 'sdfgbnghfdsadf', '123dsfs', '0');
 COMMIT;
 
 -- ----------------------------
@@ -39,21 +40,72 @@ COMMIT;
 -- ----------------------------
 DROP TABLE IF EXISTS `test_1`;
 CREATE TABLE `test_1` (
-  `id` int(11) NOT NULL AUTO_INCREMENT,
+  `id` bigint(20) NOT NULL,
   `key` varchar(255) DEFAULT NULL,
   `value` varchar(255) DEFAULT NULL,
+  `version` int(11) NOT NULL DEFAULT '0',
   PRIMARY KEY (`id`)
-) ENGINE=InnoDB AUTO_INCREMENT=689 DEFAULT CHARSET=utf8mb4 COLLATE=utf8mb4_0900_ai_ci;
+) ENGINE=InnoDB DEFAULT CHARSET=utf8mb4 COLLATE=utf8mb4_0900_ai_ci;
 
 -- ----------------------------
 --  Table structure for `test_2`
 -- ----------------------------
 DROP TABLE IF EXISTS `test_2`;
 CREATE TABLE `test_2` (
-  `id` int(11) NOT NULL AUTO_INCREMENT,
+  `id` bigint(20) NOT NULL,
   `key` varchar(255) DEFAULT NULL,
   `value` varchar(255) DEFAULT NULL,
+  `version` int(11) NOT NULL DEFAULT '0',
   PRIMARY KEY (`id`)
-) ENGINE=InnoDB AUTO_INCREMENT=731 DEFAULT CHARSET=utf8mb4 COLLATE=utf8mb4_0900_ai_ci;
+) ENGINE=InnoDB DEFAULT CHARSET=utf8mb4 COLLATE=utf8mb4_0900_ai_ci;
+
+-- ----------------------------
+--  Table structure for `id_alloc`
+-- ----------------------------
+DROP TABLE IF EXISTS `id_alloc`;
+CREATE TABLE `id_alloc` (
+  `biz_tag` varchar(128) NOT NULL,
+  `max_id` bigint(20) NOT NULL DEFAULT '1',
+  `step` int(11) NOT NULL,
+  `update_time` timestamp NOT NULL DEFAULT CURRENT_TIMESTAMP ON UPDATE CURRENT_TIMESTAMP,
+  PRIMARY KEY (`biz_tag`)
+) ENGINE=InnoDB DEFAULT CHARSET=utf8mb4 COLLATE=utf8mb4_0900_ai_ci;
+
+-- ----------------------------
+--  Records of `id_alloc`
+-- ----------------------------
+BEGIN;
+INSERT INTO `id_alloc` (`biz_tag`, `max_id`, `step`) VALUES ('test', '1', '10000');
+COMMIT;
+
+-- ----------------------------
+--  Table structure for `id_worker`
+-- ----------------------------
+DROP TABLE IF EXISTS `id_worker`;
+CREATE TABLE `id_worker` (
+  `worker_id` int(11) NOT NULL,
+  `owner` varchar(255) DEFAULT NULL,
+  `lease_until` datetime NOT NULL DEFAULT '1970-01-01 00:00:01',
+  PRIMARY KEY (`worker_id`)
+) ENGINE=InnoDB DEFAULT CHARSET=utf8mb4 COLLATE=utf8mb4_0900_ai_ci;
+
+-- ----------------------------
+--  Records of `id_worker`，雪花算法的32个机器号
+-- ----------------------------
+BEGIN;
+INSERT INTO `id_worker` (`worker_id`) VALUES (0), (1), (2), (3), (4), (5), (6), (7), (8), (9), (10), (11), (12), (13), (14), (15),
+  (16), (17), (18), (19), (20), (21), (22), (23), (24), (25), (26), (27), (28), (29), (30), (31);
+COMMIT;
+
+-- ----------------------------
+--  Table structure for `shard_topology`，只有id=1一行，在线迁移切换时更新
+-- ----------------------------
+DROP TABLE IF EXISTS `shard_topology`;
+CREATE TABLE `shard_topology` (
+  `id` int(11) NOT NULL,
+  `shard_count` int(11) NOT NULL,
+  `version` bigint(20) NOT NULL DEFAULT '0',
+  PRIMARY KEY (`id`)
+) ENGINE=InnoDB DEFAULT CHARSET=utf8mb4 COLLATE=utf8mb4_0900_ai_ci;
 
 SET FOREIGN_KEY_CHECKS = 1;
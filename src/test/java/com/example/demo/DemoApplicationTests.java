@@ -6,7 +6,7 @@ import org.junit.runner.RunWith;
 import org.springframework.boot.test.context.SpringBootTest;
 import org.springframework.test.context.junit4.SpringRunner;
 @RunWith(SpringRunner.class)
-@SpringBootTest(classes=DemoApplication.class)
+@SpringBootTest(classes=DemoApplication.class, properties = "test.id.worker-id=0")
 public class DemoApplicationTests {
 
     @Test
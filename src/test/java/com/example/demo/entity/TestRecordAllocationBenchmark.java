@@ -0,0 +1,100 @@
+package com.example.demo.entity;
+
+import com.alibaba.fastjson.JSON;
+import org.apache.ibatis.builder.xml.XMLMapperBuilder;
+import org.apache.ibatis.datasource.unpooled.UnpooledDataSource;
+import org.apache.ibatis.io.Resources;
+import org.apache.ibatis.logging.nologging.NoLoggingImpl;
+import org.apache.ibatis.mapping.Environment;
+import org.apache.ibatis.mapping.MappedStatement;
+import org.apache.ibatis.mapping.ResultMap;
+import org.apache.ibatis.session.Configuration;
+import org.apache.ibatis.session.SqlSession;
+import org.apache.ibatis.session.SqlSessionFactory;
+import org.apache.ibatis.session.SqlSessionFactoryBuilder;
+import org.apache.ibatis.transaction.jdbc.JdbcTransactionFactory;
+
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.sql.Connection;
+import java.sql.Statement;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * getTest映射成Map和映射成TestRecord的单次读取分配量对比
+ * 用h2内存库和真实的TestMapper.xml，另外按getTest复制一个resultType为Map的语句作对照，
+ * 分别统计查询映射、fastjson序列化两段每次调用分配的字节数(ThreadMXBean)
+ *
+ * 直接运行main，不是单元测试
+ */
+public class TestRecordAllocationBenchmark {
+
+    private static final int WARMUP = 50000;
+
+    private static final int ROUNDS = 200000;
+
+    public static void main(String[] args) throws Exception {
+        UnpooledDataSource dataSource = new UnpooledDataSource("org.h2.Driver",
+                "jdbc:h2:mem:bench;MODE=MySQL;DATABASE_TO_UPPER=FALSE;DB_CLOSE_DELAY=-1", "sa", "");
+        try(Connection connection = dataSource.getConnection(); Statement statement = connection.createStatement()) {
+            statement.execute("create table test_0 (id bigint not null primary key, \"key\" varchar(255), "
+                    + "\"value\" varchar(255), version int not null default 0)");
+            statement.execute("insert into test_0 values (1024, 'key', 'value', 3)");
+        }
+
+        Configuration configuration = new Configuration(new Environment("bench", new JdbcTransactionFactory(), dataSource));
+        configuration.setLogImpl(NoLoggingImpl.class);
+        try(InputStream in = Resources.getResourceAsStream("mapper/TestMapper.xml")) {
+            new XMLMapperBuilder(in, configuration, "mapper/TestMapper.xml", configuration.getSqlFragments()).parse();
+        }
+        String getTest = "com.example.demo.mapper.TestMapper.getTest";
+        MappedStatement statement = configuration.getMappedStatement(getTest);
+        ResultMap mapResult = new ResultMap.Builder(configuration, "getTestAsMap-Inline", Map.class,
+                Collections.emptyList()).build();
+        configuration.addMappedStatement(new MappedStatement.Builder(configuration, "getTestAsMap",
+                statement.getSqlSource(), statement.getSqlCommandType())
+                .resultMaps(Collections.singletonList(mapResult))
+                .build());
+        SqlSessionFactory factory = new SqlSessionFactoryBuilder().build(configuration);
+
+        Map<String, Object> param = new HashMap<>();
+        param.put("table", "test_0");
+        param.put("id", 1024L);
+        try(SqlSession session = factory.openSession()) {
+            for(int round = 0; round < 2; round++) {
+                report("Map", session, "getTestAsMap", param);
+                report("TestRecord", session, getTest, param);
+            }
+        }
+    }
+
+    private static void report(String name, SqlSession session, String statement, Map<String, Object> param) {
+        //一级缓存会让后面的查询直接返回同一个对象，每次都清掉
+        for(int i = 0; i < WARMUP; i++) {
+            session.clearCache();
+            JSON.toJSONString(session.selectOne(statement, param));
+        }
+        com.sun.management.ThreadMXBean bean = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long threadId = Thread.currentThread().getId();
+        Object[] rows = new Object[ROUNDS];
+
+        long start = bean.getThreadAllocatedBytes(threadId);
+        for(int i = 0; i < ROUNDS; i++) {
+            session.clearCache();
+            rows[i] = session.selectOne(statement, param);
+        }
+        long read = bean.getThreadAllocatedBytes(threadId) - start;
+
+        start = bean.getThreadAllocatedBytes(threadId);
+        long length = 0;
+        for(int i = 0; i < ROUNDS; i++) {
+            length += JSON.toJSONString(rows[i]).length();
+        }
+        long write = bean.getThreadAllocatedBytes(threadId) - start;
+
+        System.out.printf("%-10s 查询映射 %6d B/次，序列化 %5d B/次，%d字符 %s%n",
+                name, read / ROUNDS, write / ROUNDS, length / ROUNDS, JSON.toJSONString(rows[0]));
+    }
+}
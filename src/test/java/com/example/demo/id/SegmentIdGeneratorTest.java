@@ -0,0 +1,100 @@
+package com.example.demo.id;
+
+import com.example.demo.shard.ShardIds;
+import com.example.demo.shard.ShardRouter;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+/**
+ * 号段双buffer：用掉一定比例后后台预取下一段，用完时直接切换；预取失败时改为同步领取
+ */
+public class SegmentIdGeneratorTest {
+
+    private static final int STEP = 10;
+
+    @Test
+    public void exhaustedSegmentSwitchesToPrefetchedOne() {
+        List<String> allocatedBy = new ArrayList<>();
+        AtomicInteger calls = new AtomicInteger();
+        Supplier<long[]> allocator = () -> {
+            synchronized (allocatedBy) {
+                allocatedBy.add(Thread.currentThread().getName());
+            }
+            long start = calls.getAndIncrement() * STEP;
+            return new long[]{start, start + STEP};
+        };
+        try(SegmentIdGenerator generator = new SegmentIdGenerator(allocator, 0.5, 3000)) {
+            for(int i = 0; i < STEP * 2 + 5; i++) {
+                long id = generator.nextId(3);
+                Assert.assertEquals(i, id >>> ShardRouter.SLOT_BITS);
+                Assert.assertEquals(3, ShardIds.slotOf(id));
+            }
+            Assert.assertEquals(3, generator.segments());
+        }
+        //只有构造时同步领取，之后都是后台预取
+        Assert.assertEquals(Thread.currentThread().getName(), allocatedBy.get(0));
+        Assert.assertEquals("id-segment-loader", allocatedBy.get(1));
+        Assert.assertEquals("id-segment-loader", allocatedBy.get(2));
+    }
+
+    @Test
+    public void failedPrefetchFallsBackToSynchronousAllocation() {
+        AtomicInteger calls = new AtomicInteger();
+        Supplier<long[]> allocator = () -> {
+            int call = calls.getAndIncrement();
+            if(call == 1) {
+                throw new IllegalStateException("预取失败");
+            }
+            long start = call * STEP;
+            return new long[]{start, start + STEP};
+        };
+        try(SegmentIdGenerator generator = new SegmentIdGenerator(allocator, 0.5, 3000)) {
+            for(int i = 0; i < STEP; i++) {
+                generator.nextId(0);
+            }
+            //第二段预取失败，跳过，同步领取第三段
+            Assert.assertEquals(STEP * 2, generator.nextId(0) >>> ShardRouter.SLOT_BITS);
+            Assert.assertEquals(2, generator.segments());
+        }
+    }
+
+    @Test
+    public void concurrentCallersNeverGetDuplicateIds() throws Exception {
+        AtomicInteger calls = new AtomicInteger();
+        Supplier<long[]> allocator = () -> {
+            long start = calls.getAndIncrement() * STEP;
+            return new long[]{start, start + STEP};
+        };
+        int threads = 8;
+        int perThread = 1000;
+        Set<Long> ids = ConcurrentHashMap.newKeySet();
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try(SegmentIdGenerator generator = new SegmentIdGenerator(allocator, 0.1, 3000)) {
+            List<Future<?>> futures = new ArrayList<>();
+            for(int t = 0; t < threads; t++) {
+                futures.add(executor.submit(() -> {
+                    for(int i = 0; i < perThread; i++) {
+                        Assert.assertTrue(ids.add(generator.nextId(1)));
+                    }
+                }));
+            }
+            for(Future<?> future : futures) {
+                future.get(30, TimeUnit.SECONDS);
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        Assert.assertEquals(threads * perThread, ids.size());
+    }
+}
@@ -0,0 +1,98 @@
+package com.example.demo.service;
+
+import com.example.demo.exception.ConflictException;
+import com.example.demo.shard.ShardDatabaseTestSupport;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.test.web.servlet.MockMvc;
+import org.springframework.test.web.servlet.setup.MockMvcBuilders;
+import org.springframework.web.context.WebApplicationContext;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.post;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.content;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.status;
+
+/**
+ * 带版本号的updateTest：版本号不对时返回409，不覆盖别人的修改
+ */
+public class CasUpdateTest extends ShardDatabaseTestSupport {
+
+    private static final int WRITERS = 8;
+
+    @Autowired
+    private WebApplicationContext webApplicationContext;
+
+    private MockMvc mockMvc;
+
+    @Before
+    public void setUpMockMvc() {
+        mockMvc = MockMvcBuilders.webAppContextSetup(webApplicationContext).build();
+    }
+
+    @Test
+    public void staleVersionReturns409() throws Exception {
+        long id = testService.saveTest("key", "value");
+        mockMvc.perform(post("/test/updateTest").param("id", String.valueOf(id))
+                .param("key", "key").param("value", "first").param("version", "0"))
+                .andExpect(status().isOk())
+                .andExpect(content().string("1"));
+        mockMvc.perform(post("/test/updateTest").param("id", String.valueOf(id))
+                .param("key", "key").param("value", "second").param("version", "0"))
+                .andExpect(status().isConflict());
+        Assert.assertEquals("first", testService.getTest(id).getValue());
+        Assert.assertEquals(1, testService.getTest(id).getVersion());
+    }
+
+    /**
+     * 不存在的记录不算冲突，返回0
+     */
+    @Test
+    public void deletedRowIsNotConflict() {
+        long id = testService.saveTest("key", "value");
+        testService.delTest(id);
+        Assert.assertEquals(0, testService.updateTest("key", "value", id, 0));
+    }
+
+    /**
+     * 同一个版本号并发修改只有一个成功，其它的都是冲突
+     */
+    @Test
+    public void concurrentUpdatesWithSameVersionHaveOneWinner() throws Exception {
+        long id = testService.saveTest("key", "value");
+        ExecutorService executor = Executors.newFixedThreadPool(WRITERS);
+        int succeeded = 0;
+        int conflicted = 0;
+        try {
+            List<Future<Integer>> futures = new ArrayList<>();
+            for(int i = 0; i < WRITERS; i++) {
+                String value = "value" + i;
+                Callable<Integer> update = () -> testService.updateTest("key", value, id, 0);
+                futures.add(executor.submit(update));
+            }
+            for(Future<Integer> future : futures) {
+                try {
+                    succeeded += future.get(10, TimeUnit.SECONDS);
+                } catch (ExecutionException e) {
+                    Assert.assertTrue(e.getCause() instanceof ConflictException);
+                    conflicted++;
+                }
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        Assert.assertEquals(1, succeeded);
+        Assert.assertEquals(WRITERS - 1, conflicted);
+        Assert.assertEquals(1, testService.getTest(id).getVersion());
+    }
+}
@@ -0,0 +1,37 @@
+package com.example.demo.service;
+
+import com.example.demo.entity.TestRecord;
+import com.example.demo.shard.ShardDatabaseTestSupport;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * getTests按分表分组查询，结果按请求的顺序返回
+ */
+public class MultiGetTest extends ShardDatabaseTestSupport {
+
+    @Test
+    public void getTestsKeepsRequestOrder() {
+        List<Long> ids = new ArrayList<>();
+        for(int i = 0; i < 20; i++) {
+            ids.add(testService.saveTest("key" + i, "value" + i));
+        }
+        //先把一部分放进缓存，剩下的走批量查询
+        testService.getTest(ids.get(3));
+        List<Long> request = new ArrayList<>(ids);
+        Collections.reverse(request);
+        request.add(5, 1L);
+        List<TestRecord> rows = testService.getTests(request);
+        Assert.assertEquals(request.size(), rows.size());
+        Assert.assertNull(rows.get(5));
+        for(int i = 0; i < request.size(); i++) {
+            if(i != 5) {
+                Assert.assertEquals(request.get(i).longValue(), rows.get(i).getId());
+            }
+        }
+    }
+}
@@ -0,0 +1,41 @@
+package com.example.demo.shard;
+
+import com.example.demo.exception.ServiceUnavailableException;
+import org.junit.Assert;
+import org.junit.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+
+/**
+ * 分表舱壁满了之后有截止时间的请求快速失败
+ */
+public class ShardBulkheadTest extends ShardDatabaseTestSupport {
+
+    @Autowired
+    private ShardBulkhead shardBulkhead;
+
+    @Test
+    public void saturatedShardFailsFast() throws InterruptedException {
+        long id = testService.saveTest("key", "value");
+        int shard = shardRouter.shardOfId(id);
+        for(int i = 0; i < 20; i++) {
+            shardBulkhead.acquire(shard);
+        }
+        RequestDeadline.set(System.currentTimeMillis() + 1000);
+        try {
+            testService.getTest(id);
+            Assert.fail();
+        } catch (RuntimeException e) {
+            Throwable cause = e;
+            while(cause.getCause() != null) {
+                cause = cause.getCause();
+            }
+            Assert.assertTrue(cause instanceof ServiceUnavailableException);
+        } finally {
+            RequestDeadline.set(null);
+            for(int i = 0; i < 20; i++) {
+                shardBulkhead.release(shard);
+            }
+        }
+        Assert.assertEquals("value", testService.getTest(id).getValue());
+    }
+}
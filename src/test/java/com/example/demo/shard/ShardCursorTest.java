@@ -0,0 +1,44 @@
+package com.example.demo.shard;
+
+import com.example.demo.entity.TestRecord;
+import com.example.demo.exception.BadRequestException;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 按id游标跨分表翻页
+ */
+public class ShardCursorTest extends ShardDatabaseTestSupport {
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void listPagesAllShardsInIdOrder() {
+        testService.testSplitTable(250);
+        List<Long> ids = new ArrayList<>();
+        String cursor = null;
+        boolean hasMore = true;
+        while(hasMore) {
+            Map<String, Object> page = testService.listTest(0, cursor, 40);
+            for(TestRecord row : (List<TestRecord>) page.get("rows")) {
+                ids.add(row.getId());
+            }
+            cursor = (String) page.get("next");
+            hasMore = (Boolean) page.get("hasMore");
+        }
+        Assert.assertEquals(250, ids.size());
+        for(int i = 1; i < ids.size(); i++) {
+            Assert.assertTrue(ids.get(i - 1) < ids.get(i));
+        }
+        //分表数不同的游标不能继续用
+        try {
+            testService.listTest(0, ShardCursor.after(0, shardRouter.shardCount() - 1).encode(), 40);
+            Assert.fail();
+        } catch (BadRequestException e) {
+            Assert.assertTrue(e.getMessage().contains("过期"));
+        }
+    }
+}
@@ -0,0 +1,80 @@
+package com.example.demo.shard;
+
+import com.example.demo.DemoApplication;
+import com.example.demo.service.TestService;
+import org.junit.Before;
+import org.junit.runner.RunWith;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.test.context.junit4.SpringRunner;
+
+/**
+ * 三个内存数据库代替三个mysql实例，每个库只建自己那张分表，
+ * 写到错误的库会直接报表不存在。各功能的测试继承这个类，配置相同的共用一个上下文
+ */
+@RunWith(SpringRunner.class)
+@SpringBootTest(classes = DemoApplication.class, properties = {
+        "test.bloom.enabled=false",
+        "test.id.worker-id=0",
+        "test.shard.routing.enabled=true",
+        "test.shard.routing.default-datasource=ds0",
+        "test.shard.routing.datasources.ds0.url=jdbc:h2:mem:ds0;MODE=MySQL;DATABASE_TO_UPPER=FALSE;DB_CLOSE_DELAY=-1;"
+                + "INIT=CREATE TABLE IF NOT EXISTS shard_topology(id INT PRIMARY KEY, shard_count INT NOT NULL, "
+                + "version BIGINT NOT NULL DEFAULT 0)",
+        "test.shard.routing.datasources.ds0.driver-class-name=org.h2.Driver",
+        "test.shard.routing.datasources.ds0.max-active=5",
+        "test.shard.routing.datasources.ds1.url=jdbc:h2:mem:ds1;MODE=MySQL;DATABASE_TO_UPPER=FALSE;DB_CLOSE_DELAY=-1",
+        "test.shard.routing.datasources.ds1.driver-class-name=org.h2.Driver",
+        "test.shard.routing.datasources.ds2.url=jdbc:h2:mem:ds2;MODE=MySQL;DATABASE_TO_UPPER=FALSE;DB_CLOSE_DELAY=-1",
+        "test.shard.routing.datasources.ds2.driver-class-name=org.h2.Driver",
+        "test.shard.routing.mapping.0=ds0",
+        "test.shard.routing.mapping.1=ds1",
+        "test.shard.routing.mapping.2=ds2",
+        "test.shard.topology.persisted=true",
+        "test.key-index.build-chunk-size=7"
+})
+public abstract class ShardDatabaseTestSupport {
+
+    @Autowired
+    protected TestService testService;
+
+    @Autowired
+    protected ShardRouter shardRouter;
+
+    @Autowired
+    protected ShardRoutingDataSource dataSource;
+
+    /**
+     * h2里key、value是关键字，用双引号建表才能保持小写列名，与mysql的返回一致
+     */
+    @Before
+    public void createTables() {
+        for(int shard = 0; shard < shardRouter.shardCount(); shard++) {
+            createTable(shard);
+        }
+    }
+
+    protected void createTable(int shard) {
+        JdbcTemplate jdbcTemplate = new JdbcTemplate(dataSource.dataSourceOf(shard));
+        jdbcTemplate.execute("drop table if exists " + shardRouter.tableOf(shard));
+        jdbcTemplate.execute("create table " + shardRouter.tableOf(shard)
+                + " (id bigint not null primary key, \"key\" varchar(255), \"value\" varchar(255), "
+                + "version int not null default 0)");
+    }
+
+    protected JdbcTemplate jdbcOf(int shard) {
+        return new JdbcTemplate(dataSource.dataSourceOf(shard));
+    }
+
+    protected int count(int shard) {
+        return jdbcOf(shard).queryForObject("select count(*) from " + shardRouter.tableOf(shard), Integer.class);
+    }
+
+    protected static Throwable rootCause(Throwable e) {
+        while(e.getCause() != null) {
+            e = e.getCause();
+        }
+        return e;
+    }
+}
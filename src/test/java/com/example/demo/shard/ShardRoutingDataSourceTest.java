@@ -0,0 +1,42 @@
+package com.example.demo.shard;
+
+import com.example.demo.entity.TestRecord;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 每张分表路由到自己的数据源，写到错误的库会直接报表不存在
+ */
+public class ShardRoutingDataSourceTest extends ShardDatabaseTestSupport {
+
+    @Test
+    public void saveAndGetRouteToShardDataSource() {
+        List<Long> ids = new ArrayList<>();
+        for(int i = 0; i < 30; i++) {
+            ids.add(testService.saveTest("key" + i, "value" + i));
+        }
+        int[] expected = new int[shardRouter.shardCount()];
+        for(int i = 0; i < ids.size(); i++) {
+            expected[shardRouter.shardOfId(ids.get(i))]++;
+            TestRecord row = testService.getTest(ids.get(i));
+            Assert.assertEquals("key" + i, row.getKey());
+        }
+        for(int shard = 0; shard < expected.length; shard++) {
+            Assert.assertEquals(expected[shard], count(shard));
+        }
+    }
+
+    @Test
+    public void batchWritesEveryShardDataSource() {
+        Assert.assertEquals(300, testService.testSplitTable(300));
+        int total = 0;
+        for(int shard = 0; shard < shardRouter.shardCount(); shard++) {
+            Assert.assertTrue(count(shard) > 0);
+            total += count(shard);
+        }
+        Assert.assertEquals(300, total);
+    }
+}
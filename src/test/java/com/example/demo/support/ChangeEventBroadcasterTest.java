@@ -0,0 +1,135 @@
+package com.example.demo.support;
+
+import com.example.demo.entity.ChangeEvent;
+import com.example.demo.shard.ShardDatabaseTestSupport;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.mock.web.MockHttpServletResponse;
+import org.springframework.test.context.TestPropertySource;
+import org.springframework.test.web.servlet.MockMvc;
+import org.springframework.test.web.servlet.MvcResult;
+import org.springframework.test.web.servlet.setup.MockMvcBuilders;
+import org.springframework.web.context.WebApplicationContext;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.get;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.request;
+
+/**
+ * /test/changes的续传：epoch对不上时先推reset，落后太多时先推gap，能续传时只推之后的事件
+ * 容量调小，方便制造被覆盖的事件
+ */
+@TestPropertySource(properties = "test.cdc.capacity=16")
+public class ChangeEventBroadcasterTest extends ShardDatabaseTestSupport {
+
+    @Autowired
+    private WebApplicationContext webApplicationContext;
+
+    @Autowired
+    private ChangeEventRing changeEventRing;
+
+    private MockMvc mockMvc;
+
+    @Before
+    public void setUpMockMvc() {
+        mockMvc = MockMvcBuilders.webAppContextSetup(webApplicationContext).build();
+    }
+
+    /**
+     * 别的epoch的事件id无法续传，先推reset告诉客户端从哪里接着读，再推新事件
+     */
+    @Test
+    public void unknownEpochGetsResetEvent() throws Exception {
+        MockHttpServletResponse response = subscribe(null, "otherepoch-5");
+        waitForContent(response, "event:reset");
+        Assert.assertTrue(response.getContentAsString().contains("\"lastEventId\":\"otherepoch-5\""));
+        long sequence = changeEventRing.publish(ChangeEvent.Type.SAVE, 1, "key", "after reset");
+        waitForContent(response, "id:" + changeEventRing.epoch() + "-" + sequence);
+    }
+
+    @Test
+    public void lastEventIdResumesAfterThatEvent() throws Exception {
+        long first = changeEventRing.publish(ChangeEvent.Type.SAVE, 1, "key", "first");
+        long second = changeEventRing.publish(ChangeEvent.Type.SAVE, 2, "key", "second");
+        MockHttpServletResponse response = subscribe(null, changeEventRing.epoch() + "-" + first);
+        waitForContent(response, "id:" + changeEventRing.epoch() + "-" + second);
+        String content = response.getContentAsString();
+        Assert.assertFalse(content.contains("id:" + changeEventRing.epoch() + "-" + first + "\n"));
+        Assert.assertFalse(content.contains("event:reset"));
+        Assert.assertFalse(content.contains("event:gap"));
+    }
+
+    /**
+     * 续传的位置已经被覆盖，先推gap说明丢了多少、从哪里接着推
+     */
+    @Test
+    public void overwrittenEventsGetGapEvent() throws Exception {
+        long from = changeEventRing.publish(ChangeEvent.Type.SAVE, 1, "key", "overwritten");
+        for(int i = 0; i < 20; i++) {
+            changeEventRing.publish(ChangeEvent.Type.SAVE, 1, "key", "value" + i);
+        }
+        long last = changeEventRing.lastSequence();
+        MockHttpServletResponse response = subscribe(changeEventRing.epoch() + "-" + from, null);
+        waitForContent(response, "id:" + changeEventRing.epoch() + "-" + last);
+        String content = response.getContentAsString();
+        Assert.assertTrue(content.contains("event:gap"));
+        Assert.assertTrue(content.contains("\"lost\":" + (last - 16 + 1 - from)));
+        Assert.assertTrue(content.indexOf("event:gap") < content.indexOf("id:"));
+    }
+
+    /**
+     * 同一个id并发修改，最后一个事件就是库里的值，不会因为发布顺序和提交顺序不一致而错乱
+     */
+    @Test
+    public void eventsForOneIdFollowCommitOrder() throws Exception {
+        long id = testService.saveTest("key", "value");
+        ChangeEventRing.Cursor cursor = changeEventRing.subscribe(null);
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            for(int t = 0; t < 4; t++) {
+                int writer = t;
+                futures.add(executor.submit(() -> {
+                    for(int i = 0; i < 3; i++) {
+                        testService.updateTest("key", "writer" + writer + "-" + i, id, null);
+                    }
+                }));
+            }
+            for(Future<?> future : futures) {
+                future.get(10, TimeUnit.SECONDS);
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        List<ChangeEvent> events = new ArrayList<>();
+        cursor.poll(events, 16);
+        Assert.assertEquals(12, events.size());
+        Assert.assertEquals(0, cursor.lost());
+        Assert.assertEquals(testService.getTest(id).getValue(), events.get(events.size() - 1).getValue());
+    }
+
+    private MockHttpServletResponse subscribe(String from, String lastEventId) throws Exception {
+        MvcResult result = mockMvc.perform(lastEventId == null
+                ? get("/test/changes").param("from", from)
+                : get("/test/changes").header("Last-Event-ID", lastEventId))
+                .andExpect(request().asyncStarted())
+                .andReturn();
+        return result.getResponse();
+    }
+
+    private static void waitForContent(MockHttpServletResponse response, String expected) throws Exception {
+        long deadline = System.currentTimeMillis() + 10000;
+        while(!response.getContentAsString().contains(expected) && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        Assert.assertTrue(response.getContentAsString(), response.getContentAsString().contains(expected));
+    }
+}
@@ -0,0 +1,84 @@
+package com.example.demo.support;
+
+import com.example.demo.entity.ChangeEvent;
+import com.example.demo.exception.BadRequestException;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 环形缓冲区：落后超过容量的消费者跳到还没被覆盖的最早事件，并累计丢失数
+ */
+public class ChangeEventRingTest {
+
+    private static final int CAPACITY = 8;
+
+    private ChangeEventRing ring;
+
+    @Before
+    public void createRing() {
+        ring = new ChangeEventRing();
+        ReflectionTestUtils.setField(ring, "capacity", CAPACITY);
+        ReflectionTestUtils.setField(ring, "enabled", true);
+        ring.afterPropertiesSet();
+    }
+
+    @Test
+    public void cursorReadsEventsInOrder() {
+        ChangeEventRing.Cursor cursor = ring.subscribe(null);
+        for(int i = 0; i < 5; i++) {
+            ring.publish(ChangeEvent.Type.SAVE, i, "key" + i, "value" + i);
+        }
+        List<ChangeEvent> events = new ArrayList<>();
+        Assert.assertEquals(3, cursor.poll(events, 3));
+        Assert.assertEquals(2, cursor.poll(events, 10));
+        Assert.assertEquals(0, cursor.poll(events, 10));
+        for(int i = 0; i < events.size(); i++) {
+            Assert.assertEquals(i + 1, events.get(i).getSequence());
+            Assert.assertEquals(i, events.get(i).getId());
+        }
+        Assert.assertEquals(0, cursor.lost());
+        Assert.assertEquals(0, cursor.lag());
+    }
+
+    /**
+     * 落后的消费者读不到被覆盖的事件，直接跳到最早的一个，丢失数就是跳过的个数
+     */
+    @Test
+    public void overwrittenEventsAreCountedAsLost() {
+        ChangeEventRing.Cursor cursor = ring.subscribe(null);
+        int published = CAPACITY * 2 + 4;
+        for(int i = 0; i < published; i++) {
+            ring.publish(ChangeEvent.Type.UPDATE, 1, "key", "value" + i);
+        }
+        Assert.assertEquals(published, cursor.lag());
+        List<ChangeEvent> events = new ArrayList<>();
+        Assert.assertEquals(CAPACITY, cursor.poll(events, published));
+        Assert.assertEquals(published - CAPACITY, cursor.lost());
+        Assert.assertEquals(published - CAPACITY + 1, events.get(0).getSequence());
+        Assert.assertEquals("value" + (published - 1), events.get(CAPACITY - 1).getValue());
+        Assert.assertEquals(published + 1, cursor.next());
+    }
+
+    @Test
+    public void subscribeFromOldSequenceReportsGap() {
+        for(int i = 0; i < CAPACITY + 3; i++) {
+            ring.publish(ChangeEvent.Type.SAVE, i, "key", "value");
+        }
+        ChangeEventRing.Cursor cursor = ring.subscribe(1L);
+        List<ChangeEvent> events = new ArrayList<>();
+        cursor.poll(events, CAPACITY * 2);
+        Assert.assertEquals(3, cursor.lost());
+        Assert.assertEquals(4, events.get(0).getSequence());
+    }
+
+    @Test(expected = BadRequestException.class)
+    public void subscribeBeyondLatestSequenceIsRejected() {
+        ring.publish(ChangeEvent.Type.SAVE, 1, "key", "value");
+        ring.subscribe(ring.lastSequence() + 2);
+    }
+}
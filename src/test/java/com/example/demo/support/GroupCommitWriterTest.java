@@ -0,0 +1,114 @@
+package com.example.demo.support;
+
+import com.example.demo.shard.ShardDatabaseTestSupport;
+import org.junit.Assert;
+import org.junit.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.test.context.TestPropertySource;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * 组提交：先占住leader让请求排队，放开后由一个leader把排队的请求合成一条insert
+ * 所有请求用同一个key，id落在同一张分表
+ */
+@TestPropertySource(properties = "test.group-commit.enabled=true")
+public class GroupCommitWriterTest extends ShardDatabaseTestSupport {
+
+    private static final int REQUESTS = 8;
+
+    @Autowired
+    private GroupCommitWriter groupCommitWriter;
+
+    @Test
+    public void queuedRequestsShareOneCommit() throws Exception {
+        long commits = stat("commits");
+        long requests = stat("requests");
+        ExecutorService executor = Executors.newFixedThreadPool(REQUESTS);
+        try {
+            List<Future<Long>> futures = new ArrayList<>();
+            holdLeader(() -> {
+                for(int i = 0; i < REQUESTS; i++) {
+                    String value = "value" + i;
+                    futures.add(executor.submit(() -> testService.saveTest("grouped", value)));
+                }
+            });
+            for(int i = 0; i < REQUESTS; i++) {
+                Assert.assertEquals("value" + i, testService.getTest(futures.get(i).get(10, TimeUnit.SECONDS)).getValue());
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        Assert.assertEquals(commits + 1, stat("commits"));
+        Assert.assertEquals(requests + REQUESTS, stat("requests"));
+    }
+
+    /**
+     * 合并的insert里有一行超长，拆开重试后只有这一个请求失败，其它请求照常写入
+     */
+    @Test
+    public void badRowFailsOnlyItsRequest() throws Exception {
+        long retries = stat("retries");
+        StringBuilder tooLong = new StringBuilder();
+        for(int i = 0; i < 300; i++) {
+            tooLong.append('x');
+        }
+        ExecutorService executor = Executors.newFixedThreadPool(REQUESTS);
+        try {
+            List<Future<Long>> futures = new ArrayList<>();
+            holdLeader(() -> {
+                for(int i = 0; i < REQUESTS; i++) {
+                    String value = i == 0 ? tooLong.toString() : "value" + i;
+                    futures.add(executor.submit(() -> testService.saveTest("retried", value)));
+                }
+            });
+            try {
+                futures.get(0).get(10, TimeUnit.SECONDS);
+                Assert.fail();
+            } catch (ExecutionException e) {
+                Assert.assertTrue(e.getCause() instanceof RuntimeException);
+            }
+            for(int i = 1; i < REQUESTS; i++) {
+                Assert.assertEquals("value" + i, testService.getTest(futures.get(i).get(10, TimeUnit.SECONDS)).getValue());
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        Assert.assertEquals(retries + REQUESTS, stat("retries"));
+        Assert.assertEquals(REQUESTS - 1, testService.getTestsByKey("retried").size());
+    }
+
+    /**
+     * 占住leader期间提交请求，等它们都进了队列再放开
+     */
+    private void holdLeader(Runnable submit) throws InterruptedException {
+        AtomicBoolean leader = (AtomicBoolean) ReflectionTestUtils.getField(groupCommitWriter, "leader");
+        Collection<?> queue = (Collection<?>) ReflectionTestUtils.getField(groupCommitWriter, "queue");
+        Assert.assertTrue(leader.compareAndSet(false, true));
+        try {
+            submit.run();
+            long deadline = System.currentTimeMillis() + 10000;
+            while(queue.size() < REQUESTS && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            Assert.assertEquals(REQUESTS, queue.size());
+        } finally {
+            leader.set(false);
+        }
+    }
+
+    private long stat(String name) {
+        Map<String, Object> stats = testService.groupCommitStats();
+        return ((Number) stats.get(name)).longValue();
+    }
+}
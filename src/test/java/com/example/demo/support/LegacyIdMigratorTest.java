@@ -0,0 +1,44 @@
+package com.example.demo.support;
+
+import com.example.demo.entity.TestRecord;
+import com.example.demo.shard.ShardDatabaseTestSupport;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.Map;
+
+/**
+ * 各分表自增id写入的旧记录按id路由大多不在所在的分表，迁移后换成新id，按id能读到
+ */
+public class LegacyIdMigratorTest extends ShardDatabaseTestSupport {
+
+    private static final int LEGACY_ROWS = 20;
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void misroutedLegacyRowsGetNewIds() {
+        int misrouted = 0;
+        for(long id = 1; id <= LEGACY_ROWS; id++) {
+            jdbcOf(0).update("insert into " + shardRouter.tableOf(0)
+                    + " (id, \"key\", \"value\") values (?, ?, ?)", id, "legacy" + id, "value" + id);
+            if(shardRouter.shardOfId(id) != 0) {
+                misrouted++;
+            }
+        }
+        Assert.assertTrue(misrouted > 0);
+        Map<String, Object> result = testService.migrateLegacyIds();
+        Assert.assertEquals(misrouted, ((Number) result.get("migrated")).intValue());
+        Map<Long, Long> mapping = (Map<Long, Long>) result.get("mapping");
+        for(long id = 1; id <= LEGACY_ROWS; id++) {
+            Long newId = mapping.get(id);
+            TestRecord row = testService.getTest(newId == null ? id : newId);
+            Assert.assertEquals("value" + id, row.getValue());
+            if(newId != null) {
+                Assert.assertNull(testService.getTest(id));
+            }
+        }
+        Assert.assertEquals(LEGACY_ROWS, count(0) + count(1) + count(2));
+        //再执行一次没有需要迁移的
+        Assert.assertEquals(0, ((Number) testService.migrateLegacyIds().get("migrated")).intValue());
+    }
+}
@@ -0,0 +1,106 @@
+package com.example.demo.support;
+
+import com.example.demo.entity.TestRecord;
+import com.example.demo.exception.ServiceUnavailableException;
+import com.example.demo.shard.ShardDatabaseTestSupport;
+import org.junit.Assert;
+import org.junit.Test;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.test.annotation.DirtiesContext;
+import org.springframework.test.context.TestPropertySource;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * 在线扩缩容迁移，迁移完成后路由变了，每个用例重新建上下文
+ */
+@TestPropertySource(properties = {
+        "test.rebalance.enabled=true",
+        "test.rebalance.chunk-size=20",
+        "test.rebalance.drain-millis=0"
+})
+public class ShardRebalancerTest extends ShardDatabaseTestSupport {
+
+    /**
+     * 3张分表扩到4张，test_3没有配置mapping，落在默认数据源
+     * 迁移期间另一个线程一直在改和删，切换后返回503的重试，最后每一行都是最后一次成功写入的值
+     */
+    @Test
+    @DirtiesContext
+    public void rebalanceMovesRowsToNewShard() throws Exception {
+        createTable(3);
+        List<Long> ids = new ArrayList<>();
+        for(int i = 0; i < 200; i++) {
+            ids.add(testService.saveTest("key" + i, "value" + i));
+        }
+        testService.updateTest("key0", "changed", ids.get(0), null);
+        String[] expectedValues = new String[ids.size()];
+        for(int i = 0; i < ids.size(); i++) {
+            expectedValues[i] = i == 0 ? "changed" : "value" + i;
+        }
+        AtomicBoolean done = new AtomicBoolean();
+        AtomicReference<Throwable> error = new AtomicReference<>();
+        Thread writer = new Thread(() -> {
+            for(int n = 0; !done.get() && error.get() == null; n++) {
+                int i = n % 40 + 1;
+                while(true) {
+                    try {
+                        if(i > 30) {
+                            testService.delTest(ids.get(i));
+                            expectedValues[i] = null;
+                        } else {
+                            testService.updateTest("key" + i, "written" + n, ids.get(i), null);
+                            expectedValues[i] = "written" + n;
+                        }
+                        break;
+                    } catch (RuntimeException e) {
+                        if(!(rootCause(e) instanceof ServiceUnavailableException)) {
+                            error.set(e);
+                            return;
+                        }
+                    }
+                }
+            }
+        });
+        Object phase;
+        try {
+            writer.start();
+            testService.rebalance(4, 2000.0);
+            long deadline = System.currentTimeMillis() + 30000;
+            while(!"DONE".equals(String.valueOf(phase = testService.rebalanceProgress().get("phase")))
+                    && !"FAILED".equals(String.valueOf(phase)) && System.currentTimeMillis() < deadline) {
+                Thread.sleep(50);
+            }
+            done.set(true);
+            writer.join();
+            Assert.assertNull(error.get());
+            Assert.assertEquals("DONE", String.valueOf(phase));
+            Assert.assertEquals(4, shardRouter.shardCount());
+            Assert.assertEquals(4, new JdbcTemplate(dataSource.dataSourceOf(0))
+                    .queryForObject("select shard_count from shard_topology where id = 1", Integer.class).intValue());
+            int[] expected = new int[4];
+            for(int i = 0; i < ids.size(); i++) {
+                TestRecord row = testService.getTest(ids.get(i));
+                if(expectedValues[i] == null) {
+                    //迁移期间删掉的不能被复制或清理带回来
+                    Assert.assertNull(row);
+                    continue;
+                }
+                expected[shardRouter.shardOfId(ids.get(i))]++;
+                Assert.assertEquals(expectedValues[i], row.getValue());
+            }
+            Assert.assertTrue(expected[3] > 0);
+            for(int shard = 0; shard < expected.length; shard++) {
+                Assert.assertEquals(expected[shard], count(shard));
+            }
+        } finally {
+            done.set(true);
+            writer.join();
+            //内存库在上下文之间保留，恢复成3张分表
+            new JdbcTemplate(dataSource.dataSourceOf(0)).update("update shard_topology set shard_count = 3 where id = 1");
+        }
+    }
+}
@@ -0,0 +1,109 @@
+package com.example.demo.support;
+
+import com.example.demo.id.SnowflakeIdGenerator;
+import com.example.demo.shard.ShardDatabaseTestSupport;
+import com.example.demo.shard.ShardIds;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.test.context.TestPropertySource;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 布隆过滤器的否定结果只对扫描开始减去余量之前生成的id可信，更新的id可能是其它节点写的，放行给数据库
+ */
+@TestPropertySource(properties = {
+        "test.bloom.enabled=true",
+        "test.bloom.trust-margin-millis=1000",
+        "test.bloom.refresh-seconds=0",
+        "test.bloom.build-chunk-size=7"
+})
+public class TestBloomFilterTest extends ShardDatabaseTestSupport {
+
+    @Autowired
+    private TestBloomFilter testBloomFilter;
+
+    /**
+     * 建表之后重新扫描，扫描开始时间就是现在
+     */
+    @Before
+    public void rebuildBloomFilter() throws InterruptedException {
+        testBloomFilter.rebuild();
+        long deadline = System.currentTimeMillis() + 10000;
+        while(!ready() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        Assert.assertTrue(ready());
+    }
+
+    @Test
+    public void oldUnknownIdIsRejected() {
+        long rejected = stat("rejected");
+        long id = otherNodeId(System.currentTimeMillis() - 3600 * 1000);
+        Assert.assertFalse(testBloomFilter.mightContain(id));
+        Assert.assertNull(testService.getTest(id));
+        Assert.assertEquals(rejected + 2, stat("rejected"));
+    }
+
+    /**
+     * 其它节点在扫描开始之后写入的记录不在过滤器里，也要能读到
+     */
+    @Test
+    public void idNewerThanTrustWindowIsPassedToDatabase() {
+        long unconfirmed = stat("unconfirmed");
+        long id = otherNodeId(System.currentTimeMillis());
+        int shard = shardRouter.shardOfId(id);
+        jdbcOf(shard).update("insert into " + shardRouter.tableOf(shard)
+                + " (id, \"key\", \"value\") values (?, 'remote', 'written by another node')", id);
+        Assert.assertEquals("written by another node", testService.getTest(id).getValue());
+        Assert.assertEquals(unconfirmed + 1, stat("unconfirmed"));
+    }
+
+    /**
+     * 余量之前写入的记录靠扫描进入过滤器，分块扫描不能漏掉
+     */
+    @Test
+    public void rebuiltFilterContainsEveryRow() throws InterruptedException {
+        List<Long> ids = new ArrayList<>();
+        for(int i = 0; i < 30; i++) {
+            ids.add(testService.saveTest("key" + i, "value" + i));
+        }
+        Thread.sleep(1100);
+        rebuildBloomFilter();
+        long rejected = stat("rejected");
+        long unconfirmed = stat("unconfirmed");
+        for(long id : ids) {
+            Assert.assertTrue(testBloomFilter.mightContain(id));
+        }
+        Assert.assertEquals(rejected, stat("rejected"));
+        Assert.assertEquals(unconfirmed, stat("unconfirmed"));
+    }
+
+    /**
+     * 按雪花算法的位布局拼一个其它机器号生成的id
+     */
+    private static long otherNodeId(long createdAt) {
+        long high = ((createdAt - SnowflakeIdGenerator.EPOCH)
+                << (SnowflakeIdGenerator.WORKER_BITS + SnowflakeIdGenerator.SEQUENCE_BITS))
+                | ((long) SnowflakeIdGenerator.MAX_WORKER_ID << SnowflakeIdGenerator.SEQUENCE_BITS);
+        return ShardIds.compose(high, 3);
+    }
+
+    @SuppressWarnings("unchecked")
+    private boolean ready() {
+        for(Map<String, Object> shard : (List<Map<String, Object>>) testBloomFilter.stats().get("shards")) {
+            if(!Boolean.TRUE.equals(shard.get("ready"))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private long stat(String name) {
+        return ((Number) testBloomFilter.stats().get(name)).longValue();
+    }
+}
@@ -0,0 +1,105 @@
+package com.example.demo.support;
+
+import com.example.demo.entity.TestRecord;
+import com.example.demo.shard.ShardDatabaseTestSupport;
+import org.junit.Assert;
+import org.junit.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 缓存未命中时同一个id的并发读库合并成一次，修改之后到达的读请求不合并到修改之前的查询上
+ */
+public class TestCacheTest extends ShardDatabaseTestSupport {
+
+    private static final int READERS = 8;
+
+    @Autowired
+    private TestCache testCache;
+
+    @Test
+    public void concurrentMissesShareOneLoad() throws Exception {
+        long id = 1L << 40;
+        long coalesced = stat("coalescedLoadCount");
+        AtomicInteger loads = new AtomicInteger();
+        CountDownLatch release = new CountDownLatch(1);
+        ExecutorService executor = Executors.newFixedThreadPool(READERS);
+        try {
+            List<Future<TestRecord>> futures = new ArrayList<>();
+            for(int i = 0; i < READERS; i++) {
+                futures.add(executor.submit(() -> testCache.get(id, loadId -> {
+                    loads.incrementAndGet();
+                    await(release);
+                    return new TestRecord(loadId, "key", "value", 0);
+                })));
+            }
+            waitFor("coalescedLoadCount", coalesced + READERS - 1);
+            release.countDown();
+            for(Future<TestRecord> future : futures) {
+                Assert.assertEquals("value", future.get(10, TimeUnit.SECONDS).getValue());
+            }
+        } finally {
+            release.countDown();
+            executor.shutdownNow();
+        }
+        Assert.assertEquals(1, loads.get());
+        testCache.invalidate(id);
+    }
+
+    /**
+     * 第一个查询还没返回时id被修改，之后的读请求自己读库，第一个查询读到的旧值也不会留在缓存里
+     */
+    @Test
+    public void readAfterWriteDoesNotJoinEarlierLoad() throws Exception {
+        long id = (1L << 40) + 1;
+        CountDownLatch loading = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            Future<TestRecord> stale = executor.submit(() -> testCache.get(id, loadId -> {
+                loading.countDown();
+                await(release);
+                return new TestRecord(loadId, "key", "old", 0);
+            }));
+            Assert.assertTrue(loading.await(10, TimeUnit.SECONDS));
+            testCache.invalidate(id);
+            Assert.assertEquals("new", testCache.get(id, loadId -> new TestRecord(loadId, "key", "new", 1)).getValue());
+            release.countDown();
+            Assert.assertEquals("old", stale.get(10, TimeUnit.SECONDS).getValue());
+        } finally {
+            release.countDown();
+            executor.shutdownNow();
+        }
+        //旧值放入缓存后发现计数变了，连同新值一起删掉，再读时重新读库
+        Assert.assertEquals("new", testCache.get(id, loadId -> new TestRecord(loadId, "key", "new", 1)).getValue());
+        testCache.invalidate(id);
+    }
+
+    private long stat(String name) {
+        return ((Number) testCache.stats().get(name)).longValue();
+    }
+
+    private void waitFor(String name, long expected) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10000;
+        while(stat(name) < expected && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        Assert.assertEquals(expected, stat(name));
+    }
+
+    private static void await(CountDownLatch latch) {
+        try {
+            latch.await(10, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
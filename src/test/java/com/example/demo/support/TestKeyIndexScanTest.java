@@ -0,0 +1,128 @@
+package com.example.demo.support;
+
+import com.example.demo.entity.TestRecord;
+import com.example.demo.exception.BadRequestException;
+import com.example.demo.shard.ShardDatabaseTestSupport;
+import org.junit.Assert;
+import org.junit.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.jdbc.core.JdbcTemplate;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 按key、id有序的索引上的范围、前缀扫描和翻页
+ */
+public class TestKeyIndexScanTest extends ShardDatabaseTestSupport {
+
+    @Autowired
+    private TestKeyIndex testKeyIndex;
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void scanKeysHonoursRangeAndPrefixBounds() throws InterruptedException {
+        for(String key : new String[]{"a1", "a2", "ab", "abz", "ac", "b", "a\uffff"}) {
+            testService.saveTest(key, "value");
+        }
+        rebuildKeyIndex();
+        Assert.assertEquals(Arrays.asList("a2", "ab", "abz"),
+                keysOf((List<TestRecord>) testService.scanKeys(null, "a2", "ac", null, null, 10).get("rows")));
+        Assert.assertEquals(Arrays.asList("ab", "abz"),
+                keysOf((List<TestRecord>) testService.scanKeys("ab", null, null, null, null, 10).get("rows")));
+        //最后一个字符是\uffff时上界进位到前一个字符
+        Assert.assertEquals("b", TestKeyIndex.prefixEnd("a\uffff"));
+        Assert.assertNull(TestKeyIndex.prefixEnd("\uffff"));
+        Assert.assertEquals(Collections.singletonList("a\uffff"),
+                keysOf((List<TestRecord>) testService.scanKeys("a\uffff", null, null, null, null, 10).get("rows")));
+        Assert.assertEquals(0, ((List<TestRecord>) testService.scanKeys(null, "ac", "ab", null, null, 10).get("rows")).size());
+        try {
+            testService.scanKeys("a", "a", null, null, null, 10);
+            Assert.fail();
+        } catch (BadRequestException e) {
+            //prefix和范围不能同时用
+        }
+    }
+
+    /**
+     * 同一个key有多条记录，翻页位置是(key, id)，每条只返回一次
+     */
+    @Test
+    @SuppressWarnings("unchecked")
+    public void scanKeysPagesWithAfterKeyAndId() throws InterruptedException {
+        for(int i = 0; i < 25; i++) {
+            testService.saveTest("p" + i % 5, "value" + i);
+        }
+        testService.saveTest("q", "value");
+        rebuildKeyIndex();
+        List<TestRecord> rows = new ArrayList<>();
+        String afterKey = null;
+        Long afterId = null;
+        boolean hasMore = true;
+        int pages = 0;
+        while(hasMore) {
+            Map<String, Object> page = testService.scanKeys("p", null, null, afterKey, afterId, 7);
+            rows.addAll((List<TestRecord>) page.get("rows"));
+            afterKey = (String) page.get("nextKey");
+            afterId = (Long) page.get("nextId");
+            hasMore = (Boolean) page.get("hasMore");
+            pages++;
+        }
+        Assert.assertEquals(4, pages);
+        Assert.assertEquals(25, rows.size());
+        for(int i = 1; i < rows.size(); i++) {
+            TestRecord previous = rows.get(i - 1);
+            TestRecord row = rows.get(i);
+            int c = previous.getKey().compareTo(row.getKey());
+            Assert.assertTrue(c < 0 || c == 0 && previous.getId() < row.getId());
+        }
+    }
+
+    /**
+     * 索引里还是旧key(比如改key和扫描交错)时，库里key已经不一致的行不返回，翻页位置照常前进
+     */
+    @Test
+    @SuppressWarnings("unchecked")
+    public void scanKeysDropsRowsRenamedAfterIndexing() throws InterruptedException {
+        long kept = testService.saveTest("r1", "value");
+        long renamed = testService.saveTest("r2", "value");
+        rebuildKeyIndex();
+        new JdbcTemplate(dataSource.dataSourceOf(shardRouter.shardOfId(renamed))).update(
+                "update " + shardRouter.tableOf(shardRouter.shardOfId(renamed)) + " set \"key\" = 's' where id = ?", renamed);
+
+        Map<String, Object> page = testService.scanKeys("r", null, null, null, null, 10);
+        List<TestRecord> rows = (List<TestRecord>) page.get("rows");
+        Assert.assertEquals(1, rows.size());
+        Assert.assertEquals(kept, rows.get(0).getId());
+
+        page = testService.scanKeys("r", null, null, "r1", kept, 1);
+        Assert.assertEquals(0, ((List<TestRecord>) page.get("rows")).size());
+        Assert.assertEquals("r2", page.get("nextKey"));
+        Assert.assertEquals(renamed, page.get("nextId"));
+        Assert.assertEquals(Boolean.FALSE, page.get("hasMore"));
+    }
+
+    private static List<String> keysOf(List<TestRecord> rows) {
+        List<String> keys = new ArrayList<>(rows.size());
+        for(TestRecord row : rows) {
+            keys.add(row.getKey());
+        }
+        return keys;
+    }
+
+    private void rebuildKeyIndex() throws InterruptedException {
+        testKeyIndex.rebuild();
+        waitForKeyIndex();
+    }
+
+    private void waitForKeyIndex() throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10000;
+        while(!testKeyIndex.ready() && !Boolean.TRUE.equals(testKeyIndex.stats().get("failed"))
+                && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+    }
+}
@@ -0,0 +1,125 @@
+package com.example.demo.support;
+
+import com.example.demo.entity.TestRecord;
+import com.example.demo.exception.ServiceUnavailableException;
+import com.example.demo.shard.ShardDatabaseTestSupport;
+import org.junit.Assert;
+import org.junit.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.jdbc.core.JdbcTemplate;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * key索引的构建、写入路径维护，以及没有就绪时按key查询回退到查库
+ */
+public class TestKeyIndexTest extends ShardDatabaseTestSupport {
+
+    @Autowired
+    private TestKeyIndex testKeyIndex;
+
+    /**
+     * 构建时缺一张分表，索引一直不就绪，按key查询回退到查库
+     */
+    @Test
+    public void getTestsByKeyFallsBackToDatabase() throws InterruptedException {
+        new JdbcTemplate(dataSource.dataSourceOf(0)).execute("drop table " + shardRouter.tableOf(0));
+        rebuildKeyIndex();
+        createTable(0);
+        Assert.assertFalse(testKeyIndex.ready());
+        List<Long> ids = new ArrayList<>();
+        for(int i = 0; i < 30; i++) {
+            ids.add(testService.saveTest("key" + i, "value" + i));
+        }
+        testService.updateTest("renamed", "value1", ids.get(1), null);
+        testService.delTest(ids.get(2));
+        long duplicate = testService.saveTest("key3", "again");
+
+        Assert.assertEquals(Boolean.FALSE, testService.existsKey("key1").get("exists"));
+        Assert.assertEquals(Boolean.FALSE, testService.existsKey("key2").get("exists"));
+        Assert.assertEquals(Boolean.TRUE, testService.existsKey("renamed").get("exists"));
+        Assert.assertEquals("database", testService.existsKey("renamed").get("source"));
+        List<TestRecord> rows = testService.getTestsByKey("key3");
+        Assert.assertEquals(2, rows.size());
+        Assert.assertTrue(rows.get(0).getId() == duplicate || rows.get(1).getId() == duplicate);
+        Assert.assertEquals(ids.get(1).longValue(), testService.getTestsByKey("renamed").get(0).getId());
+        try {
+            testService.scanKeys("key", null, null, null, null, 10);
+            Assert.fail();
+        } catch (ServiceUnavailableException e) {
+            //范围扫描没有查库的回退
+        }
+    }
+
+    @Test
+    public void keyIndexFollowsWritesAfterBuild() throws InterruptedException {
+        List<Long> ids = new ArrayList<>();
+        for(int i = 0; i < 30; i++) {
+            ids.add(testService.saveTest("key" + i, "value" + i));
+        }
+        rebuildKeyIndex();
+        Assert.assertTrue(testKeyIndex.ready());
+        Assert.assertEquals(30L, testKeyIndex.stats().get("ids"));
+
+        long duplicate = testService.saveTest("key3", "again");
+        testService.updateTest("renamed", "value1", ids.get(1), null);
+        testService.delTest(ids.get(2));
+
+        Assert.assertEquals(0, testKeyIndex.idsOf("key1").length);
+        Assert.assertArrayEquals(new long[]{ids.get(1)}, testKeyIndex.idsOf("renamed"));
+        Assert.assertEquals(0, testKeyIndex.idsOf("key2").length);
+        Assert.assertEquals(2, testKeyIndex.idsOf("key3").length);
+        Map<String, Object> renamed = testService.existsKey("renamed");
+        Assert.assertEquals(Boolean.TRUE, renamed.get("exists"));
+        Assert.assertEquals("index", renamed.get("source"));
+        Map<String, Object> deleted = testService.existsKey("key2");
+        Assert.assertEquals(Boolean.FALSE, deleted.get("exists"));
+        Assert.assertEquals("index", deleted.get("source"));
+        List<TestRecord> rows = testService.getTestsByKey("key3");
+        Assert.assertEquals(2, rows.size());
+        Assert.assertTrue(rows.get(0).getId() == duplicate || rows.get(1).getId() == duplicate);
+    }
+
+    /**
+     * 构建期间写入路径改过的id，之后扫到库里的旧值不能覆盖它们
+     * 直接改库模拟扫描读到的是写入之前的值；每块只读7行，put和remove发生时还在构建
+     */
+    @Test
+    public void keyIndexBuildKeepsWritesMadeDuringBuild() throws InterruptedException {
+        List<Long> ids = new ArrayList<>();
+        for(int i = 0; i < 300; i++) {
+            ids.add(testService.saveTest("key" + i, "value" + i));
+        }
+        long renamed = ids.get(ids.size() - 1);
+        long removed = ids.get(ids.size() - 2);
+        new JdbcTemplate(dataSource.dataSourceOf(shardRouter.shardOfId(renamed))).update(
+                "update " + shardRouter.tableOf(shardRouter.shardOfId(renamed)) + " set \"key\" = 'stale' where id = ?", renamed);
+
+        testKeyIndex.rebuild();
+        testKeyIndex.put(renamed, "fresh");
+        testKeyIndex.remove(removed);
+        Assert.assertFalse(testKeyIndex.ready());
+        waitForKeyIndex();
+
+        Assert.assertTrue(testKeyIndex.ready());
+        Assert.assertArrayEquals(new long[]{renamed}, testKeyIndex.idsOf("fresh"));
+        Assert.assertEquals(0, testKeyIndex.idsOf("stale").length);
+        Assert.assertEquals(0, testKeyIndex.idsOf("key" + (ids.size() - 2)).length);
+        Assert.assertEquals(1, testKeyIndex.idsOf("key0").length);
+    }
+
+    private void rebuildKeyIndex() throws InterruptedException {
+        testKeyIndex.rebuild();
+        waitForKeyIndex();
+    }
+
+    private void waitForKeyIndex() throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10000;
+        while(!testKeyIndex.ready() && !Boolean.TRUE.equals(testKeyIndex.stats().get("failed"))
+                && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+    }
+}
@@ -0,0 +1,94 @@
+package com.example.demo.support;
+
+import com.example.demo.entity.ChangeEvent;
+import com.example.demo.exception.ConflictException;
+import com.example.demo.shard.ShardDatabaseTestSupport;
+import org.junit.Assert;
+import org.junit.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.test.context.TestPropertySource;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * updateTest合并写，窗口足够长，用例里不会自动写库，由flush(id)控制写入时机
+ */
+@TestPropertySource(properties = {
+        "test.update-coalesce.enabled=true",
+        "test.update-coalesce.window-millis=600000"
+})
+public class UpdateCoalescerTest extends ShardDatabaseTestSupport {
+
+    @Autowired
+    private UpdateCoalescer updateCoalescer;
+
+    @Autowired
+    private ChangeEventRing changeEventRing;
+
+    /**
+     * 还没写库时本节点读到自己最后一次修改，写库时多次修改只写一条
+     */
+    @Test
+    public void pendingUpdateIsVisibleBeforeWrite() {
+        long id = testService.saveTest("key", "value");
+        long written = stat("written");
+        long statements = stat("statements");
+        Assert.assertEquals(1, testService.updateTest("key", "first", id, null));
+        Assert.assertEquals(1, testService.updateTest("key", "second", id, null));
+        Assert.assertEquals("second", testService.getTest(id).getValue());
+        Assert.assertEquals("value", valueInDatabase(id));
+        updateCoalescer.flush(id);
+        Assert.assertNull(updateCoalescer.pending(id));
+        Assert.assertEquals("second", valueInDatabase(id));
+        Assert.assertEquals("second", testService.getTest(id).getValue());
+        Assert.assertEquals(written + 1, stat("written"));
+        Assert.assertEquals(statements + 1, stat("statements"));
+    }
+
+    /**
+     * 乐观锁修改之前先写入还没写库的修改，版本号已经变了，带旧版本号的修改冲突
+     */
+    @Test
+    public void versionedUpdateSeesPendingUpdate() {
+        long id = testService.saveTest("key", "value");
+        testService.updateTest("key", "pending", id, null);
+        try {
+            testService.updateTest("key", "stale", id, 0);
+            Assert.fail();
+        } catch (ConflictException e) {
+            Assert.assertEquals("pending", valueInDatabase(id));
+        }
+        Assert.assertEquals(1, testService.updateTest("key", "versioned", id, 1));
+        Assert.assertEquals("versioned", testService.getTest(id).getValue());
+    }
+
+    /**
+     * 删除时丢弃还没写库的修改，之后的写库不会把它写回去，也不会在DELETE之后再发UPDATE
+     */
+    @Test
+    public void deleteDiscardsPendingUpdate() {
+        long id = testService.saveTest("key", "value");
+        testService.updateTest("key", "changed", id, null);
+        ChangeEventRing.Cursor cursor = changeEventRing.subscribe(null);
+        Assert.assertEquals(1, testService.delTest(id));
+        Assert.assertNull(updateCoalescer.pending(id));
+        updateCoalescer.flush(id);
+        Assert.assertNull(testService.getTest(id));
+        Assert.assertEquals(0, testService.updateTest("key", "again", id, null));
+        List<ChangeEvent> events = new ArrayList<>();
+        cursor.poll(events, 10);
+        Assert.assertEquals(1, events.size());
+        Assert.assertEquals(ChangeEvent.Type.DELETE, events.get(0).getType());
+    }
+
+    private String valueInDatabase(long id) {
+        int shard = shardRouter.shardOfId(id);
+        return jdbcOf(shard).queryForObject("select \"value\" from " + shardRouter.tableOf(shard) + " where id = ?",
+                String.class, id);
+    }
+
+    private long stat(String name) {
+        return ((Number) updateCoalescer.stats().get(name)).longValue();
+    }
+}
@@ -0,0 +1,127 @@
+package com.example.demo.support;
+
+import com.alibaba.fastjson.JSON;
+import com.example.demo.entity.ChangeEvent;
+import com.example.demo.shard.ShardDatabaseTestSupport;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.test.context.TestPropertySource;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * 异步写缓冲：写库失败时先退避重试，重试不上的转存死信文件并撤销之前的副作用
+ * 每个用例写满一批(batch-size)，保证这些记录在同一次刷盘里
+ */
+@TestPropertySource(properties = {
+        "test.write-behind.enabled=true",
+        "test.write-behind.batch-size=5",
+        "test.write-behind.max-delay-millis=60000",
+        "test.write-behind.max-retries=2",
+        "test.write-behind.retry-backoff-millis=200",
+        "test.write-behind.dead-letter-file=target/write-behind-dead-letter-test.ndjson"
+})
+public class WriteBehindBufferTest extends ShardDatabaseTestSupport {
+
+    private static final File DEAD_LETTER_FILE = new File("target/write-behind-dead-letter-test.ndjson");
+
+    @Autowired
+    private ChangeEventRing changeEventRing;
+
+    @Autowired
+    private TestKeyIndex testKeyIndex;
+
+    @Before
+    public void deleteDeadLetterFile() {
+        DEAD_LETTER_FILE.delete();
+    }
+
+    /**
+     * 第一次写入时分表不存在，重试前建好表，记录最终写进去，不进死信
+     */
+    @Test
+    public void failedFlushIsRetried() throws Exception {
+        long flushed = stat("flushed");
+        long failed = stat("failed");
+        long deadLettered = stat("deadLettered");
+        dropTables();
+        List<Long> ids = new ArrayList<>();
+        for(int i = 0; i < 5; i++) {
+            ids.add(testService.saveTest("key" + i, "value" + i));
+        }
+        waitFor("failed", failed + ids.size());
+        createTables();
+        waitFor("flushed", flushed + ids.size());
+        Assert.assertEquals(deadLettered, stat("deadLettered"));
+        for(int i = 0; i < ids.size(); i++) {
+            Assert.assertEquals("value" + i, testService.getTest(ids.get(i)).getValue());
+        }
+        Assert.assertFalse(DEAD_LETTER_FILE.exists());
+    }
+
+    /**
+     * 分表一直不存在，重试用完后记录进死信文件，key索引撤销，并用DELETE事件抵消SAVE
+     */
+    @Test
+    public void exhaustedRetriesGoToDeadLetterFile() throws Exception {
+        long deadLettered = stat("deadLettered");
+        testKeyIndex.rebuild();
+        long deadline = System.currentTimeMillis() + 10000;
+        while(!testKeyIndex.ready() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        dropTables();
+        ChangeEventRing.Cursor cursor = changeEventRing.subscribe(null);
+        List<Long> ids = new ArrayList<>();
+        for(int i = 0; i < 5; i++) {
+            ids.add(testService.saveTest("lost" + i, "value" + i));
+        }
+        waitFor("deadLettered", deadLettered + ids.size());
+        Set<Long> deadIds = new HashSet<>();
+        for(String line : Files.readAllLines(DEAD_LETTER_FILE.toPath(), StandardCharsets.UTF_8)) {
+            deadIds.add(JSON.parseObject(line).getLong("id"));
+        }
+        Assert.assertEquals(new HashSet<>(ids), deadIds);
+        Assert.assertEquals(false, testKeyIndex.contains("lost0"));
+        List<ChangeEvent> events = new ArrayList<>();
+        cursor.poll(events, 20);
+        Assert.assertEquals(ids.size() * 2, events.size());
+        Set<Long> deleted = new HashSet<>();
+        for(int i = 0; i < events.size(); i++) {
+            ChangeEvent event = events.get(i);
+            Assert.assertEquals(i < ids.size() ? ChangeEvent.Type.SAVE : ChangeEvent.Type.DELETE, event.getType());
+            if(event.getType() == ChangeEvent.Type.DELETE) {
+                deleted.add(event.getId());
+            }
+        }
+        Assert.assertEquals(deadIds, deleted);
+    }
+
+    private void dropTables() {
+        for(int shard = 0; shard < shardRouter.shardCount(); shard++) {
+            jdbcOf(shard).execute("drop table " + shardRouter.tableOf(shard));
+        }
+    }
+
+    private long stat(String name) {
+        Map<String, Object> stats = testService.writeBehindStats();
+        return ((Number) stats.get(name)).longValue();
+    }
+
+    private void waitFor(String name, long expected) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10000;
+        while(stat(name) < expected && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        Assert.assertEquals(expected, stat(name));
+    }
+}